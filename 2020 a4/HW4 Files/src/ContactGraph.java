@@ -0,0 +1,561 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * An immutable temporal contact graph over dense person ids, stored in
+ * compressed sparse row form.
+ *
+ * The contacts of person p are held at indexes [offsets[p], offsets[p + 1]) of
+ * neighbours and times, sorted by time. Every trace is stored under both of its
+ * persons, as traces are bidirectional.
+ *
+ * A graph whose contacts involve only a few of the persons doesn't keep an offset for
+ * every person. Its rows are then sparse: rowPersons holds the ids of the persons with
+ * contacts, in ascending order, and row r is held at [offsets[r], offsets[r + 1]), so a
+ * graph built from a few new traces takes space and time proportional to those traces.
+ *
+ * The traces are also kept once each in time order, in the columns tracePerson1,
+ * tracePerson2 and traceTimes, for passes that scan every contact by time.
+ *
+ * Every contact and trace also carries the ingest sequence number (version) of its
+ * trace, stored as an int offset from the lowest version in the graph, so versions
+ * take four bytes a contact rather than eight. The graph keeps the lowest and highest
+ * version it holds, so queries as of an earlier version can skip a graph holding only
+ * newer traces, and only check the version of each contact in a graph holding both.
+ * A (@see PartitionedGraph) builds its layers in the order traces are added, so only a
+ * few of its layers hold both.
+ *
+ * A graph is never modified once built, so it can be read by any number of
+ * threads. New traces are added by merging a (@see TraceBuffer) into a new graph.
+ */
+public class ContactGraph {
+    /**
+     * A graph with no persons and no contacts.
+     */
+    public static final ContactGraph EMPTY = new ContactGraph(0, null, new int[1], new int[0], new int[0],
+            0, new int[0], new int[0], new int[0], new int[0], new int[0]);
+
+    /**
+     * First int of a snapshot written by write.
+     */
+    public static final int SNAPSHOT_MAGIC = 0x43535234; // "CSR4"
+
+    private static final int SPARSE_RATIO = 4; // rows are sparse while fewer than 1 / SPARSE_RATIO of persons have one.
+
+    private final int personCount; // one more than the largest person id the graph may hold.
+    private final int[] rowPersons; // id of the person of each row, ascending, or null if every person has a row.
+    private final int[] offsets; // start of each row, with one past the last row holding the number of contacts.
+    private final int[] neighbours; // the other person of each contact.
+    private final int[] times; // the time of each contact.
+    private final long baseVersion; // version every version offset is from.
+    private final int[] versions; // the version of each contact's trace, less baseVersion.
+    private final int[] tracePerson1; // the first person of each trace, in time order.
+    private final int[] tracePerson2; // the second person of each trace, in time order.
+    private final int[] traceTimes; // the time of each trace, in ascending order.
+    private final int[] traceVersions; // the version of each trace less baseVersion, in time order.
+    private final long minVersion; // lowest version of any trace, or Long.MAX_VALUE if there are none.
+    private final long maxVersion; // highest version of any trace, or Long.MIN_VALUE if there are none.
+
+    ContactGraph(int personCount, int[] rowPersons, int[] offsets, int[] neighbours, int[] times, long baseVersion,
+                 int[] versions, int[] tracePerson1, int[] tracePerson2, int[] traceTimes, int[] traceVersions) {
+        this.personCount = personCount;
+        this.rowPersons = rowPersons;
+        this.offsets = offsets;
+        this.neighbours = neighbours;
+        this.times = times;
+        this.baseVersion = baseVersion;
+        this.versions = versions;
+        this.tracePerson1 = tracePerson1;
+        this.tracePerson2 = tracePerson2;
+        this.traceTimes = traceTimes;
+        this.traceVersions = traceVersions;
+
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int version : traceVersions) {
+            min = Math.min(min, baseVersion + version);
+            max = Math.max(max, baseVersion + version);
+        }
+        minVersion = min;
+        maxVersion = max;
+    }
+
+    /**
+     * @return one more than the largest person id the graph may hold
+     */
+    public int personCount() {
+        return personCount;
+    }
+
+    /**
+     * @return the number of contacts in the graph, counting each trace once per person
+     */
+    public int contactCount() {
+        return neighbours.length;
+    }
+
+    /**
+     * @return the number of traces in the graph
+     */
+    public int traceCount() {
+        return traceTimes.length;
+    }
+
+    /**
+     * @param index index of a trace in time order
+     * @return id of the first person of the trace
+     */
+    public int tracePerson1(int index) {
+        return tracePerson1[index];
+    }
+
+    /**
+     * @param index index of a trace in time order
+     * @return id of the second person of the trace
+     */
+    public int tracePerson2(int index) {
+        return tracePerson2[index];
+    }
+
+    /**
+     * @param index index of a trace in time order
+     * @return time of the trace
+     */
+    public int traceTime(int index) {
+        return traceTimes[index];
+    }
+
+    /**
+     * @param index index of a trace in time order
+     * @return version of the trace
+     */
+    public long traceVersion(int index) {
+        return baseVersion + traceVersions[index];
+    }
+
+    /**
+     * @return the lowest version of any trace, or Long.MAX_VALUE if there are none
+     */
+    public long minVersion() {
+        return minVersion;
+    }
+
+    /**
+     * @return the highest version of any trace, or Long.MIN_VALUE if there are none
+     */
+    public long maxVersion() {
+        return maxVersion;
+    }
+
+    /**
+     * Finds the first trace, in time order, at or after the given time.
+     *
+     * runtime: O(log n) where n is the number of traces
+     *
+     * @param time time to search for
+     * @return index of the first trace with time >= the given time, or traceCount() if there is none
+     */
+    public int firstTraceAtOrAfter(int time) {
+        int low = 0;
+        int high = traceTimes.length;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (traceTimes[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the number of rows, which is personCount() unless the rows are sparse
+     */
+    public int rowCount() {
+        return rowPersons == null ? personCount : rowPersons.length;
+    }
+
+    /**
+     * @param row index of a row, in ascending order of person id
+     * @return id of the person of the row
+     */
+    public int rowPerson(int row) {
+        return rowPersons == null ? row : rowPersons[row];
+    }
+
+    /**
+     * runtime: O(1), or O(log r) if the rows are sparse, where r is the number of rows
+     *
+     * @param person id of the person
+     * @return index of the first contact of the person
+     */
+    public int rowStart(int person) {
+        if (rowPersons == null) {
+            return person < personCount ? offsets[person] : 0;
+        }
+        int row = Arrays.binarySearch(rowPersons, person);
+        return row >= 0 ? offsets[row] : 0;
+    }
+
+    /**
+     * runtime: O(1), or O(log r) if the rows are sparse, where r is the number of rows
+     *
+     * @param person id of the person
+     * @return index one past the last contact of the person
+     */
+    public int rowEnd(int person) {
+        if (rowPersons == null) {
+            return person < personCount ? offsets[person + 1] : 0;
+        }
+        int row = Arrays.binarySearch(rowPersons, person);
+        return row >= 0 ? offsets[row + 1] : 0;
+    }
+
+    /**
+     * @param index index of a contact
+     * @return id of the other person of the contact
+     */
+    public int neighbour(int index) {
+        return neighbours[index];
+    }
+
+    /**
+     * @param index index of a contact
+     * @return time of the contact
+     */
+    public int time(int index) {
+        return times[index];
+    }
+
+    /**
+     * @param index index of a contact
+     * @return version of the contact's trace
+     */
+    public long version(int index) {
+        return baseVersion + versions[index];
+    }
+
+    /**
+     * Finds the first contact of the person at or after the given time.
+     *
+     * runtime: O(log d) where d is the number of contacts of the person
+     *
+     * @param person id of the person
+     * @param time time to search for
+     * @return index of the first contact with time >= the given time, or rowEnd(person) if there is none
+     */
+    public int lowerBound(int person, int time) {
+        int low = rowStart(person);
+        int high = rowEnd(person);
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Builds a new graph holding every contact of this graph and every trace in the buffer.
+     * This graph is left unchanged.
+     *
+     * Only the rows of persons in this graph or the buffer are visited, so merging a
+     * buffer into EMPTY takes time proportional to the buffer, not to personCount.
+     *
+     * runtime: O(E + n log n) where E is the number of contacts in this graph
+     * and n is the number of traces in the buffer
+     *
+     * @param staged traces to add, which are not already in this graph
+     * @param personCount number of persons in the new graph
+     * @return the merged graph
+     * @throws IllegalArgumentException if the versions of the merged graph would span more than Integer.MAX_VALUE
+     * @require personCount >= personCount() and every id in staged is below personCount
+     */
+    public ContactGraph merge(TraceBuffer staged, int personCount) {
+        long newMin = minVersion;
+        long newMax = maxVersion;
+        for (int i = 0; i < staged.size(); i++) {
+            newMin = Math.min(newMin, staged.version(i));
+            newMax = Math.max(newMax, staged.version(i));
+        }
+        if (newMin <= newMax && newMax - newMin > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("versions " + newMin + " to " + newMax + " don't fit one graph");
+        }
+        long newBase = newMin <= newMax ? newMin : 0;
+
+        // sort the staged contacts by person, packed as (person, staged index).
+        long[] stagedContacts = new long[2 * staged.size()];
+        for (int i = 0; i < staged.size(); i++) {
+            stagedContacts[2 * i] = pack(staged.person1(i), i);
+            stagedContacts[2 * i + 1] = pack(staged.person2(i), i);
+        }
+        Arrays.sort(stagedContacts);
+
+        int[] existingPersons = rowPersons != null ? rowPersons : nonEmptyRows();
+        int rowBound = existingPersons.length + stagedContacts.length;
+        int[] newRowPersons = new int[rowBound];
+        int[] newOffsets = new int[rowBound + 1];
+        int[] newNeighbours = new int[contactCount() + stagedContacts.length];
+        int[] newTimes = new int[newNeighbours.length];
+        int[] newVersions = new int[newNeighbours.length];
+        long[] row = new long[stagedContacts.length]; // a person's staged contacts, packed as (time, staged index).
+        int rows = 0;
+        int out = 0;
+
+        // merge each person's existing row with their staged contacts sorted by time,
+        // visiting persons in ascending order.
+        int a = 0;
+        int b = 0;
+        while (a < existingPersons.length || b < stagedContacts.length) {
+            int p = b == stagedContacts.length
+                    || (a < existingPersons.length && existingPersons[a] <= unpackHigh(stagedContacts[b]))
+                    ? existingPersons[a] : unpackHigh(stagedContacts[b]);
+
+            int i = 0;
+            int end = 0;
+            if (a < existingPersons.length && existingPersons[a] == p) {
+                i = rowPersons != null ? offsets[a] : offsets[p];
+                end = rowPersons != null ? offsets[a + 1] : offsets[p + 1];
+                a++;
+            }
+            int to = 0;
+            while (b < stagedContacts.length && unpackHigh(stagedContacts[b]) == p) {
+                int k = unpackLow(stagedContacts[b]);
+                row[to++] = pack(staged.time(k), k);
+                b++;
+            }
+            Arrays.sort(row, 0, to);
+
+            newRowPersons[rows] = p;
+            newOffsets[rows] = out;
+            rows++;
+
+            int j = 0;
+            while (i < end || j < to) {
+                if (j == to || (i < end && times[i] <= unpackHigh(row[j]))) {
+                    newNeighbours[out] = neighbours[i];
+                    newTimes[out] = times[i];
+                    newVersions[out] = (int) (baseVersion + versions[i] - newBase);
+                    i++;
+                } else {
+                    int k = unpackLow(row[j]);
+                    // the neighbour is the trace's other person, or p itself for a trace with itself.
+                    newNeighbours[out] = staged.person1(k) == p ? staged.person2(k) : staged.person1(k);
+                    newTimes[out] = staged.time(k);
+                    newVersions[out] = (int) (staged.version(k) - newBase);
+                    j++;
+                }
+                out++;
+            }
+        }
+        newOffsets[rows] = out;
+
+        // merge the time ordered trace columns with the staged traces sorted by time.
+        long[] stagedOrder = new long[staged.size()];
+        for (int k = 0; k < staged.size(); k++) {
+            stagedOrder[k] = pack(staged.time(k), k);
+        }
+        Arrays.sort(stagedOrder);
+
+        int traceCount = traceCount() + staged.size();
+        int[] newTracePerson1 = new int[traceCount];
+        int[] newTracePerson2 = new int[traceCount];
+        int[] newTraceTimes = new int[traceCount];
+        int[] newTraceVersions = new int[traceCount];
+        int i = 0;
+        int j = 0;
+        for (out = 0; out < traceCount; out++) {
+            if (j == stagedOrder.length || (i < traceTimes.length && traceTimes[i] <= unpackHigh(stagedOrder[j]))) {
+                newTracePerson1[out] = tracePerson1[i];
+                newTracePerson2[out] = tracePerson2[i];
+                newTraceTimes[out] = traceTimes[i];
+                newTraceVersions[out] = (int) (baseVersion + traceVersions[i] - newBase);
+                i++;
+            } else {
+                int k = unpackLow(stagedOrder[j]);
+                newTracePerson1[out] = staged.person1(k);
+                newTracePerson2[out] = staged.person2(k);
+                newTraceTimes[out] = staged.time(k);
+                newTraceVersions[out] = (int) (staged.version(k) - newBase);
+                j++;
+            }
+        }
+
+        // keep an offset for every person once enough of them have a row.
+        int[] keptRowPersons = null;
+        int[] keptOffsets;
+        if ((long) rows * SPARSE_RATIO >= personCount) {
+            keptOffsets = denseOffsets(personCount, newRowPersons, newOffsets, rows);
+        } else {
+            keptRowPersons = Arrays.copyOf(newRowPersons, rows);
+            keptOffsets = Arrays.copyOf(newOffsets, rows + 1);
+        }
+        return new ContactGraph(personCount, keptRowPersons, keptOffsets, newNeighbours, newTimes, newBase,
+                newVersions, newTracePerson1, newTracePerson2, newTraceTimes, newTraceVersions);
+    }
+
+    /**
+     * Copies the traces of the graph, with their versions, into a new buffer in time order.
+     *
+     * runtime: O(n) where n is the number of traces
+     *
+     * @return buffer holding every trace of the graph
+     */
+    public TraceBuffer traces() {
+        TraceBuffer buffer = new TraceBuffer(Math.max(1, traceCount()));
+        for (int i = 0; i < traceCount(); i++) {
+            buffer.add(tracePerson1[i], tracePerson2[i], traceTimes[i], baseVersion + traceVersions[i]);
+        }
+        return buffer;
+    }
+
+    /**
+     * @return ids of the persons with at least one contact, in ascending order, from dense rows
+     */
+    private int[] nonEmptyRows() {
+        int count = 0;
+        for (int p = 0; p < personCount; p++) {
+            if (offsets[p + 1] > offsets[p]) {
+                count++;
+            }
+        }
+        int[] persons = new int[count];
+        count = 0;
+        for (int p = 0; p < personCount; p++) {
+            if (offsets[p + 1] > offsets[p]) {
+                persons[count++] = p;
+            }
+        }
+        return persons;
+    }
+
+    /**
+     * expand sparse rows to an offset for every person, where a person without a row
+     * starts and ends where the next row starts.
+     */
+    private static int[] denseOffsets(int personCount, int[] rowPersons, int[] rowOffsets, int rows) {
+        int[] offsets = new int[personCount + 1];
+        int r = 0;
+        for (int p = 0; p <= personCount; p++) {
+            while (r < rows && rowPersons[r] < p) {
+                r++;
+            }
+            offsets[p] = rowOffsets[r];
+        }
+        return offsets;
+    }
+
+    /**
+     * Writes the graph to a channel in the snapshot format read by read.
+     *
+     * The snapshot is a header of SNAPSHOT_MAGIC, personCount, the number of sparse
+     * rows (or -1 if the rows are dense), contactCount and traceCount as big-endian ints
+     * and baseVersion as a big-endian long, followed by the rowPersons array if the rows
+     * are sparse, then the offsets, neighbours, times, versions, tracePerson1, tracePerson2,
+     * traceTimes and traceVersions arrays, all as big-endian ints.
+     *
+     * @param channel channel to write to, from its current position
+     * @throws IOException if the channel can't be written
+     */
+    public void write(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(5 * Integer.BYTES + Long.BYTES);
+        header.putInt(SNAPSHOT_MAGIC).putInt(personCount).putInt(rowPersons == null ? -1 : rowPersons.length)
+                .putInt(contactCount()).putInt(traceCount()).putLong(baseVersion);
+        header.flip();
+        writeFully(channel, header);
+
+        int[][] columns = {rowPersons == null ? new int[0] : rowPersons, offsets, neighbours, times, versions,
+                tracePerson1, tracePerson2, traceTimes, traceVersions};
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        for (int[] column : columns) {
+            int written = 0;
+            while (written < column.length) {
+                int count = Math.min(column.length - written, buffer.capacity() / Integer.BYTES);
+                buffer.clear();
+                buffer.asIntBuffer().put(column, written, count);
+                buffer.limit(count * Integer.BYTES);
+                writeFully(channel, buffer);
+                written += count;
+            }
+        }
+    }
+
+    /**
+     * Reads a graph written by write. The arrays are bulk copied out of the buffer,
+     * so the buffer may be a memory mapped file which is unmapped afterwards.
+     *
+     * @param buffer buffer holding a snapshot, from its current position
+     * @return the graph held in the snapshot
+     * @throws IOException if the buffer doesn't hold a snapshot
+     */
+    public static ContactGraph read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 5 * Integer.BYTES + Long.BYTES || buffer.getInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("not a contact graph snapshot");
+        }
+        int personCount = buffer.getInt();
+        int rowCount = buffer.getInt();
+        int contactCount = buffer.getInt();
+        int traceCount = buffer.getInt();
+        long baseVersion = buffer.getLong();
+
+        boolean sparse = rowCount >= 0;
+        long rowInts = sparse ? 2L * rowCount + 1 : personCount + 1L;
+        long expected = (long) Integer.BYTES * (rowInts + 3L * contactCount + 4L * traceCount);
+        if (buffer.remaining() < expected) {
+            throw new IOException("truncated contact graph snapshot");
+        }
+
+        int[] rowPersons = sparse ? readInts(buffer, rowCount) : null;
+        int[] offsets = readInts(buffer, sparse ? rowCount + 1 : personCount + 1);
+        int[] neighbours = readInts(buffer, contactCount);
+        int[] times = readInts(buffer, contactCount);
+        int[] versions = readInts(buffer, contactCount);
+        int[] tracePerson1 = readInts(buffer, traceCount);
+        int[] tracePerson2 = readInts(buffer, traceCount);
+        int[] traceTimes = readInts(buffer, traceCount);
+        int[] traceVersions = readInts(buffer, traceCount);
+
+        return new ContactGraph(personCount, rowPersons, offsets, neighbours, times, baseVersion, versions,
+                tracePerson1, tracePerson2, traceTimes, traceVersions);
+    }
+
+    /**
+     * bulk copy a column of ints out of the buffer, advancing the buffer past it so the
+     * next column, or the next graph of a partitioned snapshot, is read from the right place.
+     */
+    private static int[] readInts(ByteBuffer buffer, int count) {
+        int[] column = new int[count];
+        buffer.asIntBuffer().get(column);
+        buffer.position(buffer.position() + count * Integer.BYTES);
+        return column;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * pack two ints into a long which sorts by high, then by low if low isn't negative.
+     */
+    private static long pack(int high, int low) {
+        return ((long) high << 32) | (low & 0xFFFFFFFFL);
+    }
+
+    private static int unpackHigh(long packed) {
+        return (int) (packed >> 32);
+    }
+
+    private static int unpackLow(long packed) {
+        return (int) packed;
+    }
+}
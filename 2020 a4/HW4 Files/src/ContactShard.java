@@ -0,0 +1,219 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A shard of a (@see ShardedContactTracer) held in this process.
+ *
+ * The shard keeps its traces in a ContactTracer. Every trace is held by the shards of
+ * both its persons, so the shard owning a person has all of their contacts. Each round
+ * of a query runs Dijkstra's algorithm from the arrivals through the persons the shard
+ * owns, and stops at persons owned by other shards, whose contact times are sent on.
+ *
+ * Queries hold the graph they began on, so traces added while a query runs don't
+ * change it. Any number of queries may run at once.
+ */
+public class ContactShard implements TraceShard {
+    private static final int UNREACHED = Integer.MAX_VALUE; // time of a person not reached yet.
+
+    private final int index; // index of this shard.
+    private final int shardCount; // number of shards persons are split between.
+    private final ContactTracer tracer; // traces with a person owned by this shard.
+    private final ConcurrentHashMap<Long, Query> queries; // queries begun and not finished, by id.
+    private boolean[] owned = new boolean[0]; // whether this shard owns each person id, guarded by queries.
+
+    /**
+     * Creates an empty shard.
+     *
+     * @param index index of the shard, from 0
+     * @param shardCount number of shards persons are split between
+     * @throws IllegalArgumentException if index isn't between 0 and shardCount - 1
+     */
+    public ContactShard(int index, int shardCount) {
+        if (index < 0 || index >= shardCount) {
+            throw new IllegalArgumentException("shard " + index + " out of " + shardCount);
+        }
+        this.index = index;
+        this.shardCount = shardCount;
+        tracer = new ContactTracer();
+        queries = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return index of this shard
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the tracer holding this shard's traces
+     */
+    public ContactTracer getTracer() {
+        return tracer;
+    }
+
+    @Override
+    public void addTraces(List<Trace> traces) {
+        for (Trace trace : traces) {
+            tracer.addTrace(trace);
+        }
+    }
+
+    @Override
+    public void begin(long query, String person, int timeOfContagion) {
+        PartitionedGraph graph = tracer.graph();
+        PersonDictionary persons = tracer.dictionary();
+        int source = persons.id(person);
+        if (source >= graph.personCount()) {
+            source = -1;
+        }
+        if (queries.putIfAbsent(query, new Query(graph, persons, source, owners(graph.personCount()))) != null) {
+            throw new IllegalArgumentException("query " + query + " already begun");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * runtime: O((n + m) log n) where n is the number of this shard's persons reached earlier
+     * than before and m is the number of their contacts
+     */
+    @Override
+    public Map<String, Integer> round(long query, Map<String, Integer> arrivals) {
+        Query state = get(query);
+        synchronized (state) {
+            return state.round(arrivals);
+        }
+    }
+
+    @Override
+    public Set<String> finish(long query) {
+        Query state = queries.remove(query);
+        if (state == null) {
+            throw new IllegalArgumentException("query " + query + " not begun");
+        }
+        synchronized (state) {
+            Set<String> reached = new HashSet<>();
+            for (int id : state.reached) {
+                reached.add(state.persons.name(id));
+            }
+            return reached;
+        }
+    }
+
+    /**
+     * find which persons this shard owns, hashing only the names of persons added since the
+     * last call. Ids are never reused, so the owners of earlier ids stay correct.
+     *
+     * runtime: O(n) where n is the number of persons added since the last call
+     *
+     * @param personCount number of person ids needed
+     * @return whether this shard owns each id, for at least personCount ids
+     */
+    private boolean[] owners(int personCount) {
+        synchronized (queries) {
+            if (owned.length < personCount) {
+                PersonDictionary persons = tracer.dictionary();
+                boolean[] grown = Arrays.copyOf(owned, personCount);
+                for (int id = owned.length; id < personCount; id++) {
+                    grown[id] = ShardedContactTracer.shardOf(persons.name(id), shardCount) == index;
+                }
+                owned = grown;
+            }
+            return owned;
+        }
+    }
+
+    private Query get(long query) {
+        Query state = queries.get(query);
+        if (state == null) {
+            throw new IllegalArgumentException("query " + query + " not begun");
+        }
+        return state;
+    }
+
+    /**
+     * State of a query on this shard.
+     */
+    private class Query {
+        final PartitionedGraph graph; // graph the query began on.
+        final PersonDictionary persons; // dictionary of the graph's person ids.
+        final int source; // id of the person the trace started from, or -1 if the shard doesn't know them.
+        final boolean[] owned; // whether this shard owns each person id.
+        final int[] time; // contact time of each person, or the earliest sent on for persons owned elsewhere.
+        final List<Integer> reached; // ids of persons owned by this shard which were reached.
+
+        Query(PartitionedGraph graph, PersonDictionary persons, int source, boolean[] owned) {
+            this.graph = graph;
+            this.persons = persons;
+            this.source = source;
+            this.owned = owned;
+            time = new int[graph.personCount()];
+            Arrays.fill(time, UNREACHED);
+            reached = new ArrayList<>();
+        }
+
+        /**
+         * record the arrivals, then spread them through the persons this shard owns.
+         */
+        Map<String, Integer> round(Map<String, Integer> arrivals) {
+            PriorityQueue<ContactTracer.Priority<Integer>> pq = new PriorityQueue<>();
+            for (Map.Entry<String, Integer> arrival : arrivals.entrySet()) {
+                int id = persons.id(arrival.getKey());
+                // persons added after the query began have no contacts in its graph.
+                if (id >= 0 && id < time.length) {
+                    reach(id, arrival.getValue(), pq);
+                }
+            }
+
+            Map<String, Integer> sent = new HashMap<>();
+            while (!pq.isEmpty()) {
+                ContactTracer.Priority<Integer> top = pq.poll();
+                int u = top.element;
+                if (top.priority != time[u]) {
+                    continue;
+                }
+
+                int candidateTime = top.priority + ContactTracer.INCUBATION_PERIOD;
+                for (int k = 0; k < graph.layerCount(); k++) {
+                    ContactGraph layer = graph.layer(k);
+                    int end = layer.rowEnd(u);
+                    for (int i = layer.lowerBound(u, candidateTime); i < end; i++) {
+                        int w = layer.neighbour(i);
+                        int contactTime = layer.time(i);
+                        if (w == source || contactTime >= time[w]) {
+                            continue;
+                        }
+
+                        if (owned[w]) {
+                            reach(w, contactTime, pq);
+                        } else {
+                            // remembering the time sent means each person is only sent improvements.
+                            time[w] = contactTime;
+                            sent.put(persons.name(w), contactTime);
+                        }
+                    }
+                }
+            }
+            return sent;
+        }
+
+        private void reach(int id, int contactTime, PriorityQueue<ContactTracer.Priority<Integer>> pq) {
+            if (contactTime >= time[id]) {
+                return;
+            }
+            if (time[id] == UNREACHED && id != source) {
+                reached.add(id);
+            }
+            time[id] = contactTime;
+            pq.add(new ContactTracer.Priority<>(contactTime, id));
+        }
+    }
+}
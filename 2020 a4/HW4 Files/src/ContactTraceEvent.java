@@ -0,0 +1,35 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A JFR event recorded for each contact trace query run by a (@see ContactTracer)
+ * with metrics turned on, holding the work the query did.
+ */
+@Name("ContactTracer.ContactTrace")
+@Label("Contact Trace")
+@Category("Contact Tracer")
+@Description("A contact trace query run against the frozen contact graph")
+public class ContactTraceEvent extends jdk.jfr.Event {
+    @Label("Person")
+    String person;
+
+    @Label("Time Of Contagion")
+    int timeOfContagion;
+
+    @Label("Mode")
+    String mode;
+
+    @Label("Vertices Visited")
+    long verticesVisited;
+
+    @Label("Edges Relaxed")
+    long edgesRelaxed;
+
+    @Label("Peak Frontier")
+    long peakFrontier;
+
+    @Label("Persons Reached")
+    int reached;
+}
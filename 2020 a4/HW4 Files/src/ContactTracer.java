@@ -1,16 +1,123 @@
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 public class ContactTracer {
-    private HashMap<String, HashSet<Edge>> graph; // a hashmap shows each person and their contact information.
-    private HashMap<String, Vertex> personToVertex; // a hashmap matches each person to person vertex.
+    /**
+     * Minutes between a person being infected and them becoming contagious.
+     */
+    public static final int INCUBATION_PERIOD = 60;
+
+    /**
+     * Algorithms available to contactTrace. Both give the same result.
+     */
+    public enum TraceMode {
+        /**
+         * Dijkstra's algorithm over each person's time sorted contacts, which only
+         * visits the persons that are reached.
+         */
+        DIJKSTRA,
+        /**
+         * A single scan over every trace in time order from timeOfContagion, which
+         * doesn't allocate and is fastest when a large part of the graph is reached.
+         */
+        EARLIEST_ARRIVAL
+    }
+
+    /**
+     * Number of traces in each ingestion segment.
+     */
+    public static final int SEGMENT_SIZE = 4096;
+
+    /**
+     * Executor the asynchronous queries run on unless given another: a daemon thread for
+     * each processor, shared by every tracer. Queries beyond that wait their turn, so any
+     * number of callers never start more threads. The pool lives as long as the process,
+     * and callers needing to control the threads' lifecycle pass their own executor.
+     */
+    private static final ExecutorService ASYNC_EXECUTOR =
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), (runnable) -> {
+                Thread thread = new Thread(runnable, "contact-tracer-async");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Executor layers of the graph are compacted on: a single daemon thread shared by
+     * every tracer, so merging large layers never holds up a query or addTrace.
+     */
+    private static final ExecutorService COMPACTION_EXECUTOR = Executors.newSingleThreadExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "contact-tracer-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final int CANCEL_CHECK_MASK = 1023; // earliest arrival checks for cancellation every 1024 traces.
+
+    private PersonDictionary persons; // matches each person to their dense id and back.
+    private RetentionPolicy retention; // how long traces are kept, and how they are partitioned by time.
+    private ConcurrentSkipListMap<Long, ConcurrentHashMap<Long, int[]>> contactTimes; // for each time partition, a hashmap shows each pair of person ids and their sorted contact times.
+    private AtomicInteger newestTime; // time of the newest trace added.
+    private ThreadLocal<Segment> openSegments; // the segment each thread is currently appending traces to.
+    private ConcurrentLinkedQueue<Segment> segments; // segments holding traces which aren't all in the graph yet.
+    private LongAdder appendedCount; // the number of traces appended to segments.
+    private volatile long drainedCount; // the number of traces appended to segments which are in the graph, written under mergeLock.
+    private AtomicBoolean compacting; // whether a compaction of the graph's layers is scheduled or running.
+    private volatile PartitionedGraph graph; // frozen contact graph, sorted by time within each person's row of each layer.
+    private final Object mergeLock = new Object(); // held while segments are merged into a new graph.
+    private ConcurrentLinkedQueue<TraceScratch> scratchPool; // per query state that can be reused by later queries.
+    private TraceLog log; // files the tracer is persisted to, or null if it isn't persisted.
+    private TraceBuffer unlogged; // traces merged into the graph but not yet appended to log, guarded by mergeLock.
+    private CopyOnWriteArrayList<StandingQuery> standingQueries; // standing queries updated by every trace added.
+    private volatile ResultCache resultCache; // cached contactTrace results, or null if caching is off.
+    private volatile TracerMetrics metrics; // counters and latency histograms, or null if metrics are off.
+    private QueryCoalescer coalescer; // asynchronous queries running, shared by identical callers.
+    private volatile long version; // version of the newest trace merged into the graph, written under mergeLock.
 
     /**
      * Initialises an empty ContactTracer with no populated contact traces.
      */
     public ContactTracer() {
         // TODO: implement this!
-        graph = new HashMap<>();
-        personToVertex = new HashMap<>();
+        this(RetentionPolicy.KEEP_ALL);
+    }
+
+    /**
+     * Initialises an empty ContactTracer which keeps traces as long as the given
+     * policy says. Traces older than the policy's window, relative to the newest
+     * trace added, are dropped from every query and ignored if added later.
+     *
+     * @param retention how long to keep traces for
+     * @require retention != null
+     */
+    public ContactTracer(RetentionPolicy retention) {
+        persons = new PersonDictionary();
+        this.retention = retention;
+        contactTimes = new ConcurrentSkipListMap<>();
+        newestTime = new AtomicInteger(Integer.MIN_VALUE);
+        openSegments = new ThreadLocal<>();
+        segments = new ConcurrentLinkedQueue<>();
+        appendedCount = new LongAdder();
+        compacting = new AtomicBoolean();
+        graph = PartitionedGraph.EMPTY;
+        scratchPool = new ConcurrentLinkedQueue<>();
+        standingQueries = new CopyOnWriteArrayList<>();
+        coalescer = new QueryCoalescer();
     }
 
     /**
@@ -22,13 +129,194 @@ public class ContactTracer {
      */
     public ContactTracer(List<Trace> traces) {
         // TODO: implement this!
-        graph = new HashMap<>();
-        personToVertex = new HashMap<>();
+        this();
 
         // build graph
         for (Trace trace : traces) {
             addTrace(trace);
         }
+        graph();
+    }
+
+    /**
+     * Opens a ContactTracer persisted in the given directory, creating an empty one if
+     * the directory doesn't exist.
+     *
+     * The graph is loaded from the directory's snapshot and the log records written
+     * after it, so traces aren't re-added one at a time. Traces added afterwards are
+     * written to the directory by flushLog and writeSnapshot.
+     *
+     * @param directory directory holding the tracer's files
+     * @return the opened tracer
+     * @throws IOException if the files can't be opened or read
+     */
+    public static ContactTracer open(Path directory) throws IOException {
+        return open(directory, RetentionPolicy.KEEP_ALL);
+    }
+
+    /**
+     * Opens a ContactTracer persisted in the given directory which keeps traces as long
+     * as the given policy says, creating an empty one if the directory doesn't exist.
+     *
+     * The log keeps every trace, so a directory may be reopened with a different policy.
+     * The snapshot is only used if it was written under the same policy.
+     *
+     * @param directory directory holding the tracer's files
+     * @param retention how long to keep traces for
+     * @return the opened tracer
+     * @throws IOException if the files can't be opened or read
+     * @require retention != null
+     */
+    public static ContactTracer open(Path directory, RetentionPolicy retention) throws IOException {
+        ContactTracer tracer = new ContactTracer(retention);
+        TraceLog log = TraceLog.open(directory, tracer.persons);
+
+        try {
+            PartitionedGraph graph = log.readGraph(tracer.persons.size(), retention);
+            // every trace in the log was numbered in the order it was logged.
+            tracer.version = log.recordCount();
+            tracer.newestTime.set(graph.newestTime());
+            graph = graph.dropBefore(retention.oldestKeptKey(graph.newestTime()));
+            tracer.graph = graph;
+            tracer.rebuildContactTimes(graph);
+            tracer.scheduleCompaction();
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+        tracer.log = log;
+        tracer.unlogged = new TraceBuffer();
+        return tracer;
+    }
+
+    /**
+     * Appends every trace added so far, and the names of their persons, to the log
+     * and forces them to disk.
+     *
+     * @throws IOException if the log can't be written
+     * @throws IllegalStateException if the tracer wasn't opened from a directory
+     */
+    public void flushLog() throws IOException {
+        appendLog(false);
+    }
+
+    /**
+     * Flushes the log, then writes a snapshot of the graph, so that the next open only
+     * has to merge in traces logged after this call. Writing a snapshot takes time
+     * proportional to the whole graph, so it should be done periodically rather than
+     * after every trace.
+     *
+     * @throws IOException if the log or snapshot can't be written
+     * @throws IllegalStateException if the tracer wasn't opened from a directory
+     */
+    public void writeSnapshot() throws IOException {
+        appendLog(true);
+    }
+
+    /**
+     * Closes the tracer's files, if it was opened from a directory. Traces added since
+     * the last flushLog are not written.
+     *
+     * @throws IOException if the files can't be closed
+     */
+    public void close() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    /**
+     * merge every trace added so far into the graph, then append the traces not yet in
+     * the log, and the names of their persons, to the log.
+     *
+     * @param snapshot whether to also write a snapshot of the graph
+     * @throws IOException if the log or snapshot can't be written
+     */
+    private void appendLog(boolean snapshot) throws IOException {
+        if (log == null) {
+            throw new IllegalStateException("tracer is not persisted");
+        }
+        graph();
+
+        synchronized (mergeLock) {
+            // names first, so that every logged trace refers to persons already in the dictionary.
+            log.appendNames(persons, graph.personCount());
+            log.appendTraces(unlogged);
+            unlogged.clear();
+            log.force();
+
+            if (snapshot) {
+                log.writeSnapshot(graph, retention);
+            }
+        }
+    }
+
+    /**
+     * rebuild the pair index of contact times from every partition of a graph, merging
+     * the layers of each partition first so that each pair's times come out sorted.
+     *
+     * @param graph graph to index
+     */
+    private void rebuildContactTimes(PartitionedGraph graph) {
+        int first = 0;
+        while (first < graph.layerCount()) {
+            int end = graph.partitionEnd(first);
+            ContactGraph partition = graph.layer(first);
+            for (int k = first + 1; k < end; k++) {
+                partition = PartitionedGraph.mergeLayers(partition, graph.layer(k), graph.personCount());
+            }
+            ConcurrentHashMap<Long, int[]> partitionTimes = new ConcurrentHashMap<>();
+            rebuildContactTimes(partition, partitionTimes);
+            contactTimes.put(graph.key(first), partitionTimes);
+            first = end;
+        }
+    }
+
+    /**
+     * rebuild the pair index of contact times from a partition, one person's row at a time,
+     * rather than adding each trace.
+     *
+     * runtime: O(E log d) where d is the largest number of contacts of a person
+     *
+     * @param graph partition to index
+     * @param partitionTimes index to fill in
+     */
+    private static void rebuildContactTimes(ContactGraph graph, ConcurrentHashMap<Long, int[]> partitionTimes) {
+        long[] row = new long[0];
+
+        for (int r = 0; r < graph.rowCount(); r++) {
+            int p = graph.rowPerson(r);
+            int rowStart = graph.rowStart(p);
+            int rowEnd = graph.rowEnd(p);
+            int count = 0;
+            row = Arrays.copyOf(row, Math.max(row.length, rowEnd - rowStart));
+
+            // each pair is indexed from the row of its lower id, grouping the row by neighbour.
+            for (int i = rowStart; i < rowEnd; i++) {
+                if (graph.neighbour(i) >= p) {
+                    row[count++] = ((long) graph.neighbour(i) << 32) | (graph.time(i) & 0xFFFFFFFFL);
+                }
+            }
+            Arrays.sort(row, 0, count);
+
+            int start = 0;
+            while (start < count) {
+                int neighbour = (int) (row[start] >>> 32);
+                int end = start;
+                int[] times = new int[count - start];
+                int size = 0;
+                while (end < count && (int) (row[end] >>> 32) == neighbour) {
+                    int time = (int) row[end];
+                    // a trace of a person with themselves appears twice in their row.
+                    if (size == 0 || times[size - 1] != time) {
+                        times[size++] = time;
+                    }
+                    end++;
+                }
+                partitionTimes.put(pairKey(p, neighbour), Arrays.copyOf(times, size));
+                start = end;
+            }
+        }
     }
 
     /**
@@ -36,45 +324,317 @@ public class ContactTracer {
      * 
      * If a contact trace involving the same two people at the exact same time is
      * already stored, do nothing.
+     *
+     * Any number of threads may add traces, and query, at the same time without
+     * taking a lock. Each thread appends to its own segment, and a query sees every
+     * trace whose addTrace finished before the query started.
+     *
+     * A trace older than the retention window, relative to the newest trace added,
+     * is ignored.
      * 
      * @param trace to add
      * @require trace != null
      */
     public void addTrace(Trace trace) {
         // TODO: implement this!
-        String person1 = trace.getPerson1();
-        String person2 = trace.getPerson2();
+        TracerMetrics metrics = this.metrics;
+        if (metrics == null) {
+            add(trace);
+            return;
+        }
+        long startTime = System.nanoTime();
+        add(trace);
+        metrics.record(TracerMetrics.Operation.ADD_TRACE, System.nanoTime() - startTime);
+    }
+
+    /**
+     * add a trace, as described by addTrace.
+     *
+     * @param trace to add
+     */
+    private void add(Trace trace) {
         int time = trace.getTime();
+        long partition = retention.partitionKey(time);
+
+        // a trace arriving after its partition has expired is dropped before its persons are interned.
+        int previous = newestTime.getAndAccumulate(time, Math::max);
+        int newest = Math.max(previous, time);
+        if (partition < retention.oldestKeptKey(newest)) {
+            return;
+        }
+        boolean expires = retention.oldestKeptKey(newest) > retention.oldestKeptKey(previous);
 
-        HashSet<Edge> edges = graph.computeIfAbsent(person1, (k) -> new HashSet<>());
+        int person1 = persons.intern(trace.getPerson1());
+        int person2 = persons.intern(trace.getPerson2());
 
         // if there is already exist a trace which has same persons and contact time then do not add it.
-        for (Edge edge : edges) {
-            if (edge.personTo.equals(person2) && edge.time == time) {
-                return;
+        if (!addContactTime(partition, person1, person2, time)) {
+            return;
+        }
+
+        // offered before it is appended, so a standing query holds the trace as pending
+        // before any merge can move it into the graph.
+        boolean drain = false;
+        for (StandingQuery query : standingQueries) {
+            drain |= query.offer(person1, person2, time);
+        }
+
+        // counted before it is published, so the count never falls behind the traces a merge copies.
+        appendedCount.increment();
+
+        // append to this thread's segment, starting a new one once it is full or retired.
+        Segment segment = openSegments.get();
+        while (segment == null || !segment.add(person1, person2, time)) {
+            segment = new Segment();
+            segments.offer(segment);
+            openSegments.set(segment);
+        }
+
+        // the trace is appended before it is offered, so a cached result computed without it is refused.
+        // a trace moving the retention window on expires partitions, which may shrink any result.
+        ResultCache cache = resultCache;
+        if (cache != null) {
+            if (expires) {
+                cache.clear();
+            } else {
+                cache.offer(person1, person2, time);
             }
         }
 
-        if (graph.containsKey(person2)) {
-            for (Edge edge : graph.get(person2)) {
-                if (edge.personTo.equals(person1) && edge.time == time) {
-                    return;
-                }
+        // only a merge takes traces out of a query's pending contacts, so merge once too
+        // many have piled up, after the append and without holding the query's lock.
+        if (drain) {
+            graph();
+        }
+    }
+
+    /**
+     * intern a person, for loaders which stage traces over person ids.
+     *
+     * @param person name of the person
+     * @return id of the person
+     */
+    int intern(String person) {
+        return persons.intern(person);
+    }
+
+    /**
+     * @return dictionary of the person ids in the graph, for shards reading the graph directly
+     */
+    PersonDictionary dictionary() {
+        return persons;
+    }
+
+    /**
+     * add a batch of traces over interned person ids to the pair index, dropping
+     * expired traces and traces already added, as addTrace does. the admitted traces
+     * aren't in the graph until they are passed to mergeAdmitted. any number of
+     * threads may admit batches at the same time.
+     *
+     * @param traces traces to admit, which is left unchanged
+     * @return the traces which were admitted
+     */
+    TraceBuffer admitAll(TraceBuffer traces) {
+        TraceBuffer admitted = new TraceBuffer(Math.max(1, traces.size()));
+        boolean expires = false;
+
+        for (int i = 0; i < traces.size(); i++) {
+            int time = traces.time(i);
+            long partition = retention.partitionKey(time);
+            int previous = newestTime.getAndAccumulate(time, Math::max);
+            int newest = Math.max(previous, time);
+            expires |= retention.oldestKeptKey(newest) > retention.oldestKeptKey(previous);
+            if (partition >= retention.oldestKeptKey(newest)
+                    && addContactTime(partition, traces.person1(i), traces.person2(i), time)) {
+                admitted.add(traces.person1(i), traces.person2(i), time);
             }
         }
 
-        // create vertex for each person
-        if (personToVertex.get(person1) == null) {
-            personToVertex.put(person1, new Vertex(person1));
+        // results may shrink once the retention window moves on, even before the batch is merged.
+        ResultCache cache = resultCache;
+        if (expires && cache != null) {
+            cache.clear();
+        }
+        return admitted;
+    }
+
+    /**
+     * merge batches returned by admitAll into the graph in a single merge, rather than
+     * appending them to segments. standing queries aren't offered the traces, so this
+     * is only for loading a tracer before it is queried.
+     *
+     * @param batches admitted traces
+     */
+    void mergeAdmitted(List<TraceBuffer> batches) {
+        TraceBuffer merged = new TraceBuffer();
+        for (TraceBuffer batch : batches) {
+            merged.addAll(batch);
+        }
+
+        synchronized (mergeLock) {
+            publish(merged);
+        }
+    }
+
+    /**
+     * merge traces into the graph as new layers and publish it, dropping expired
+     * partitions, numbering the traces with the next versions, then hand the traces to
+     * the standing queries and schedule a compaction if layers need merging. must be
+     * called holding mergeLock.
+     *
+     * @param merged traces to add to the graph
+     */
+    private void publish(TraceBuffer merged) {
+        merged.assignVersions(version + 1);
+        version += merged.size();
+
+        long oldestKey = retention.oldestKeptKey(newestTime.get());
+        PartitionedGraph next = graph.merge(merged, Math.max(graph.personCount(), persons.size()), retention);
+        PartitionedGraph kept = next.dropBefore(oldestKey);
+
+        // results may shrink when traces expire, which invalidation by new traces doesn't catch.
+        ResultCache cache = resultCache;
+        if (kept != next && cache != null) {
+            cache.clear();
+        }
+        graph = kept;
+        // published before the standing queries are told, so a query registered meanwhile
+        // either starts from this graph or is told about the traces.
+        for (StandingQuery query : standingQueries) {
+            query.published(merged, kept);
+        }
+        scheduleCompaction();
+        contactTimes.headMap(oldestKey).clear();
+        if (unlogged != null) {
+            unlogged.addAll(merged);
+        }
+    }
+
+    /**
+     * get the frozen contact graph, first merging in any traces appended to segments
+     * since the graph was built.
+     *
+     * queries hold no lock while reading the graph, and find out whether there are new
+     * traces from a counter rather than by looking at segments. only a query which finds
+     * new traces takes mergeLock, and only to freeze them into a new layer of each
+     * partition they fall in, built from the new traces alone, so it takes time
+     * proportional to the new traces rather than to the graph. merging layers is left to
+     * a background compaction, which builds each merged layer without holding mergeLock.
+     *
+     * segments which are full and merged are dropped, as are segments whose writer has
+     * added nothing since the last two merges, which are retired so their writer starts
+     * a new segment. partitions which have expired are dropped too. a query already
+     * holding the previous graph keeps reading it unchanged.
+     *
+     * runtime: O(1) if there are no new traces, otherwise O(s + L log L + n log n) where
+     * s is the number of segments not yet dropped, L is the number of layers and n is
+     * the number of new traces
+     *
+     * @return graph holding every unexpired trace added before the call
+     */
+    PartitionedGraph graph() {
+        // drainedCount is written after graph, so a query which sees every trace drained also sees the graph holding them.
+        if (appendedCount.sum() <= drainedCount) {
+            return graph;
+        }
+
+        synchronized (mergeLock) {
+            TraceBuffer merged = new TraceBuffer();
+            ArrayList<Segment> drainedSegments = new ArrayList<>();
+            ArrayList<Integer> drainedSizes = new ArrayList<>();
+
+            Iterator<Segment> iterator = segments.iterator();
+            while (iterator.hasNext()) {
+                Segment segment = iterator.next();
+                if (!segment.isDrained()) {
+                    drainedSegments.add(segment);
+                    drainedSizes.add(segment.copyUndrained(merged));
+                } else if (segment.retireIfIdle()) {
+                    iterator.remove();
+                }
+            }
+            if (!merged.isEmpty()) {
+                publish(merged);
+            }
+
+            // only mark segments drained once the graph holding their traces is published,
+            // so a query that sees nothing left to merge also sees the new graph.
+            for (int i = 0; i < drainedSegments.size(); i++) {
+                Segment segment = drainedSegments.get(i);
+                segment.drained = drainedSizes.get(i);
+                if (segment.isFull() && segment.isDrained()) {
+                    segments.remove(segment);
+                }
+            }
+            drainedCount += merged.size();
+            return graph;
         }
+    }
+
+    /**
+     * @return the number of segments not yet dropped
+     */
+    int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return the number of query states in the pool, not in use by a query
+     */
+    int pooledScratchCount() {
+        return scratchPool.size();
+    }
 
-        if (personToVertex.get(person2) == null) {
-            personToVertex.put(person2, new Vertex(person2));
+    /**
+     * schedule a compaction of the graph's layers, unless one is already scheduled or
+     * running, or no layers need merging.
+     */
+    private void scheduleCompaction() {
+        if (graph.nextCompaction() >= 0 && compacting.compareAndSet(false, true)) {
+            COMPACTION_EXECUTOR.execute(this::compactLayers);
         }
+    }
+
+    /**
+     * merge layers of the graph until none need merging. each merged layer is built
+     * without holding mergeLock, which is only taken to swap it into the graph, so new
+     * traces are frozen and queries answered meanwhile.
+     */
+    private void compactLayers() {
+        try {
+            PartitionedGraph current = graph;
+            int i;
+            while ((i = current.nextCompaction()) >= 0) {
+                ContactGraph older = current.layer(i);
+                ContactGraph newer = current.layer(i + 1);
+                ContactGraph merged = PartitionedGraph.mergeLayers(older, newer, current.personCount());
 
-        edges.add(new Edge(person2, time));
+                synchronized (mergeLock) {
+                    // layers are never changed, so the merged layer still holds the same traces,
+                    // though the graph may have gained layers or dropped partitions meanwhile.
+                    graph = graph.replaceLayers(older, newer, merged);
+                    current = graph;
+                }
+            }
+        } finally {
+            compacting.set(false);
+        }
+        // a layer published after the last check, but before the flag was cleared, needs another run.
+        scheduleCompaction();
     }
 
+    /**
+     * key identifying an unordered pair of person ids.
+     *
+     * @param person1 id of person one
+     * @param person2 id of person two
+     * @return the same key whichever way round the persons are given
+     */
+    private static long pairKey(int person1, int person2) {
+        int low = Math.min(person1, person2);
+        int high = Math.max(person1, person2);
+        return ((long) low << 32) | high;
+    }
 
     /**
      * Gets a list of times that person1 and person2 have come into direct 
@@ -91,38 +651,110 @@ public class ContactTracer {
      */
     public List<Integer> getContactTimes(String person1, String person2) {
         // TODO: implement this!
-        // an arraylist to collect directed contact time between both persons
-        ArrayList<Integer> contactTimes = new ArrayList<>();
-
-        // if the graph does not contain both person then return a empty list.
-        if (!graph.containsKey(person1) && !graph.containsKey(person2))
-            return contactTimes;
-
-        // if the graph contain person1 then check if person1 contain an edge to person2,
-        // if contain then add into list.
-        if (graph.containsKey(person1)) {
-            for (Edge edge : graph.get(person1)) {
-                if (edge.personTo.equals(person2)) {
-                    if (!contactTimes.contains(edge.time))
-                        contactTimes.add(edge.time);
-                }
+        TracerMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return lookupContactTimes(person1, person2);
+        }
+        long startTime = System.nanoTime();
+        try {
+            return lookupContactTimes(person1, person2);
+        } finally {
+            metrics.record(TracerMetrics.Operation.GET_CONTACT_TIMES, System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * get the contact times of two persons, as described by getContactTimes.
+     *
+     * @param person1 name of person one
+     * @param person2 name of person two
+     * @return a list of contact times, in ascending order.
+     */
+    private List<Integer> lookupContactTimes(String person1, String person2) {
+        int id1 = persons.id(person1);
+        int id2 = persons.id(person2);
+
+        // if both persons have never been in contact then return a empty list.
+        if (id1 < 0 || id2 < 0) {
+            return Collections.emptyList();
+        }
+
+        // partitions are in time order and each keeps its times sorted on insertion,
+        // so the times only need joining together, not sorting.
+        long pair = pairKey(id1, id2);
+        ArrayList<int[]> partitionTimes = new ArrayList<>();
+        int total = 0;
+        for (ConcurrentHashMap<Long, int[]> partition
+                : contactTimes.tailMap(retention.oldestKeptKey(newestTime.get())).values()) {
+            int[] times = partition.get(pair);
+            if (times != null) {
+                partitionTimes.add(times);
+                total += times.length;
             }
         }
 
-        // if the graph contain person2 then check if person1 contain an edge to person1,
-        // if contain then add into list.
-        if (graph.containsKey(person2)) {
-            for (Edge edge : graph.get(person2)) {
-                if (edge.personTo.equals(person1)) {
-                    if (!contactTimes.contains(edge.time))
-                        contactTimes.add(edge.time);
+        if (partitionTimes.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (partitionTimes.size() == 1) {
+            return new ContactTimeList(partitionTimes.get(0));
+        }
+
+        int[] times = new int[total];
+        int size = 0;
+        for (int[] partition : partitionTimes) {
+            System.arraycopy(partition, 0, times, size, partition.length);
+            size += partition.length;
+        }
+        return new ContactTimeList(times);
+    }
+
+    /**
+     * record a contact time for the pair of persons, keeping the pair's times sorted.
+     * the times array is replaced rather than modified, so lists handed out by
+     * getContactTimes never change underneath the caller.
+     *
+     * runtime: O(log k + k) where k is the number of contacts between the pair in the partition
+     *
+     * @param partition key of the time partition holding the contact
+     * @param person1 id of person one
+     * @param person2 id of person two
+     * @param time contact time
+     * @return false if the contact time is already recorded for the pair, otherwise true
+     */
+    private boolean addContactTime(long partition, int person1, int person2, int time) {
+        long pair = pairKey(person1, person2);
+        ConcurrentHashMap<Long, int[]> contactTimes = this.contactTimes.get(partition);
+        if (contactTimes == null) {
+            contactTimes = this.contactTimes.computeIfAbsent(partition, (k) -> new ConcurrentHashMap<>());
+        }
+
+        // retry if another thread changed the pair's times between reading and replacing them.
+        while (true) {
+            int[] times = contactTimes.get(pair);
+
+            if (times == null) {
+                if (contactTimes.putIfAbsent(pair, new int[] {time}) == null) {
+                    return true;
                 }
+                continue;
+            }
+
+            int index = Arrays.binarySearch(times, time);
+            if (index >= 0) {
+                return false;
             }
-        }
 
-        // sort contact times by ascending order.
-        Collections.sort(contactTimes);
-        return contactTimes;
+            // insert time at its sorted position.
+            int insertion = -(index + 1);
+            int[] newTimes = new int[times.length + 1];
+            System.arraycopy(times, 0, newTimes, 0, insertion);
+            newTimes[insertion] = time;
+            System.arraycopy(times, insertion, newTimes, insertion + 1, times.length - insertion);
+            if (contactTimes.replace(pair, times, newTimes)) {
+                return true;
+            }
+        }
     }
 
     /**
@@ -132,25 +764,57 @@ public class ContactTracer {
      * @param person to list direct contacts of
      * @return set of the person's direct contacts
      */
-    private HashSet<Edge> contactEdges; // a hashset contain all edges out from the person input below.
     public Set<String> getContacts(String person) {
         // TODO: implement this!
+        TracerMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return lookupContacts(person);
+        }
+        long startTime = System.nanoTime();
+        try {
+            return lookupContacts(person);
+        } finally {
+            metrics.record(TracerMetrics.Operation.GET_CONTACTS, System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * get the direct contacts of a person, as described by getContacts.
+     *
+     * @param person to list direct contacts of
+     * @return set of the person's direct contacts
+     */
+    private Set<String> lookupContacts(String person) {
+        return lookupContacts(graph(), person, Long.MAX_VALUE);
+    }
+
+    /**
+     * get the direct contacts of a person in the given frozen graph.
+     *
+     * @param graph frozen contact graph
+     * @param person to list direct contacts of
+     * @param version version of the newest trace to use
+     * @return set of the person's direct contacts
+     */
+    private Set<String> lookupContacts(PartitionedGraph graph, String person, long version) {
         // a hashset contain all persons who have directed contact with person input.
         HashSet<String> contacts = new HashSet<>();
-        contactEdges = new HashSet<>();
+        int id = persons.id(person);
 
-        for (String vertex : graph.keySet()) {
-            if (vertex.equals(person)) {
-                for (Edge edge : graph.get(person)) {
-                    contacts.add(edge.personTo);
-                    contactEdges.add(edge);
-                }
-            } else {
-                for (Edge edge : graph.get(vertex)) {
-                    if (edge.personTo.equals(person)) {
-                        contacts.add(vertex);
-                        contactEdges.add(edge);
-                    }
+        if (id < 0) {
+            return contacts;
+        }
+
+        for (int k = 0; k < graph.layerCount(); k++) {
+            ContactGraph layer = graph.layer(k);
+            if (layer.minVersion() > version) {
+                continue;
+            }
+            boolean filter = layer.maxVersion() > version;
+            int end = layer.rowEnd(id);
+            for (int i = layer.rowStart(id); i < end; i++) {
+                if (!filter || layer.version(i) <= version) {
+                    contacts.add(persons.name(layer.neighbour(i)));
                 }
             }
         }
@@ -168,15 +832,59 @@ public class ContactTracer {
      */
     public Set<String> getContactsAfter(String person, int timestamp) {
         // TODO: implement this!
+        TracerMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return lookupContactsAfter(person, timestamp);
+        }
+        long startTime = System.nanoTime();
+        try {
+            return lookupContactsAfter(person, timestamp);
+        } finally {
+            metrics.record(TracerMetrics.Operation.GET_CONTACTS_AFTER, System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * get the direct contacts of a person at or after a timestamp, as described by getContactsAfter.
+     *
+     * @param person to list direct contacts of
+     * @param timestamp to filter contacts being at or after
+     * @return set of the person's direct contacts at or after the timestamp
+     */
+    private Set<String> lookupContactsAfter(String person, int timestamp) {
+        return lookupContactsAfter(graph(), person, timestamp, Long.MAX_VALUE);
+    }
+
+    /**
+     * get the direct contacts of a person at or after a timestamp in the given frozen graph.
+     *
+     * @param graph frozen contact graph
+     * @param person to list direct contacts of
+     * @param timestamp to filter contacts being at or after
+     * @param version version of the newest trace to use
+     * @return set of the person's direct contacts at or after the timestamp
+     */
+    private Set<String> lookupContactsAfter(PartitionedGraph graph, String person, int timestamp, long version) {
         // a hashset which contain all person which get contact after timestamp.
         HashSet<String> contactsAfter = new HashSet<>();
+        int id = persons.id(person);
 
-        getContacts(person);
+        if (id < 0) {
+            return contactsAfter;
+        }
 
-        // search persons who satisfy the property.
-        for (Edge edge : contactEdges) {
-            if (edge.time >= timestamp) {
-                contactsAfter.add(edge.personTo);
+        // contacts are sorted by time, so skip straight to the first one at or after timestamp.
+        for (int k = 0; k < graph.layerCount(); k++) {
+            ContactGraph layer = graph.layer(k);
+            if (layer.minVersion() > version) {
+                continue;
+            }
+            boolean filter = layer.maxVersion() > version;
+            int end = layer.rowEnd(id);
+            for (int i = layer.lowerBound(id, timestamp); i < end; i++) {
+                if (!filter || layer.version(i) <= version) {
+                    contactsAfter.add(persons.name(layer.neighbour(i)));
+                }
             }
         }
 
@@ -184,10 +892,87 @@ public class ContactTracer {
     }
 
     /**
-     * Initiates a contact trace starting with the given person, who
-     * became contagious at timeOfContagion.
-     * 
-     * Note that the return set shouldn't include the original person the trace started from.
+     * Gets the current version of the tracer. Every trace added is numbered with an
+     * ingest sequence number, its version, in the order it is merged into the graph,
+     * and the tracer's version is that of the newest trace. Recording the version with
+     * a query's answer lets the query be answered again later, as of that version,
+     * using only the traces known then. A tracer opened from a directory numbers its
+     * traces by their position in the log, so versions outlive restarts.
+     *
+     * @return version of the newest trace added before the call, or 0 if there are none
+     */
+    public long getVersion() {
+        graph();
+        return version;
+    }
+
+    /**
+     * Gets the direct contacts of a person using only the traces with versions up to
+     * the given one, as described by getContacts.
+     *
+     * runtime: O(L + d) where L is the number of layers of the graph and d the number of
+     * contacts of the person, skipping layers holding only newer traces
+     *
+     * @param person to list direct contacts of
+     * @param version version of the newest trace to use, from getVersion
+     * @return set of the person's direct contacts as of the version
+     */
+    public Set<String> getContacts(String person, long version) {
+        return timed(TracerMetrics.Operation.GET_CONTACTS, () -> lookupContacts(graph(), person, version));
+    }
+
+    /**
+     * Gets the direct contacts of a person at or after the given timestamp using only
+     * the traces with versions up to the given one, as described by getContactsAfter.
+     *
+     * @param person to list direct contacts of
+     * @param timestamp to filter contacts being at or after
+     * @param version version of the newest trace to use, from getVersion
+     * @return set of the person's direct contacts at or after the timestamp, as of the version
+     */
+    public Set<String> getContactsAfter(String person, int timestamp, long version) {
+        return timed(TracerMetrics.Operation.GET_CONTACTS_AFTER,
+                () -> lookupContactsAfter(graph(), person, timestamp, version));
+    }
+
+    /**
+     * Initiates a contact trace using only the traces with versions up to the given one,
+     * as described by contactTrace. Results as of a version aren't cached.
+     *
+     * @param person to start contact tracing from
+     * @param timeOfContagion the exact time person became contagious
+     * @param mode algorithm to trace with
+     * @param version version of the newest trace to use, from getVersion
+     * @return set of people who may have contracted the disease, originating from person, as of the version
+     * @require mode != null
+     */
+    public Set<String> contactTrace(String person, int timeOfContagion, TraceMode mode, long version) {
+        return timed(TracerMetrics.Operation.CONTACT_TRACE,
+                () -> contactTrace(graph(), person, timeOfContagion, mode, null, 0, null, version));
+    }
+
+    /**
+     * Gets every trace with a time between from and to, inclusive, in time order. The
+     * range reads the time sorted trace columns of the graph as it is when this is called,
+     * so later traces aren't in it.
+     *
+     * runtime: O(L log n) to find the range, then O(1) per trace read from it, or O(l) in
+     * a partition with l layers, where L is the number of layers and n the number of
+     * traces in each
+     *
+     * @param from the earliest time of a trace
+     * @param to the latest time of a trace
+     * @return the traces in the range
+     */
+    public TraceRange getTracesBetween(int from, int to) {
+        return TraceRange.of(graph(), persons, from, to);
+    }
+
+    /**
+     * Initiates a contact trace starting with the given person, who
+     * became contagious at timeOfContagion.
+     * 
+     * Note that the return set shouldn't include the original person the trace started from.
      * 
      * @param person to start contact tracing from
      * @param timeOfContagion the exact time person became contagious
@@ -195,69 +980,1195 @@ public class ContactTracer {
      */
     public Set<String> contactTrace(String person, int timeOfContagion) {
         // TODO: implement this!
+        return contactTrace(person, timeOfContagion, TraceMode.DIJKSTRA);
+    }
+
+    /**
+     * Initiates a contact trace starting with the given person, who
+     * became contagious at timeOfContagion, using the given algorithm.
+     *
+     * @param person to start contact tracing from
+     * @param timeOfContagion the exact time person became contagious
+     * @param mode algorithm to trace with
+     * @return set of people who may have contracted the disease, originating from person
+     * @require mode != null
+     */
+    public Set<String> contactTrace(String person, int timeOfContagion, TraceMode mode) {
+        TracerMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return cachedContactTrace(person, timeOfContagion, mode);
+        }
+        long startTime = System.nanoTime();
+        try {
+            return cachedContactTrace(person, timeOfContagion, mode);
+        } finally {
+            metrics.record(TracerMetrics.Operation.CONTACT_TRACE, System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * run a contact trace against the current graph, answering from and filling the
+     * result cache if it is on.
+     *
+     * @param person to start contact tracing from
+     * @param timeOfContagion the exact time person became contagious
+     * @param mode algorithm to trace with
+     * @return set of people who may have contracted the disease, originating from person
+     */
+    private Set<String> cachedContactTrace(String person, int timeOfContagion, TraceMode mode) {
+        ResultCache cache = resultCache;
+        int source = persons.id(person);
+        if (cache == null || source < 0) {
+            return contactTrace(graph(), person, timeOfContagion, mode);
+        }
+
+        Set<String> cached = cache.get(source, timeOfContagion);
+        if (cached != null) {
+            return cached;
+        }
+        // take the epoch before the graph, so any trace missing from the graph is checked against the result.
+        long epoch = cache.epoch();
+        return contactTrace(graph(), person, timeOfContagion, mode, cache, epoch, null, Long.MAX_VALUE);
+    }
+
+    /**
+     * Turns on caching of contactTrace results, replacing any cache already in use.
+     * Cached results are invalidated by new traces which could change them, and all of
+     * them when traces expire.
+     *
+     * Every trace added then takes the cache's lock, so tracers being loaded from many
+     * threads at once should turn on the cache afterwards.
+     *
+     * @param capacity largest total number of persons held by the cached results
+     * @throws IllegalArgumentException if capacity <= 0
+     */
+    public void enableResultCache(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        resultCache = new ResultCache(capacity);
+    }
+
+    /**
+     * Turns off caching of contactTrace results.
+     */
+    public void disableResultCache() {
+        resultCache = null;
+    }
+
+    /**
+     * @return the cache of contactTrace results, with its hit, miss, eviction and
+     *         invalidation counters, or null if caching is off
+     */
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Turns on metrics, starting from zero: latency histograms of addTrace, getContactTimes,
+     * getContacts, getContactsAfter and contactTrace, totals of the work done by contact
+     * trace queries, and a (@see ContactTraceEvent) JFR event for each query.
+     *
+     * While metrics are off, each operation only reads one field to find that out.
+     *
+     * @return the metrics being recorded
+     */
+    public TracerMetrics enableMetrics() {
+        TracerMetrics enabled = new TracerMetrics();
+        metrics = enabled;
+        return enabled;
+    }
+
+    /**
+     * Turns off metrics.
+     */
+    public void disableMetrics() {
+        metrics = null;
+    }
+
+    /**
+     * @return the metrics being recorded, or null if metrics are off
+     */
+    public TracerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Initiates a contact trace from each of the given seeds, splitting the seeds
+     * between the threads of the common ForkJoinPool.
+     *
+     * @param seeds persons to start contact tracing from, and when each became contagious
+     * @param mode algorithm to trace with
+     * @return for each seed, in the same order, the set of people who may have contracted
+     *         the disease from that seed
+     * @require seeds != null && mode != null
+     */
+    public List<Set<String>> contactTraceAll(List<Seed> seeds, TraceMode mode) {
+        return contactTraceAll(seeds, mode, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Initiates a contact trace from each of the given seeds, splitting the seeds
+     * between the threads of the given pool.
+     *
+     * Every seed is traced against the same frozen graph, which is never modified,
+     * so the traces share nothing but the pool of query state.
+     *
+     * @param seeds persons to start contact tracing from, and when each became contagious
+     * @param mode algorithm to trace with
+     * @param pool pool to run the traces in
+     * @return for each seed, in the same order, the set of people who may have contracted
+     *         the disease from that seed
+     * @require seeds != null && mode != null && pool != null
+     */
+    public List<Set<String>> contactTraceAll(List<Seed> seeds, TraceMode mode, ForkJoinPool pool) {
+        PartitionedGraph graph = graph();
+        Seed[] seedArray = seeds.toArray(new Seed[0]);
+        List<Set<String>> results = new ArrayList<>(Collections.nCopies(seedArray.length, null));
+
+        // each task sets its own indexes, and invoke returns only once every task is done.
+        pool.invoke(new BatchTrace(graph, seedArray, mode, results, 0, seedArray.length));
+        return results;
+    }
+
+    /**
+     * Runs contactTrace on a pool of daemon threads shared by every tracer, one per processor.
+     *
+     * @param person to start contact tracing from
+     * @param timeOfContagion the exact time person became contagious
+     * @param mode algorithm to trace with
+     * @return a future of the set of people who may have contracted the disease, originating from person
+     * @require mode != null
+     */
+    public CompletableFuture<Set<String>> contactTraceAsync(String person, int timeOfContagion, TraceMode mode) {
+        return contactTraceAsync(person, timeOfContagion, mode, ASYNC_EXECUTOR);
+    }
+
+    /**
+     * Runs contactTrace on the given executor, against the graph as it is when this is
+     * called. Identical traces against the same graph running at the same time share one
+     * computation, and each caller gets their own copy of the result. Cancelling the
+     * future detaches the caller, and stops the trace once every caller sharing it has
+     * cancelled.
+     *
+     * @param person to start contact tracing from
+     * @param timeOfContagion the exact time person became contagious
+     * @param mode algorithm to trace with
+     * @param executor executor to run the trace on
+     * @return a future of the set of people who may have contracted the disease, originating from person
+     * @require mode != null && executor != null
+     */
+    public CompletableFuture<Set<String>> contactTraceAsync(String person, int timeOfContagion, TraceMode mode,
+                                                            Executor executor) {
+        ResultCache cache = resultCache;
+        int source = persons.id(person);
+        long epoch = 0;
+        if (cache != null && source >= 0) {
+            Set<String> cached = cache.get(source, timeOfContagion);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+            epoch = cache.epoch();
+        } else {
+            cache = null;
+        }
+
+        // the graph is part of the key, so only traces of the same snapshot are shared.
+        PartitionedGraph graph = graph();
+        ResultCache queryCache = cache;
+        long queryEpoch = epoch;
+        return coalescer.submit(List.of(TracerMetrics.Operation.CONTACT_TRACE, graph, person, timeOfContagion, mode),
+                (cancelled) -> timed(TracerMetrics.Operation.CONTACT_TRACE,
+                        () -> contactTrace(graph, person, timeOfContagion, mode, queryCache, queryEpoch, cancelled,
+                                Long.MAX_VALUE)),
+                HashSet::new, executor);
+    }
+
+    /**
+     * Runs getContacts on a pool of daemon threads shared by every tracer, one per processor.
+     *
+     * @param person to list direct contacts of
+     * @return a future of the set of the person's direct contacts
+     */
+    public CompletableFuture<Set<String>> getContactsAsync(String person) {
+        return getContactsAsync(person, ASYNC_EXECUTOR);
+    }
+
+    /**
+     * Runs getContacts on the given executor, against the graph as it is when this is
+     * called. Identical calls running at the same time share one lookup.
+     *
+     * @param person to list direct contacts of
+     * @param executor executor to run the lookup on
+     * @return a future of the set of the person's direct contacts
+     * @require executor != null
+     */
+    public CompletableFuture<Set<String>> getContactsAsync(String person, Executor executor) {
+        PartitionedGraph graph = graph();
+        return coalescer.submit(List.of(TracerMetrics.Operation.GET_CONTACTS, graph, person),
+                (cancelled) -> timed(TracerMetrics.Operation.GET_CONTACTS,
+                        () -> lookupContacts(graph, person, Long.MAX_VALUE)),
+                HashSet::new, executor);
+    }
+
+    /**
+     * Runs getContactTimes on a pool of daemon threads shared by every tracer, one per processor.
+     *
+     * @param person1 name of person one
+     * @param person2 name of person two
+     * @return a future of the list of contact times, in ascending order
+     * @require person1 != null && person2 != null
+     */
+    public CompletableFuture<List<Integer>> getContactTimesAsync(String person1, String person2) {
+        return getContactTimesAsync(person1, person2, ASYNC_EXECUTOR);
+    }
+
+    /**
+     * Runs getContactTimes on the given executor, against the graph as it is when this is
+     * called. Identical calls running at the same time share one lookup. The times of a
+     * pair are replaced rather than modified, so the list is a snapshot which never changes.
+     *
+     * @param person1 name of person one
+     * @param person2 name of person two
+     * @param executor executor to run the lookup on
+     * @return a future of the list of contact times, in ascending order
+     * @require person1 != null && person2 != null && executor != null
+     */
+    public CompletableFuture<List<Integer>> getContactTimesAsync(String person1, String person2, Executor executor) {
+        // the graph is part of the key, so a caller never joins a lookup begun before its own addTrace.
+        PartitionedGraph graph = graph();
+        return coalescer.submit(List.of(TracerMetrics.Operation.GET_CONTACT_TIMES, graph, person1, person2),
+                (cancelled) -> timed(TracerMetrics.Operation.GET_CONTACT_TIMES,
+                        () -> lookupContactTimes(person1, person2)),
+                (times) -> times, executor);
+    }
+
+    /**
+     * run a query, recording its latency if metrics are on.
+     *
+     * @param operation operation the query is timed as
+     * @param query the query
+     * @return result of the query
+     */
+    private <T> T timed(TracerMetrics.Operation operation, Supplier<T> query) {
+        TracerMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return query.get();
+        }
+        long startTime = System.nanoTime();
+        try {
+            return query.get();
+        } finally {
+            metrics.record(operation, System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Registers a standing contact trace starting with the given person, who became
+     * contagious at timeOfContagion. The query is traced once now, and from then on
+     * each trace added updates it incrementally, handing the persons it newly reaches
+     * to the listener.
+     *
+     * A new trace only does work for the query when one of its persons was already
+     * reached at least INCUBATION_PERIOD before it and it reaches the other person
+     * earlier than before, so most traces cost the query O(1).
+     *
+     * Persons stay reached once reached, even if the traces that reached them later
+     * expire under the tracer's retention policy.
+     *
+     * The query reads the graph as last published rather than merging new traces into
+     * it, and keeps the traces offered to it since then itself. A person no trace has
+     * been added for yet isn't added to the tracer, and is looked up again as traces
+     * are added.
+     *
+     * @param person to start contact tracing from
+     * @param timeOfContagion the exact time person became contagious
+     * @param listener called with the persons newly reached by each trace added
+     * @return the registered query
+     * @require person != null && listener != null
+     */
+    public StandingQuery watch(String person, int timeOfContagion, TraceListener listener) {
+        StandingQuery query = new StandingQuery(person, timeOfContagion, listener);
+        // merge the traces added before the call without holding the query's lock, which
+        // a merge takes to hand traces to registered queries.
+        graph();
+
+        // register before reading the graph, so a trace added meanwhile is either in the
+        // graph traced here, or offered to the query, or handed to it once merged.
+        synchronized (query) {
+            standingQueries.add(query);
+            query.start();
+        }
+        return query;
+    }
+
+    /**
+     * Receives the persons newly reached by a (@see StandingQuery).
+     */
+    public interface TraceListener {
+        /**
+         * Called by the thread adding a trace, or merging traces into the graph, while
+         * it holds the query's lock, so it should return quickly and must not add
+         * traces itself.
+         *
+         * @param reached persons reached by the trace just added who weren't reached before
+         */
+        void reached(Set<String> reached);
+    }
+
+    /**
+     * A contact trace kept up to date as traces are added, returned by watch.
+     *
+     * The earliest contact time of every person reached is kept between traces, so a
+     * new trace is relaxed like a single edge of dijkstra, and only persons whose time
+     * improves are propagated from. Propagation reads the last published graph, plus
+     * the traces offered to the query which aren't in it yet, which the query keeps
+     * until a merge hands them over, so adding a trace only merges the graph once
+     * PENDING_LIMIT contacts are pending, even if nothing else queries the tracer.
+     */
+    public class StandingQuery {
+        private static final int UNREACHED = Integer.MAX_VALUE; // time of a person not yet reached.
+        private static final int PENDING_LIMIT = 2 * SEGMENT_SIZE; // pending contacts at which adding a trace merges the graph.
+
+        private final String sourceName; // name of the person the trace started from.
+        private final int timeOfContagion; // the exact time the source became contagious.
+        private final TraceListener listener; // told about persons newly reached.
+        private int source = -1; // id of the source, or -1 until a trace has been added for them.
+        private int[] time = new int[0]; // earliest contact time of each person, indexed by id.
+        private final HashSet<String> reached = new HashSet<>(); // every person reached so far.
+        private final HashSet<String> delta = new HashSet<>(); // persons reached by the trace being added.
+        private final PriorityQueue<Priority<Integer>> pq = new PriorityQueue<>(); // persons to propagate from.
+        private final HashMap<Integer, ArrayList<Long>> pending = new HashMap<>(); // contacts of offered traces not yet in the graph, packed as (time, neighbour), by person.
+        private int pendingCount; // number of contacts in pending.
+
+        StandingQuery(String sourceName, int timeOfContagion, TraceListener listener) {
+            this.sourceName = sourceName;
+            this.timeOfContagion = timeOfContagion;
+            this.listener = listener;
+        }
+
+        /**
+         * @return a copy of the set of people who may have contracted the disease so far
+         */
+        public synchronized Set<String> getReached() {
+            return new HashSet<>(reached);
+        }
+
+        /**
+         * Stops updating the query. Traces added afterwards aren't offered to it.
+         */
+        public void close() {
+            standingQueries.remove(this);
+        }
+
+        /**
+         * @return the number of contacts of offered traces not yet handed over by a merge
+         */
+        synchronized int pendingCount() {
+            return pendingCount;
+        }
+
+        /**
+         * trace the query over the last published graph. the listener isn't told about the persons reached.
+         */
+        synchronized void start() {
+            PartitionedGraph graph = ContactTracer.this.graph;
+            ensureCapacity(graph.personCount());
+            resolveSource();
+            propagate(graph);
+            delta.clear();
+        }
+
+        /**
+         * update the query with a trace being added, telling the listener about anyone
+         * newly reached. the trace is kept as pending until it is published.
+         *
+         * @param person1 id of person one
+         * @param person2 id of person two
+         * @param contactTime time of the contact
+         * @return true if PENDING_LIMIT contacts are pending, so the graph should be merged
+         */
+        synchronized boolean offer(int person1, int person2, int contactTime) {
+            ensureCapacity(Math.max(person1, person2) + 1);
+            resolveSource();
+            pending.computeIfAbsent(person1, (id) -> new ArrayList<>()).add(pack(contactTime, person2));
+            pending.computeIfAbsent(person2, (id) -> new ArrayList<>()).add(pack(contactTime, person1));
+            pendingCount += 2;
+
+            relax(person1, person2, contactTime);
+            relax(person2, person1, contactTime);
+            if (!pq.isEmpty()) {
+                propagate(graph);
+            }
+            report();
+            return pendingCount >= PENDING_LIMIT;
+        }
+
+        /**
+         * take traces just merged into the graph out of pending, relaxing any which were
+         * never offered to the query, telling the listener about anyone newly reached.
+         *
+         * runtime: O(n d) where n is the number of traces and d the most pending contacts of a person
+         *
+         * @param merged traces just merged
+         * @param graph graph holding them
+         */
+        synchronized void published(TraceBuffer merged, PartitionedGraph graph) {
+            ensureCapacity(graph.personCount());
+            resolveSource();
+            for (int i = 0; i < merged.size(); i++) {
+                int person1 = merged.person1(i);
+                int person2 = merged.person2(i);
+                int contactTime = merged.time(i);
+                boolean wasPending = removePending(person1, person2, contactTime);
+                if (!removePending(person2, person1, contactTime) && !wasPending) {
+                    relax(person1, person2, contactTime);
+                    relax(person2, person1, contactTime);
+                }
+            }
+            if (!pq.isEmpty()) {
+                propagate(graph);
+            }
+            report();
+        }
+
+        /**
+         * look up the source, if it hasn't been found yet, and queue them to propagate from.
+         */
+        private void resolveSource() {
+            if (source >= 0) {
+                return;
+            }
+            source = persons.id(sourceName);
+            if (source >= 0) {
+                ensureCapacity(source + 1);
+                time[source] = timeOfContagion - INCUBATION_PERIOD;
+                pq.add(new Priority<>(time[source], source));
+            }
+        }
+
+        /**
+         * hand the persons newly reached to the listener.
+         */
+        private void report() {
+            if (!delta.isEmpty()) {
+                Set<String> newlyReached = new HashSet<>(delta);
+                delta.clear();
+                listener.reached(Collections.unmodifiableSet(newlyReached));
+            }
+        }
+
+        /**
+         * remove one pending contact of a person.
+         *
+         * @return true if the contact was pending
+         */
+        private boolean removePending(int person, int neighbour, int contactTime) {
+            ArrayList<Long> contacts = pending.get(person);
+            if (contacts == null || !contacts.remove((Long) pack(contactTime, neighbour))) {
+                return false;
+            }
+            if (contacts.isEmpty()) {
+                pending.remove(person);
+            }
+            pendingCount--;
+            return true;
+        }
+
+        /**
+         * run dijkstra from the persons in the queue, relaxing each of their later contacts
+         * in the graph and in pending.
+         *
+         * @param graph frozen contact graph.
+         */
+        private void propagate(PartitionedGraph graph) {
+            ensureCapacity(graph.personCount());
+
+            while (!pq.isEmpty()) {
+                Priority<Integer> top = pq.poll();
+                int u = top.element;
+
+                // skip queue entries which have been improved since they were added.
+                if (top.priority != time[u]) {
+                    continue;
+                }
+
+                for (int k = 0; k < graph.layerCount(); k++) {
+                    ContactGraph layer = graph.layer(k);
+                    int end = layer.rowEnd(u);
+                    for (int i = layer.lowerBound(u, top.priority + INCUBATION_PERIOD); i < end; i++) {
+                        relax(u, layer.neighbour(i), layer.time(i));
+                    }
+                }
+                ArrayList<Long> contacts = pending.get(u);
+                if (contacts != null) {
+                    for (long contact : contacts) {
+                        relax(u, (int) contact, (int) (contact >> 32));
+                    }
+                }
+            }
+        }
+
+        /**
+         * record that from passed the disease on to to at the given time, if from was
+         * contagious by then and it is to's earliest contact, queueing to to propagate from.
+         *
+         * @param from id of the person who may pass the disease on
+         * @param to id of the person in contact with from
+         * @param contactTime time of the contact
+         */
+        private void relax(int from, int to, int contactTime) {
+            if (to == source || time[from] == UNREACHED || time[from] + INCUBATION_PERIOD > contactTime
+                    || contactTime >= time[to]) {
+                return;
+            }
+
+            if (time[to] == UNREACHED) {
+                String name = persons.name(to);
+                reached.add(name);
+                delta.add(name);
+            }
+            time[to] = contactTime;
+            pq.add(new Priority<>(contactTime, to));
+        }
+
+        /**
+         * pack a pending contact into a long.
+         */
+        private long pack(int contactTime, int neighbour) {
+            return ((long) contactTime << 32) | (neighbour & 0xFFFFFFFFL);
+        }
+
+        /**
+         * grow the time array to hold persons with ids below capacity.
+         *
+         * @param capacity number of persons
+         */
+        private void ensureCapacity(int capacity) {
+            if (time.length < capacity) {
+                int oldLength = time.length;
+                time = Arrays.copyOf(time, Math.max(capacity, oldLength * 2));
+                Arrays.fill(time, oldLength, time.length, UNREACHED);
+            }
+        }
+    }
+
+    /**
+     * Estimates how many people each person could reach with a contact trace starting
+     * at timeOfContagion, for every person at once, using the common ForkJoinPool and
+     * ReachSketches.DEFAULT_PRECISION.
+     *
+     * @param timeOfContagion the time every person is taken to become contagious
+     * @return the estimates
+     */
+    public ReachSketches estimateReach(int timeOfContagion) {
+        return estimateReach(timeOfContagion, ReachSketches.DEFAULT_PRECISION, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Estimates how many people each person could reach with a contact trace starting
+     * at timeOfContagion, for every person at once, rather than running contactTrace
+     * from each of them.
+     *
+     * Each person's reach is kept as a HyperLogLog sketch of 2^precision one byte
+     * registers, which are built in a single backward pass over the traces, with the
+     * registers split between the threads of the pool.
+     *
+     * @param timeOfContagion the time every person is taken to become contagious
+     * @param precision log2 of the number of registers per person, from
+     *                  ReachSketches.MIN_PRECISION to ReachSketches.MAX_PRECISION
+     * @param pool pool to build the sketches in
+     * @return the estimates
+     * @throws IllegalArgumentException if precision is out of range
+     * @require pool != null
+     */
+    public ReachSketches estimateReach(int timeOfContagion, int precision, ForkJoinPool pool) {
+        return ReachSketches.build(graph(), persons, timeOfContagion, precision, pool);
+    }
+
+    /**
+     * A fork-join task tracing a range of seeds, split in half until each half is small.
+     */
+    private class BatchTrace extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int THRESHOLD = 4; // traces run in one task without splitting further.
+
+        private final PartitionedGraph graph;
+        private final Seed[] seeds;
+        private final TraceMode mode;
+        private final List<Set<String>> results;
+        private final int from;
+        private final int to;
+
+        BatchTrace(PartitionedGraph graph, Seed[] seeds, TraceMode mode, List<Set<String>> results, int from, int to) {
+            this.graph = graph;
+            this.seeds = seeds;
+            this.mode = mode;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    results.set(i, contactTrace(graph, seeds[i].getPerson(), seeds[i].getTimeOfContagion(), mode));
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BatchTrace(graph, seeds, mode, results, from, mid),
+                        new BatchTrace(graph, seeds, mode, results, mid, to));
+            }
+        }
+    }
+
+    /**
+     * run a contact trace against the given frozen graph.
+     *
+     * @param graph frozen contact graph.
+     * @param person to start contact tracing from
+     * @param timeOfContagion the exact time person became contagious
+     * @param mode algorithm to trace with
+     * @return set of people who may have contracted the disease, originating from person
+     */
+    private Set<String> contactTrace(PartitionedGraph graph, String person, int timeOfContagion, TraceMode mode) {
+        return contactTrace(graph, person, timeOfContagion, mode, null, 0, null, Long.MAX_VALUE);
+    }
+
+    /**
+     * run a contact trace against the given frozen graph, then cache the result.
+     *
+     * @param graph frozen contact graph.
+     * @param person to start contact tracing from
+     * @param timeOfContagion the exact time person became contagious
+     * @param mode algorithm to trace with
+     * @param cache cache to put the result in, or null to not cache it
+     * @param epoch the cache's epoch before graph was taken
+     * @param cancelled flag which stops the trace once set, or null if it can't be cancelled
+     * @param version version of the newest trace to use
+     * @return set of people who may have contracted the disease, originating from person
+     * @throws CancellationException if cancelled was set before the trace finished
+     */
+    private Set<String> contactTrace(PartitionedGraph graph, String person, int timeOfContagion, TraceMode mode,
+                                     ResultCache cache, long epoch, AtomicBoolean cancelled, long version) {
         HashSet<String> contactTrace = new HashSet<>();
-        dijkstra(graph, person, timeOfContagion);
+        int source = persons.id(person);
+
+        // persons added after the graph was frozen have no contacts in it.
+        if (source < 0 || source >= graph.personCount()) {
+            return contactTrace;
+        }
 
-        for (String candidate : personToVertex.keySet()) {
-            if (personToVertex.get(candidate).traced) {
-                contactTrace.add(candidate);
+        TraceScratch scratch = acquireScratch(graph.personCount());
+        scratch.cancelled = cancelled;
+        scratch.version = version;
+        TracerMetrics metrics = this.metrics;
+        ContactTraceEvent event = null;
+        if (metrics != null) {
+            event = new ContactTraceEvent();
+            event.begin();
+        }
+
+        try {
+            if (mode == TraceMode.EARLIEST_ARRIVAL) {
+                earliestArrival(graph, source, timeOfContagion, scratch);
+            } else {
+                dijkstra(graph, source, timeOfContagion, scratch);
+            }
+
+            for (int i = 0; i < scratch.reachedCount; i++) {
+                contactTrace.add(persons.name(scratch.reached[i]));
+            }
+            if (metrics != null) {
+                recordQuery(metrics, event, person, timeOfContagion, mode, scratch);
             }
+            if (cache != null) {
+                cache.put(source, timeOfContagion, contactTrace, scratch.reached, scratch.time, scratch.reachedCount, epoch);
+            }
+        } finally {
+            scratchPool.offer(scratch);
         }
 
         return contactTrace;
     }
 
+    /**
+     * Finds everyone who could have infected the given person, who was infected at
+     * or before timeOfInfection, directly or through others. This is the inverse of
+     * contactTrace: for each person returned, a contact trace starting from them
+     * reaches the given person by timeOfInfection if they became contagious at the
+     * returned time, and not if they became contagious any later.
+     *
+     * Note that the returned map doesn't include the given person.
+     *
+     * runtime: O(L log n + n l) where n is the number of traces at or before timeOfInfection,
+     * L is the number of layers and l is the most layers of any partition
+     *
+     * @param person who tested positive
+     * @param timeOfInfection the latest time person could have been infected
+     * @return each person who could have infected person, mapped to the latest time they
+     *         could have become contagious
+     */
+    public Map<String, Integer> sourceTrace(String person, int timeOfInfection) {
+        HashMap<String, Integer> sources = new HashMap<>();
+        PartitionedGraph graph = graph();
+        int target = persons.id(person);
+
+        if (target < 0 || target >= graph.personCount()) {
+            return sources;
+        }
+
+        TraceScratch scratch = acquireScratch(graph.personCount());
+
+        try {
+            latestDeparture(graph, target, timeOfInfection, scratch);
+
+            for (int i = 0; i < scratch.reachedCount; i++) {
+                int source = scratch.reached[i];
+                sources.put(persons.name(source), scratch.time[source] + INCUBATION_PERIOD);
+            }
+        } finally {
+            scratchPool.offer(scratch);
+        }
+
+        return sources;
+    }
+
+    /**
+     * calculate the latest infection time of each person who can reach the target, with a
+     * single pass over the traces in descending time order.
+     *
+     * a contact at time t lets u infect v if v could be infected as late as t, and then u
+     * must have been infected by t - INCUBATION_PERIOD. scanning backwards in time means the
+     * first trace that reaches a person gives their latest infection time, and as
+     * INCUBATION_PERIOD is positive, a person reached by a trace can't be reached through
+     * another trace at the same time.
+     *
+     * @param graph frozen contact graph.
+     * @param target id of the person who tested positive
+     * @param timeOfInfection latest time the target could have been infected
+     * @param scratch query state to record latest infection times and reached persons in
+     */
+    private void latestDeparture(PartitionedGraph graph, int target, int timeOfInfection, TraceScratch scratch) {
+        scratch.setTime(target, timeOfInfection);
+
+        int end = graph.layerCount();
+        while (end > 0) {
+            int first = graph.partitionStart(end - 1);
+            TraceCursor cursor = new TraceCursor(graph, first, end, Integer.MIN_VALUE, timeOfInfection,
+                    Long.MAX_VALUE, true);
+
+            while (cursor.next()) {
+                int person1 = cursor.person1();
+                int person2 = cursor.person2();
+                int time = cursor.time();
+
+                infectedBy(person1, person2, time, scratch);
+                infectedBy(person2, person1, time, scratch);
+            }
+            end = first;
+        }
+    }
+
+    /**
+     * record that from could have infected to at the given time, if to could be infected
+     * that late and from hasn't been reached already.
+     *
+     * @param from id of the person who may have passed the disease on
+     * @param to id of the person in contact with from
+     * @param time time of the contact
+     * @param scratch query state of the latest departure pass
+     */
+    private static void infectedBy(int from, int to, int time, TraceScratch scratch) {
+        if (scratch.isTraced(to) && !scratch.isTraced(from) && time <= scratch.time[to]) {
+            scratch.setTime(from, time - INCUBATION_PERIOD);
+            scratch.addReached(from);
+        }
+    }
+
+    /**
+     * record the work done by a contact trace query in the metrics and a JFR event.
+     *
+     * @param metrics metrics to record in
+     * @param event event begun before the query, committed here if JFR is recording it
+     * @param person the person the trace started from
+     * @param timeOfContagion the exact time person became contagious
+     * @param mode algorithm the query ran
+     * @param scratch state of the finished query
+     */
+    private static void recordQuery(TracerMetrics metrics, ContactTraceEvent event, String person,
+                                    int timeOfContagion, TraceMode mode, TraceScratch scratch) {
+        metrics.recordQuery(scratch.visited, scratch.relaxed, scratch.peakFrontier);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.person = person;
+            event.timeOfContagion = timeOfContagion;
+            event.mode = mode.name();
+            event.verticesVisited = scratch.visited;
+            event.edgesRelaxed = scratch.relaxed;
+            event.peakFrontier = scratch.peakFrontier;
+            event.reached = scratch.reachedCount;
+            event.commit();
+        }
+    }
+
+    /**
+     * take query state from the pool, or create new state if every pooled one is in use.
+     * the state is reset before being returned.
+     *
+     * @param personCount number of persons the query may reach
+     * @return query state large enough for every person
+     */
+    private TraceScratch acquireScratch(int personCount) {
+        TraceScratch scratch = scratchPool.poll();
+        if (scratch == null) {
+            scratch = new TraceScratch();
+        }
+        scratch.reset(personCount);
+        return scratch;
+    }
+
     /**
      * calculate contact time on each person vertex
-     * @param graph a hashmap shows each person and their contact information.
-     * @param source start person
+     * @param graph frozen contact graph.
+     * @param source id of start person
      * @param timeOfContagion time became contagious
+     * @param scratch query state to record contact times and reached persons in
      */
-    private void dijkstra (HashMap<String, HashSet<Edge>> graph, String source, int timeOfContagion) {
-        PriorityQueue<Priority<Vertex>> pq = new PriorityQueue<>();
-        personToVertex.get(source).time = timeOfContagion;
+    private void dijkstra (PartitionedGraph graph, int source, int timeOfContagion, TraceScratch scratch) {
+        PriorityQueue<Priority<Integer>> pq = new PriorityQueue<>();
+
+        // the source is contagious from timeOfContagion, everyone else INCUBATION_PERIOD after their contact.
+        scratch.setTime(source, timeOfContagion - INCUBATION_PERIOD);
+        pq.add(new Priority<>(timeOfContagion - INCUBATION_PERIOD, source));
+
+        // work counters are kept in locals and only stored once the query is done.
+        long visited = 0;
+        long relaxed = 0;
+        int peakFrontier = 1;
+
+        while(!pq.isEmpty()) {
+            Priority<Integer> top = pq.poll();
+            int u = top.element;
+
+            // skip queue entries which have been improved since they were added.
+            if (top.priority != scratch.time[u]) {
+                continue;
+            }
+
+            int candidateTime = top.priority + INCUBATION_PERIOD;
+            visited++;
+            scratch.checkCancelled();
+
+            for (int k = 0; k < graph.layerCount(); k++) {
+                ContactGraph layer = graph.layer(k);
+                // layers holding only traces newer than the query are skipped, and only
+                // those holding both older and newer traces check each contact's version.
+                if (layer.minVersion() > scratch.version) {
+                    continue;
+                }
+                boolean filter = layer.maxVersion() > scratch.version;
+                int start = layer.lowerBound(u, candidateTime);
+                int end = layer.rowEnd(u);
+                relaxed += end - start;
 
-        for (Edge edge : graph.get(source)) {
-            if (edge.time >= timeOfContagion) {
-                pq.add(new Priority<>(personToVertex.get(edge.personTo).time, personToVertex.get(edge.personTo)));
-                personToVertex.get(edge.personTo).traced = true;
+                for (int i = start; i < end; i++) {
+                    int w = layer.neighbour(i);
+                    int time = layer.time(i);
+
+                    if (w == source || (filter && layer.version(i) > scratch.version)) {
+                        continue;
+                    }
+
+                    if (!scratch.isTraced(w)) {
+                        scratch.setTime(w, time);
+                        scratch.addReached(w);
+                        pq.add(new Priority<>(time, w));
+                    } else if (time < scratch.time[w]) {
+                        scratch.setTime(w, time);
+                        pq.add(new Priority<>(time, w));
+                    }
+                }
             }
+            peakFrontier = Math.max(peakFrontier, pq.size());
         }
 
-        while(!pq.isEmpty()) {
-            Vertex u = pq.poll().element;
+        scratch.visited = visited;
+        scratch.relaxed = relaxed;
+        scratch.peakFrontier = peakFrontier;
+    }
 
-            for (Edge v : graph.computeIfAbsent(u.person, (k) -> new HashSet<>())) {
-                int candidateTime = u.time + 60;
+    /**
+     * calculate contact time on each person vertex with a single pass over the traces in time order.
+     *
+     * scanning in time order means the first trace that reaches a person is their earliest
+     * contact, so each trace is looked at once and no queue is needed. as INCUBATION_PERIOD
+     * is positive, a person reached by a trace can't pass it on through another trace at the
+     * same time, so the order of traces with equal times doesn't matter. partitions cover
+     * increasing time ranges, so scanning them in order, merging the layers of each, keeps
+     * the whole pass in time order.
+     *
+     * runtime: O(L log n + n l) where n is the number of traces at or after timeOfContagion,
+     * L is the number of layers and l is the most layers of any partition
+     *
+     * @param graph frozen contact graph.
+     * @param source id of start person
+     * @param timeOfContagion time became contagious
+     * @param scratch query state to record contact times and reached persons in
+     */
+    private void earliestArrival(PartitionedGraph graph, int source, int timeOfContagion, TraceScratch scratch) {
+        scratch.setTime(source, timeOfContagion - INCUBATION_PERIOD);
+        long relaxed = 0;
+        // persons are reached in time order, so those below contagious in reached are the
+        // ones contagious by now, and the rest are waiting out their incubation.
+        int contagious = 0;
+        int peakPending = 0;
 
-                if (v.time >= candidateTime) {
-                    pq.add(new Priority<>(v.time,personToVertex.get(v.personTo)));
-                    personToVertex.get(v.personTo).time = v.time;
-                    personToVertex.get(v.personTo).traced = true;
+        int first = 0;
+        while (first < graph.layerCount()) {
+            int end = graph.partitionEnd(first);
+            TraceCursor cursor = new TraceCursor(graph, first, end, timeOfContagion, Integer.MAX_VALUE,
+                    scratch.version, false);
+
+            while (cursor.next()) {
+                if ((relaxed++ & CANCEL_CHECK_MASK) == 0) {
+                    scratch.checkCancelled();
+                }
+                int person1 = cursor.person1();
+                int person2 = cursor.person2();
+                int time = cursor.time();
+
+                while (contagious < scratch.reachedCount
+                        && scratch.time[scratch.reached[contagious]] + INCUBATION_PERIOD <= time) {
+                    contagious++;
                 }
+                infect(person1, person2, time, scratch);
+                infect(person2, person1, time, scratch);
+                peakPending = Math.max(peakPending, scratch.reachedCount - contagious);
             }
+            first = end;
+        }
+
+        // the source, and the persons contagious by the last trace, had contacts scanned.
+        scratch.visited = contagious + 1;
+        scratch.relaxed = relaxed;
+        scratch.peakFrontier = peakPending;
+    }
+
+    /**
+     * record that from passed the disease on to to at the given time, if from was contagious
+     * by then and to hasn't been reached already.
+     *
+     * @param from id of the person who may pass the disease on
+     * @param to id of the person in contact with from
+     * @param time time of the contact
+     * @param scratch query state of the earliest arrival pass
+     */
+    private static void infect(int from, int to, int time, TraceScratch scratch) {
+        if (scratch.isTraced(from) && !scratch.isTraced(to) && scratch.time[from] + INCUBATION_PERIOD <= time) {
+            scratch.setTime(to, time);
+            scratch.addReached(to);
         }
     }
 
-    static class Edge {
-        String personTo;
-        int time;
+    /**
+     * A fixed size, append only block of traces written by a single thread.
+     *
+     * The writer fills the arrays before publishing the new size by compare and set, so
+     * any thread that reads size sees every trace below it without locking. A segment
+     * whose writer has gone idle is retired by setting SEALED in its size, after which
+     * the writer's next append fails and it starts a new segment, so segments of threads
+     * which no longer add traces don't stay behind. A full or retired segment never
+     * changes again.
+     */
+    static class Segment {
+        private static final int SEALED = 1 << 30; // set in size once the segment is retired.
+
+        final int[] person1 = new int[SEGMENT_SIZE]; // id of the first person of each trace.
+        final int[] person2 = new int[SEGMENT_SIZE]; // id of the second person of each trace.
+        final int[] time = new int[SEGMENT_SIZE]; // time of each trace.
+        final AtomicInteger size = new AtomicInteger(); // the number of traces published by the writer, with SEALED once retired.
+        volatile int drained; // the number of traces merged into the graph, only written under mergeLock.
+        boolean idle; // whether the last merge found nothing new, only used under mergeLock.
+
+        /**
+         * append a trace. only the thread owning the segment may call this.
+         *
+         * @return false if the segment is full or retired, so the trace wasn't appended
+         */
+        boolean add(int person1, int person2, int time) {
+            int index = size.get();
+            if (index >= SEGMENT_SIZE) {
+                return false;
+            }
+            this.person1[index] = person1;
+            this.person2[index] = person2;
+            this.time[index] = time;
+            // fails if the segment was retired meanwhile, which leaves the slot unread.
+            return size.compareAndSet(index, index + 1);
+        }
+
+        boolean isFull() {
+            return size.get() >= SEGMENT_SIZE;
+        }
 
-        Edge(String personTo, int time) {
-            this.personTo = personTo;
-            this.time = time;
+        boolean isDrained() {
+            return drained == (size.get() & ~SEALED);
+        }
+
+        /**
+         * retire a drained segment the second merge in a row which finds nothing new in it.
+         * must be called holding mergeLock.
+         *
+         * @return true if the segment is retired, and so can be dropped
+         */
+        boolean retireIfIdle() {
+            if (!idle) {
+                idle = true;
+                return false;
+            }
+            int published = drained;
+            // fails if the writer appended meanwhile, in which case the next merge copies it.
+            return published == SEGMENT_SIZE || size.compareAndSet(published, published | SEALED);
+        }
+
+        /**
+         * copy the traces published but not yet drained into the buffer.
+         *
+         * @param buffer buffer to append traces to
+         * @return the size of the segment when it was copied
+         */
+        int copyUndrained(TraceBuffer buffer) {
+            int published = size.get() & ~SEALED;
+            for (int i = drained; i < published; i++) {
+                buffer.add(person1[i], person2[i], time[i]);
+            }
+            idle = false;
+            return published;
         }
     }
 
-    static class Vertex {
-        String person;
-        int time;
-        Boolean traced;
+    /**
+     * A person to start a contact trace from, and the time they became contagious.
+     */
+    public static class Seed {
+        private final String person;
+        private final int timeOfContagion;
 
-        Vertex(String person) {
+        /**
+         * Creates a new seed.
+         *
+         * @param person to start contact tracing from
+         * @param timeOfContagion the exact time person became contagious
+         */
+        public Seed(String person, int timeOfContagion) {
             this.person = person;
-            this.time = 0;
-            this.traced = false;
+            this.timeOfContagion = timeOfContagion;
+        }
+
+        /**
+         * @return person to start contact tracing from
+         */
+        public String getPerson() {
+            return person;
+        }
+
+        /**
+         * @return the exact time person became contagious
+         */
+        public int getTimeOfContagion() {
+            return timeOfContagion;
+        }
+    }
+
+    /**
+     * A read-only list view over a sorted array of contact times.
+     */
+    static class ContactTimeList extends AbstractList<Integer> implements RandomAccess {
+        private final int[] times;
+
+        ContactTimeList(int[] times) {
+            this.times = times;
+        }
+
+        @Override
+        public Integer get(int index) {
+            return times[index];
+        }
+
+        @Override
+        public int size() {
+            return times.length;
+        }
+    }
+
+    /**
+     * State of a single contact trace query, indexed by person id.
+     *
+     * A person's time is only valid when their stamp equals the current generation,
+     * so starting a new query is O(1) rather than clearing every array.
+     */
+    static class TraceScratch {
+        int[] time = new int[0]; // contact time of each person reached.
+        int[] stamp = new int[0]; // generation in which each person was last reached.
+        int[] reached = new int[0]; // ids of persons reached in this query.
+        int reachedCount;
+        int generation;
+        AtomicBoolean cancelled; // flag which stops the query once set, or null if it can't be cancelled.
+        long version; // version of the newest trace the query uses.
+        long visited; // persons whose contacts were scanned by the last query.
+        long relaxed; // contacts scanned by the last query.
+        int peakFrontier; // largest number of persons waiting to be scanned, or to become contagious, at once in the last query.
+
+        /**
+         * start a new query over persons with ids below personCount.
+         *
+         * @param personCount number of persons known to the tracer
+         */
+        void reset(int personCount) {
+            if (time.length < personCount) {
+                int capacity = Math.max(personCount, time.length * 2);
+                time = new int[capacity];
+                stamp = new int[capacity];
+                reached = new int[capacity];
+                generation = 0;
+            }
+
+            generation++;
+            // on overflow, clear the stamps so no old entry can match the new generation.
+            if (generation == 0) {
+                Arrays.fill(stamp, 0);
+                generation = 1;
+            }
+            reachedCount = 0;
+            cancelled = null;
+            version = Long.MAX_VALUE;
+        }
+
+        /**
+         * stop the query if it has been cancelled.
+         *
+         * @throws CancellationException if the query's flag is set
+         */
+        void checkCancelled() {
+            if (cancelled != null && cancelled.get()) {
+                throw new CancellationException();
+            }
+        }
+
+        boolean isTraced(int id) {
+            return stamp[id] == generation;
+        }
+
+        void setTime(int id, int contactTime) {
+            time[id] = contactTime;
+            stamp[id] = generation;
+        }
+
+        void addReached(int id) {
+            reached[reachedCount++] = id;
         }
     }
 
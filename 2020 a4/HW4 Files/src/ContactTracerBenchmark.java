@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A benchmark suite for ContactTracer, run over synthetic traces from (@see TraceGenerator).
+ *
+ * Usage: java ContactTracerBenchmark [traceCount ...] [--full] [--csv file]
+ *
+ * Each trace count is run with traceCount / 10 persons over 28 days, 10^4, 10^5 and 10^6
+ * traces if none are given. --full adds 10^7 traces, which needs a 4 GB heap, e.g.
+ * java -Xmx4g ContactTracerBenchmark --full. For each trace count it measures:
+ *
+ * - ingestion with addTrace, with addTrace while standing queries watch, and with
+ *   TraceLoader from a CSV file.
+ * - getContactTimes, getContacts and getContactsAfter on persons picked by activity.
+ * - contactTrace in both modes from times 1 day, 7 days and 28 days before the end, which
+ *   reach increasingly large parts of the graph.
+ * - sourceTrace from times 1 day, 7 days and 28 days after the start, which trace back
+ *   through increasingly large parts of the graph.
+ * - contactTraceAll of many seeds against tracing them one after another.
+ * - watch, registering a standing query and tracing its source.
+ * - estimateReach over every person at once.
+ *
+ * Every query benchmark is warmed up before it is measured, and every run uses the same
+ * seed, so reports from different builds can be compared line by line. The report has one
+ * line per benchmark, and is also written as CSV if a file is given.
+ */
+public class ContactTracerBenchmark {
+    private static final long SEED = 3506; // seed of the generated traces and queries.
+    private static final int DAYS = 28; // days the traces are spread over.
+    private static final int QUERY_COUNT = 2000; // operations measured by each query benchmark.
+    private static final int TRACE_COUNT = 100; // operations measured by each contactTrace benchmark.
+    private static final int WATCH_COUNT = 10; // standing queries registered while ingesting.
+    private static final int REACH_COUNT = 3; // operations measured by the estimateReach benchmark.
+    private static final String FORMAT = "%-9s %-36s %9s %12s %12s %12s %14s %s%n";
+
+    private final List<String> rows = new ArrayList<>(); // the report, as CSV lines.
+    private long sink; // results of every operation, so none is optimised away.
+
+    /**
+     * An operation being measured.
+     */
+    private interface Operation {
+        /**
+         * @param i index of the run
+         * @return any value depending on the result
+         */
+        long run(int i);
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<Integer> traceCounts = new ArrayList<>();
+        Path csv = null;
+        boolean full = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--csv")) {
+                csv = Paths.get(args[++i]);
+            } else if (args[i].equals("--full")) {
+                full = true;
+            } else {
+                traceCounts.add(Integer.parseInt(args[i]));
+            }
+        }
+        if (traceCounts.isEmpty()) {
+            traceCounts.addAll(Arrays.asList(10000, 100000, 1000000));
+        }
+        if (full) {
+            traceCounts.add(10000000);
+        }
+
+        ContactTracerBenchmark benchmark = new ContactTracerBenchmark();
+        System.out.printf(FORMAT, "traces", "benchmark", "ops", "mean_us", "p50_us", "p99_us", "ops_per_s", "note");
+        benchmark.rows.add("traces,benchmark,ops,mean_us,p50_us,p99_us,ops_per_s,note");
+        for (int traceCount : traceCounts) {
+            benchmark.runScale(traceCount);
+        }
+
+        if (csv != null) {
+            Files.write(csv, benchmark.rows);
+        }
+        if (benchmark.sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * run every benchmark over a generated set of traces.
+     *
+     * @param traceCount number of traces to generate
+     * @throws IOException if the CSV file can't be written or loaded
+     */
+    private void runScale(int traceCount) throws IOException {
+        int personCount = Math.max(2, traceCount / 10);
+        String scale = Integer.toString(traceCount);
+        TraceGenerator generator = new TraceGenerator(SEED, personCount, DAYS);
+        List<Trace> traces = generator.generate(traceCount);
+        int end = generator.endTime();
+
+        // ingestion, including freezing the traces into the graph.
+        long startTime = System.nanoTime();
+        ContactTracer tracer = new ContactTracer();
+        for (Trace trace : traces) {
+            tracer.addTrace(trace);
+        }
+        sink += tracer.getContacts(traces.get(0).getPerson1()).size();
+        report(scale, "ingest/addTrace", traceCount, System.nanoTime() - startTime, null, "");
+
+        // standing queries are updated by every trace added, and merge the graph once their pending traces pile up.
+        startTime = System.nanoTime();
+        ContactTracer watched = new ContactTracer();
+        List<ContactTracer.StandingQuery> queries = new ArrayList<>();
+        for (int i = 0; i < WATCH_COUNT; i++) {
+            queries.add(watched.watch(generator.person(i), 0, (reached) -> sink += reached.size()));
+        }
+        for (Trace trace : traces) {
+            watched.addTrace(trace);
+        }
+        for (ContactTracer.StandingQuery query : queries) {
+            sink += query.getReached().size();
+            query.close();
+        }
+        report(scale, "ingest/addTrace+watch", traceCount, System.nanoTime() - startTime, null,
+                WATCH_COUNT + " standing queries");
+
+        Path file = Files.createTempFile("traces", ".csv");
+        try {
+            new TraceGenerator(SEED, personCount, DAYS).writeCsv(file, traceCount);
+            TraceLoader.Result loaded = new TraceLoader().load(file, TraceLoader.Format.CSV);
+            sink += loaded.getTraceCount();
+            report(scale, "ingest/TraceLoader", traceCount, loaded.getElapsedNanos(), null, "");
+        } finally {
+            Files.delete(file);
+        }
+
+        // queries on persons picked by activity, so busy persons are queried more often.
+        Random random = new Random(SEED);
+        String[] subjects = new String[QUERY_COUNT];
+        Trace[] pairs = new Trace[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            subjects[i] = generator.samplePerson();
+            pairs[i] = traces.get(random.nextInt(traces.size()));
+        }
+
+        measure(scale, "getContactTimes", QUERY_COUNT,
+                (i) -> tracer.getContactTimes(pairs[i].getPerson1(), pairs[i].getPerson2()).size(), "");
+        measure(scale, "getContacts", QUERY_COUNT, (i) -> tracer.getContacts(subjects[i]).size(), "");
+        measure(scale, "getContactsAfter", QUERY_COUNT,
+                (i) -> tracer.getContactsAfter(subjects[i], end - TraceGenerator.MINUTES_PER_DAY).size(), "");
+
+        // contact traces from earlier times reach more of the graph, so have larger frontiers.
+        int[] daysBefore = {1, 7, DAYS};
+        for (int days : daysBefore) {
+            int timeOfContagion = end - days * TraceGenerator.MINUTES_PER_DAY;
+            for (ContactTracer.TraceMode mode : ContactTracer.TraceMode.values()) {
+                long reached = 0;
+                for (int i = 0; i < TRACE_COUNT; i++) {
+                    reached += tracer.contactTrace(subjects[i], timeOfContagion, mode).size();
+                }
+                measure(scale, "contactTrace/" + mode + "/" + days + "d", TRACE_COUNT,
+                        (i) -> tracer.contactTrace(subjects[i], timeOfContagion, mode).size(),
+                        "mean reach " + reached / TRACE_COUNT);
+            }
+        }
+
+        // source traces from later times look back over more of the graph.
+        for (int days : daysBefore) {
+            int timeOfInfection = days * TraceGenerator.MINUTES_PER_DAY;
+            long sources = 0;
+            for (int i = 0; i < TRACE_COUNT; i++) {
+                sources += tracer.sourceTrace(subjects[i], timeOfInfection).size();
+            }
+            measure(scale, "sourceTrace/" + days + "d", TRACE_COUNT,
+                    (i) -> tracer.sourceTrace(subjects[i], timeOfInfection).size(),
+                    "mean sources " + sources / TRACE_COUNT);
+        }
+
+        List<ContactTracer.Seed> seeds = new ArrayList<>();
+        for (int i = 0; i < TRACE_COUNT; i++) {
+            seeds.add(new ContactTracer.Seed(subjects[i], end - 7 * TraceGenerator.MINUTES_PER_DAY));
+        }
+        for (ContactTracer.TraceMode mode : ContactTracer.TraceMode.values()) {
+            // warm up before timing.
+            sink += tracer.contactTraceAll(seeds, mode).size();
+            startTime = System.nanoTime();
+            sink += tracer.contactTraceAll(seeds, mode).size();
+            report(scale, "contactTraceAll/" + mode + "/7d", TRACE_COUNT, System.nanoTime() - startTime, null,
+                    Runtime.getRuntime().availableProcessors() + " cpus");
+        }
+
+        int weekBefore = end - 7 * TraceGenerator.MINUTES_PER_DAY;
+        measure(scale, "watch/7d", TRACE_COUNT, (i) -> {
+            ContactTracer.StandingQuery query = tracer.watch(subjects[i], weekBefore, (reached) -> { });
+            query.close();
+            return query.getReached().size();
+        }, "");
+        measure(scale, "estimateReach/7d", REACH_COUNT,
+                (i) -> tracer.estimateReach(weekBefore).topK(10).size(),
+                Runtime.getRuntime().availableProcessors() + " cpus");
+    }
+
+    /**
+     * warm up an operation, then time each of a number of runs of it and report the results.
+     *
+     * @param scale number of traces in the tracer
+     * @param name name of the benchmark
+     * @param operations number of runs
+     * @param operation operation to run
+     * @param note extra information to report
+     */
+    private void measure(String scale, String name, int operations, Operation operation, String note) {
+        for (int i = 0; i < operations; i++) {
+            sink += operation.run(i);
+        }
+
+        long[] samples = new long[operations];
+        long total = 0;
+        for (int i = 0; i < operations; i++) {
+            long startTime = System.nanoTime();
+            sink += operation.run(i);
+            samples[i] = System.nanoTime() - startTime;
+            total += samples[i];
+        }
+        Arrays.sort(samples);
+        report(scale, name, operations, total, samples, note);
+    }
+
+    /**
+     * print a line of the report and keep it as CSV.
+     *
+     * @param scale number of traces in the tracer
+     * @param name name of the benchmark
+     * @param operations number of operations timed
+     * @param totalNanos nanoseconds taken by every operation
+     * @param samples sorted nanoseconds taken by each operation, or null if they were timed together
+     * @param note extra information to report
+     */
+    private void report(String scale, String name, int operations, long totalNanos, long[] samples, String note) {
+        String mean = String.format("%.3f", totalNanos / 1e3 / operations);
+        String p50 = samples == null ? "" : String.format("%.3f", percentile(samples, 50) / 1e3);
+        String p99 = samples == null ? "" : String.format("%.3f", percentile(samples, 99) / 1e3);
+        String throughput = String.format("%.1f", operations / (totalNanos / 1e9));
+
+        System.out.printf(FORMAT, scale, name, operations, mean, p50, p99, throughput, note);
+        rows.add(String.join(",", scale, name, Integer.toString(operations), mean, p50, p99, throughput, note));
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(sorted.length * percentile / 100) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -5,11 +5,23 @@ public class ErdosNumbers {
      * String representing Paul Erdos's name to check against
      */
     public static final String ERDOS = "Paul Erdös";
-    private HashMap<String, Vertex> authorToVertex; // a hashmap contain authors and authors' Vertex.
+    /**
+     * Default largest number of bytes held by the cached distances
+     */
+    public static final long DEFAULT_CACHE_BYTES = 64L << 20;
     private HashMap<String, HashSet<String>> authorPapers; // a hashmap shows papers written by author.
-    private HashMap<String, HashSet<String>> authorCollaborators; // a hashmap represent all author's collaborators.
+    private HashMap<String, HashMap<String, Integer>> authorCollaborators; // each author's collaborators, and the papers written with each.
     private HashMap<String, HashSet<String>> paperAuthors; // a hashmap stand for authors of a paper.
-    private HashMap<String, ArrayList<String>> authorCoAuthors; // author's collaborators with duplicates
+    private HashMap<String, Integer> authorIds; // dense id of each author, in the order they first appear.
+    private String[] authorNames; // name of each author id.
+    private int[] collaboratorOffsets; // start of each author id's collaborators in collaboratorIds.
+    private int[] collaboratorIds; // ids of each author's collaborators, one row per author.
+    private double[] collaboratorWeights; // 1 / papers written together, parallel to collaboratorIds.
+    private final long cacheCapacity; // largest total bytes of the cached distances.
+    private final LinkedHashMap<Integer, Distances> distanceCache; // distances by source id, least recently used first.
+    private long cacheWeight; // total bytes of the cached distances.
+    private SearchSide forward; // search from the first author of distanceBetween, or null until first used.
+    private SearchSide backward; // search from the second author of distanceBetween.
 
     /**
      * Initialises the class with a list of papers and authors.
@@ -24,12 +36,31 @@ public class ErdosNumbers {
      * @param papers List of papers and their authors
      */
     public ErdosNumbers(List<String> papers) {
+        this(papers, DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * Initialises the class with a list of papers and authors, keeping at most
+     * the given number of bytes of distances from recently queried authors.
+     *
+     * No distances are calculated here; they are calculated from each source when
+     * first queried (@see distanceFrom).
+     *
+     * @param papers List of papers and their authors
+     * @param cacheBytes largest number of bytes held by the cached distances
+     * @throws IllegalArgumentException if cacheBytes < 0
+     */
+    public ErdosNumbers(List<String> papers, long cacheBytes) {
         // TODO: implement this
-        authorToVertex = new HashMap<>();
+        if (cacheBytes < 0) {
+            throw new IllegalArgumentException("cacheBytes must not be negative");
+        }
+        cacheCapacity = cacheBytes;
+        distanceCache = new LinkedHashMap<>(16, 0.75f, true);
         authorPapers = new HashMap<>();
         authorCollaborators = new HashMap<>();
         paperAuthors = new HashMap<>();
-        authorCoAuthors = new HashMap<>();
+        authorIds = new HashMap<>();
 
         // build graph
         for (String paper : papers) {
@@ -40,104 +71,211 @@ public class ErdosNumbers {
 
             for (String author : authors) {
                 HashSet<String> paperList = authorPapers.computeIfAbsent(author, (k) -> new HashSet<>());
-                HashSet<String> collaboratorList = authorCollaborators
-                        .computeIfAbsent(author, (k) -> new HashSet<>());
-                ArrayList<String> coAuthorsList = authorCoAuthors
-                        .computeIfAbsent(author, (k) -> new ArrayList<>());
+                HashMap<String, Integer> collaboratorList = authorCollaborators
+                        .computeIfAbsent(author, (k) -> new HashMap<>());
 
                 authorList.add(author);
                 paperList.add(split[0]);
 
-                // add author to Vertex
-                if (authorToVertex.get(author) == null) {
-                    authorToVertex.put(author, new Vertex(author));
+                // give the author an id
+                if (authorIds.get(author) == null) {
+                    authorIds.put(author, authorIds.size());
                 }
 
+                // count the papers written with each collaborator
                 for(String authorhaha : authors) {
                     if (!authorhaha.equals(author)) {
-                        collaboratorList.add(authorhaha);
-                        coAuthorsList.add(authorhaha);
+                        collaboratorList.merge(authorhaha, 1, Integer::sum);
                     }
                 }
             }
         }
 
-        // calculate ErdosNumber on each vertex.
-        dijkstra(authorCollaborators, ERDOS);
-        // calculate WeightedErdosNumber on each vertex
-        weightedDijkstra(authorCollaborators, ERDOS);
+        buildCollaboratorIds();
     }
 
     /**
-     * calculate how many papers have coAuthorships of two input authors
-     * @param authorOne author one
-     * @param authorTwo author two
-     * @return the number of papers which have coAuthorships of two input authors
+     * Gets the collaboration distances from an author to every other author,
+     * calculating them on first use.
+     *
+     * Distances from recently queried authors are cached, and the least recently
+     * queried are dropped once they hold more than the cache's capacity in bytes.
+     * The distances last queried are always kept.
+     *
+     * @param source author to measure distances from
+     * @return distances from the author, where every author is unconnected if
+     * the source wrote none of the papers
      */
-    private int coAuthorshipsPaper (String authorOne, String authorTwo) {
-        int coPaperNum = 0;
-        for (String author : authorCoAuthors.get(authorOne)) {
-            if (author.equals(authorTwo)) {
-                coPaperNum++;
+    public synchronized Distances distanceFrom(String source) {
+        int id = authorIds.getOrDefault(source, -1);
+        Distances distances = distanceCache.get(id);
+        if (distances == null) {
+            distances = new Distances(source, id);
+            distanceCache.put(id, distances);
+            cacheWeight += distances.bytes();
+
+            Iterator<Distances> eldest = distanceCache.values().iterator();
+            while (cacheWeight > cacheCapacity && distanceCache.size() > 1) {
+                cacheWeight -= eldest.next().bytes();
+                eldest.remove();
             }
         }
-        return coPaperNum;
+        return distances;
     }
 
     /**
-     * calculate WeightedErdosNumber on each vertex
-     * @param graph a hashmap represent all author's collaborators.
-     * @param source Erdos
+     * Calculates the least number of collaborations between two authors, with a
+     * breadth first search from each author which expands the smaller frontier a
+     * level at a time until the searches meet. Only the authors within about half
+     * the distance of either author are visited, rather than the whole graph.
+     *
+     * runtime: O(V + E) in the worst case
+     *
+     * @param authorOne first author
+     * @param authorTwo second author
+     * @return the distance between the authors, or Integer.MAX_VALUE if they aren't
+     * connected or either wrote none of the papers
      */
-    private void weightedDijkstra (HashMap<String, HashSet<String>> graph, String source) {
-        authorToVertex.get(source).weightedErdosNum = 0.0;
-        PriorityQueue<WeightedPriority<Vertex>> pq = new PriorityQueue<>();
-        pq.add(new WeightedPriority<>(authorToVertex.get(source).weightedErdosNum, authorToVertex.get(source)));
+    public synchronized int distanceBetween(String authorOne, String authorTwo) {
+        Integer one = authorIds.get(authorOne);
+        Integer two = authorIds.get(authorTwo);
+        if (one == null || two == null) {
+            return Integer.MAX_VALUE;
+        }
+        if (one.equals(two)) {
+            return 0;
+        }
 
-        while(!pq.isEmpty()) {
-            Vertex u = pq.poll().element;
-
-            for (String v : graph.computeIfAbsent(u.author, (k) -> new HashSet<>())) {
-                double candidateWeight;
-                if (coAuthorshipsPaper(u.author, v) == 0) {
-                    candidateWeight = 0;
-                } else {
-                    candidateWeight =  (1d/coAuthorshipsPaper(u.author, v));
+        if (forward == null) {
+            forward = new SearchSide(authorNames.length);
+            backward = new SearchSide(authorNames.length);
+        }
+        forward.start(one);
+        backward.start(two);
+        try {
+            while (!forward.isExhausted() && !backward.isExhausted()) {
+                boolean forwardSmaller = forward.frontierSize() <= backward.frontierSize();
+                SearchSide expanded = forwardSmaller ? forward : backward;
+                SearchSide other = forwardSmaller ? backward : forward;
+                if (expanded.expand(other)) {
+                    return forward.depth + backward.depth + 1;
                 }
-                double weightedErdosNumber = u.weightedErdosNum + candidateWeight;
+            }
+            return Integer.MAX_VALUE;
+        } finally {
+            forward.clear();
+            backward.clear();
+        }
+    }
+
+    /**
+     * @return the number of sources whose distances are cached
+     */
+    synchronized int cachedSources() {
+        return distanceCache.size();
+    }
+
+    /**
+     * calculate WeightedErdosNumber of each author. the weight of each collaboration is
+     * read from collaboratorWeights, so relaxing an edge takes constant time, and an
+     * improved author's key is lowered in place so each author is polled once.
+     *
+     * runtime: O(E log V)
+     *
+     * @param source id of the author to start from, or -1 if they wrote none of the papers
+     * @return weighted distance of each author id, or Double.MAX_VALUE if unconnected
+     */
+    private double[] weightedDijkstra(int source) {
+        double[] weightedErdosNumbers = new double[authorNames.length];
+        Arrays.fill(weightedErdosNumbers, Double.MAX_VALUE);
+        if (source < 0) {
+            return weightedErdosNumbers;
+        }
+
+        weightedErdosNumbers[source] = 0.0;
+        IndexedMinHeap pq = new IndexedMinHeap(authorNames.length);
+        pq.insertOrDecrease(source, 0.0);
+
+        while(!pq.isEmpty()) {
+            int u = pq.poll();
+
+            for (int i = collaboratorOffsets[u]; i < collaboratorOffsets[u + 1]; i++) {
+                int v = collaboratorIds[i];
+                double weightedErdosNumber = weightedErdosNumbers[u] + collaboratorWeights[i];
 
-                if (authorToVertex.get(v).weightedErdosNum > weightedErdosNumber) {
-                    authorToVertex.get(v).weightedErdosNum = weightedErdosNumber;
-                    pq.add(new WeightedPriority<>(authorToVertex.get(v).weightedErdosNum,authorToVertex.get(v)));
-                    authorToVertex.get(v).pi = u;
+                if (weightedErdosNumbers[v] > weightedErdosNumber) {
+                    weightedErdosNumbers[v] = weightedErdosNumber;
+                    pq.insertOrDecrease(v, weightedErdosNumber);
                 }
             }
         }
+        return weightedErdosNumbers;
     }
 
     /**
-     * calculate ErdosNumber on each vertex
-     * @param graph a hashmap represent all author's collaborators.
-     * @param source Erdos
+     * build the collaborators of each author as rows of author ids, in compressed sparse row form,
+     * with the weight of each collaboration alongside.
      */
-    private void dijkstra (HashMap<String, HashSet<String>> graph, String source) {
-        authorToVertex.get(source).erdosNumber = 0;
-        PriorityQueue<Priority<Vertex>> pq = new PriorityQueue<>();
-        pq.add(new Priority<>(authorToVertex.get(source).erdosNumber, authorToVertex.get(source)));
+    private void buildCollaboratorIds() {
+        int authorCount = authorIds.size();
+        authorNames = new String[authorCount];
+        for (Map.Entry<String, Integer> entry : authorIds.entrySet()) {
+            authorNames[entry.getValue()] = entry.getKey();
+        }
 
-        while(!pq.isEmpty()) {
-            Vertex u = pq.poll().element;
+        collaboratorOffsets = new int[authorCount + 1];
+        for (int id = 0; id < authorCount; id++) {
+            collaboratorOffsets[id + 1] = collaboratorOffsets[id] + authorCollaborators.get(authorNames[id]).size();
+        }
+        collaboratorIds = new int[collaboratorOffsets[authorCount]];
+        collaboratorWeights = new double[collaboratorOffsets[authorCount]];
+        for (int id = 0; id < authorCount; id++) {
+            int out = collaboratorOffsets[id];
+            for (Map.Entry<String, Integer> collaborator : authorCollaborators.get(authorNames[id]).entrySet()) {
+                collaboratorIds[out] = authorIds.get(collaborator.getKey());
+                collaboratorWeights[out] = 1d / collaborator.getValue();
+                out++;
+            }
+        }
+    }
 
-            for (String v : graph.computeIfAbsent(u.author, (k) -> new HashSet<>())) {
-                int erdosNumber = u.erdosNumber + 1;
+    /**
+     * calculate ErdosNumber of each author with a breadth first search from a source. every
+     * collaboration has the same length, so authors are reached in order of their Erdos
+     * number and each is only queued once.
+     *
+     * runtime: O(V + E)
+     *
+     * @param source id of the author to start from, or -1 if they wrote none of the papers
+     * @return distance of each author id, or Integer.MAX_VALUE if unconnected
+     */
+    private int[] breadthFirstSearch(int source) {
+        int authorCount = authorNames.length;
+        int[] erdosNumbers = new int[authorCount];
+        Arrays.fill(erdosNumbers, Integer.MAX_VALUE);
+        if (source < 0) {
+            return erdosNumbers;
+        }
 
-                if (authorToVertex.get(v).erdosNumber > erdosNumber) {
-                    authorToVertex.get(v).erdosNumber = erdosNumber;
-                    pq.add(new Priority<>(authorToVertex.get(v).erdosNumber,authorToVertex.get(v)));
-                    authorToVertex.get(v).pi = u;
+        int[] queue = new int[authorCount];
+        int head = 0;
+        int tail = 0;
+        erdosNumbers[source] = 0;
+        queue[tail++] = source;
+
+        while (head < tail) {
+            int u = queue[head++];
+            int erdosNumber = erdosNumbers[u] + 1;
+
+            for (int i = collaboratorOffsets[u]; i < collaboratorOffsets[u + 1]; i++) {
+                int v = collaboratorIds[i];
+                if (erdosNumbers[v] == Integer.MAX_VALUE) {
+                    erdosNumbers[v] = erdosNumber;
+                    queue[tail++] = v;
                 }
             }
         }
+        return erdosNumbers;
     }
 
     
@@ -161,7 +299,7 @@ public class ErdosNumbers {
      */
     public Set<String> getCollaborators(String author) {
         // TODO: implement this
-        return authorCollaborators.get(author);
+        return authorCollaborators.get(author).keySet();
     }
 
     /**
@@ -174,14 +312,7 @@ public class ErdosNumbers {
      */
     public boolean isErdosConnectedToAll() {
         // TODO: implement this
-        boolean flag = true;
-
-        for (String author : authorToVertex.keySet()) {
-            if (authorToVertex.get(author).erdosNumber == Integer.MAX_VALUE) {
-                flag = false;
-            }
-        }
-        return flag;
+        return distanceFrom(ERDOS).isConnectedToAll();
     }
 
     /**
@@ -200,7 +331,7 @@ public class ErdosNumbers {
      */
     public int calculateErdosNumber(String author) {
         // TODO: implement this
-        return authorToVertex.get(author).erdosNumber;
+        return distanceFrom(ERDOS).get(author);
     }
 
     /**
@@ -215,10 +346,11 @@ public class ErdosNumbers {
     public double averageErdosNumber(String paper) {
         // TODO: implement this
         HashSet<String> authorList = paperAuthors.get(paper);
+        Distances distances = distanceFrom(ERDOS);
         int totolErdosNum = 0;
 
         for (String author : authorList) {
-            totolErdosNum += authorToVertex.get(author).erdosNumber;
+            totolErdosNum += distances.get(author);
         }
         return (double) totolErdosNum/authorList.size();
     }
@@ -236,50 +368,164 @@ public class ErdosNumbers {
      */
     public double calculateWeightedErdosNumber(String author) {
         // TODO: implement this
-        return authorToVertex.get(author).weightedErdosNum;
+        return distanceFrom(ERDOS).getWeighted(author);
     }
 
-    static class Vertex {
-        String author;
-        int erdosNumber;
-        double weightedErdosNum;
-        Vertex pi;
-
-        Vertex(String author) {
-            this.author = author;
-            this.erdosNumber = Integer.MAX_VALUE;
-            this.weightedErdosNum = Double.MAX_VALUE;
-            this.pi = null;
+    /**
+     * One side of a bidirectional breadth first search (@see distanceBetween). The
+     * visited authors are kept in a bitset and in the order they were reached, so the
+     * search can be cleared in time proportional to the authors it visited and the
+     * same arrays reused by the next query.
+     */
+    private class SearchSide {
+        final long[] visited; // bit per author id, set if the search has reached them.
+        final int[] reached; // ids of the authors reached, in order of their distance.
+        int reachedCount; // number of authors reached.
+        int frontierStart; // index in reached of the first author at the current depth.
+        int depth; // distance of the authors on the frontier.
+
+        SearchSide(int authorCount) {
+            visited = new long[(authorCount + 63) >>> 6];
+            reached = new int[authorCount];
+        }
+
+        /**
+         * begin a search from an author.
+         */
+        void start(int source) {
+            visited[source >>> 6] |= 1L << source;
+            reached[0] = source;
+            reachedCount = 1;
+            frontierStart = 0;
+            depth = 0;
+        }
+
+        boolean isVisited(int id) {
+            return (visited[id >>> 6] & (1L << id)) != 0;
         }
-    }
 
-    static class Priority<T> implements Comparable<Priority<T>> {
-        public int priority;
-        public T element;
+        int frontierSize() {
+            return reachedCount - frontierStart;
+        }
 
-        public Priority(int priority, T element) {
-            this.priority = priority;
-            this.element = element;
+        boolean isExhausted() {
+            return frontierSize() == 0;
+        }
+
+        /**
+         * visit the collaborators of every author on the frontier, making them the new frontier.
+         *
+         * @param other the search from the other author
+         * @return true if a collaborator was visited by the other search, in which case the
+         * depth of this search is the one the searches met at less one
+         */
+        boolean expand(SearchSide other) {
+            int frontierEnd = reachedCount;
+            for (int k = frontierStart; k < frontierEnd; k++) {
+                int u = reached[k];
+                for (int i = collaboratorOffsets[u]; i < collaboratorOffsets[u + 1]; i++) {
+                    int v = collaboratorIds[i];
+                    if (other.isVisited(v)) {
+                        return true;
+                    }
+                    if (!isVisited(v)) {
+                        visited[v >>> 6] |= 1L << v;
+                        reached[reachedCount++] = v;
+                    }
+                }
+            }
+            frontierStart = frontierEnd;
+            depth++;
+            return false;
         }
 
-        @Override
-        public int compareTo(Priority<T> that) {
-            return Integer.compare(priority, that.priority);
+        /**
+         * unset the bits of the authors reached, leaving the bitset empty.
+         */
+        void clear() {
+            for (int k = 0; k < reachedCount; k++) {
+                visited[reached[k] >>> 6] = 0;
+            }
+            reachedCount = 0;
+            frontierStart = 0;
         }
     }
 
-    static class WeightedPriority<T> implements Comparable<WeightedPriority<T>> {
-        public double priority;
-        public T element;
+    /**
+     * The collaboration distances from one author to every other author.
+     *
+     * Each kind of distance is calculated when first read, so a caller only wanting
+     * the number of collaborations between authors never runs the weighted pass.
+     */
+    public class Distances {
+        private final String source; // author the distances are measured from.
+        private final int sourceId; // id of the source, or -1 if they wrote none of the papers.
+        private int[] distances; // distance of each author id, or null until first read.
+        private double[] weightedDistances; // weighted distance of each author id, or null until first read.
+
+        private Distances(String source, int sourceId) {
+            this.source = source;
+            this.sourceId = sourceId;
+        }
+
+        /**
+         * @return the author the distances are measured from
+         */
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * Gets the least number of collaborations between the source and an author.
+         *
+         * @param author to get the distance of
+         * @return the distance, or Integer.MAX_VALUE if the author isn't connected to the source
+         */
+        public synchronized int get(String author) {
+            return distances()[authorIds.get(author)];
+        }
+
+        /**
+         * Gets the weighted distance between the source and an author, where each
+         * collaboration weighs 1 / the number of papers the pair wrote together.
+         *
+         * @param author to get the weighted distance of
+         * @return the weighted distance, or Double.MAX_VALUE if the author isn't connected to the source
+         */
+        public synchronized double getWeighted(String author) {
+            if (weightedDistances == null) {
+                weightedDistances = weightedDijkstra(sourceId);
+            }
+            return weightedDistances[authorIds.get(author)];
+        }
+
+        /**
+         * @return true if every author is connected to the source
+         */
+        public synchronized boolean isConnectedToAll() {
+            for (int distance : distances()) {
+                if (distance == Integer.MAX_VALUE) {
+                    return false;
+                }
+            }
+            return true;
+        }
 
-        public WeightedPriority(double priority, T element) {
-            this.priority = priority;
-            this.element = element;
+        /**
+         * @return the distance of each author id, calculating them if this is the first read
+         */
+        private int[] distances() {
+            if (distances == null) {
+                distances = breadthFirstSearch(sourceId);
+            }
+            return distances;
         }
 
-        @Override
-        public int compareTo(WeightedPriority<T> that) {
-            return Double.compare(priority, that.priority);
+        /**
+         * @return bytes held by the distances once both kinds are calculated
+         */
+        private long bytes() {
+            return (long) authorNames.length * (Integer.BYTES + Double.BYTES);
         }
     }
 
@@ -0,0 +1,127 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A binary min heap of int ids below a fixed capacity, each with a double key, used by
+ * the shortest path passes of (@see ErdosNumbers).
+ *
+ * The position of each id in the heap is kept, so a key can be lowered in place rather
+ * than pushing a second entry. The heap never holds an id twice, so it never grows past
+ * its capacity and polling never returns a stale entry. Ids and keys are kept in primitive
+ * arrays, so no operation allocates.
+ */
+class IndexedMinHeap {
+    private final int[] heap; // ids in heap order.
+    private final double[] keys; // key of each id, read only while the id is in the heap.
+    private final int[] positions; // index of each id in heap, or -1 if it isn't in the heap.
+    private int size; // number of ids in the heap.
+
+    /**
+     * @param capacity one more than the largest id the heap can hold
+     */
+    IndexedMinHeap(int capacity) {
+        heap = new int[capacity];
+        keys = new double[capacity];
+        positions = new int[capacity];
+        Arrays.fill(positions, -1);
+    }
+
+    /**
+     * @return true if the heap holds no ids
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * add an id, or lower its key if it is already in the heap with a larger one.
+     *
+     * runtime: O(log n)
+     *
+     * @param id id to add
+     * @param key key of the id
+     * @return true if the heap changed
+     */
+    boolean insertOrDecrease(int id, double key) {
+        int position = positions[id];
+        if (position < 0) {
+            position = size++;
+            heap[position] = id;
+            positions[id] = position;
+        } else if (keys[id] <= key) {
+            return false;
+        }
+        keys[id] = key;
+        siftUp(position);
+        return true;
+    }
+
+    /**
+     * remove the id with the smallest key.
+     *
+     * runtime: O(log n)
+     *
+     * @return the id
+     * @throws NoSuchElementException if the heap is empty
+     */
+    int poll() {
+        if (size == 0) {
+            throw new NoSuchElementException("heap is empty");
+        }
+        int id = heap[0];
+        positions[id] = -1;
+        size--;
+        if (size > 0) {
+            heap[0] = heap[size];
+            positions[heap[0]] = 0;
+            siftDown(0);
+        }
+        return id;
+    }
+
+    /**
+     * move the id at a position towards the root until its parent's key isn't larger.
+     */
+    private void siftUp(int position) {
+        int id = heap[position];
+        double key = keys[id];
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            int parentId = heap[parent];
+            if (keys[parentId] <= key) {
+                break;
+            }
+            heap[position] = parentId;
+            positions[parentId] = position;
+            position = parent;
+        }
+        heap[position] = id;
+        positions[id] = position;
+    }
+
+    /**
+     * move the id at a position towards the leaves until neither child's key is smaller.
+     */
+    private void siftDown(int position) {
+        int id = heap[position];
+        double key = keys[id];
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && keys[heap[child + 1]] < keys[heap[child]]) {
+                child++;
+            }
+            int childId = heap[child];
+            if (keys[childId] >= key) {
+                break;
+            }
+            heap[position] = childId;
+            positions[childId] = position;
+            position = child;
+        }
+        heap[position] = id;
+        positions[id] = position;
+    }
+}
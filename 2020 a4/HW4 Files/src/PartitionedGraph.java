@@ -0,0 +1,382 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable temporal contact graph split into time partitions, each of which is held
+ * in one or more layers, each a (@see ContactGraph) over the same person ids.
+ *
+ * Partition keys are given by a (@see RetentionPolicy), so every trace in a partition is
+ * earlier than every trace in the partitions after it. Layers are ordered by key, and the
+ * layers of a partition by the order their traces were added, oldest first.
+ *
+ * Adding traces builds one new layer for each partition they fall in, from the new
+ * traces alone, so it takes time proportional to the new traces rather than to the
+ * graph. Layers of a partition are merged by compact once a newer layer is close in size
+ * to the one before it, so each partition keeps O(log n) layers, and each trace is merged
+ * O(log n) times over the life of the graph. Expired traces are dropped by leaving out
+ * whole partitions.
+ *
+ * Layers are built and merged in the order traces are added, so the versions of the
+ * layers of a partition are disjoint and ascending. A query as of an earlier version
+ * skips the layers holding only newer traces and checks the version of each contact
+ * in at most one layer per partition.
+ */
+public class PartitionedGraph {
+    /**
+     * A graph with no persons and no partitions.
+     */
+    public static final PartitionedGraph EMPTY = new PartitionedGraph(0, new long[0], new ContactGraph[0]);
+
+    private static final int COMPACTION_RATIO = 2; // a layer is merged into the one before it once that is at most this many times larger.
+
+    private final int personCount; // one more than the largest person id in the graph.
+    private final long[] keys; // partition key of each layer, in ascending order.
+    private final ContactGraph[] layers; // the layers, in key order, then oldest first within a partition.
+
+    PartitionedGraph(int personCount, long[] keys, ContactGraph[] layers) {
+        this.personCount = personCount;
+        this.keys = keys;
+        this.layers = layers;
+    }
+
+    /**
+     * @return one more than the largest person id in the graph
+     */
+    public int personCount() {
+        return personCount;
+    }
+
+    /**
+     * @return the number of layers, over every partition
+     */
+    public int layerCount() {
+        return layers.length;
+    }
+
+    /**
+     * @param index index of a layer
+     * @return partition key of the layer
+     */
+    public long key(int index) {
+        return keys[index];
+    }
+
+    /**
+     * @param index index of a layer
+     * @return the layer
+     */
+    public ContactGraph layer(int index) {
+        return layers[index];
+    }
+
+    /**
+     * Finds the first layer of the partition holding a layer.
+     *
+     * runtime: O(l) where l is the number of layers of the partition
+     *
+     * @param index index of a layer
+     * @return index of the first layer with the same key
+     */
+    public int partitionStart(int index) {
+        int start = index;
+        while (start > 0 && keys[start - 1] == keys[index]) {
+            start--;
+        }
+        return start;
+    }
+
+    /**
+     * Finds the end of the partition holding a layer. The layers from the partition's
+     * first layer up to this index together hold its traces, and may overlap in time.
+     *
+     * runtime: O(l) where l is the number of layers of the partition
+     *
+     * @param index index of a layer
+     * @return index one past the last layer with the same key
+     */
+    public int partitionEnd(int index) {
+        int end = index + 1;
+        while (end < keys.length && keys[end] == keys[index]) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * @return the number of traces in every layer
+     */
+    public long traceCount() {
+        long count = 0;
+        for (ContactGraph layer : layers) {
+            count += layer.traceCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return time of the newest trace, or Integer.MIN_VALUE if there are no traces
+     */
+    public int newestTime() {
+        // the newest trace is in the last partition holding any, but may be in any of its layers.
+        int end = layers.length;
+        while (end > 0) {
+            int start = end - 1;
+            while (start > 0 && keys[start - 1] == keys[end - 1]) {
+                start--;
+            }
+            boolean found = false;
+            int newest = Integer.MIN_VALUE;
+            for (int i = start; i < end; i++) {
+                if (layers[i].traceCount() > 0) {
+                    found = true;
+                    newest = Math.max(newest, layers[i].traceTime(layers[i].traceCount() - 1));
+                }
+            }
+            if (found) {
+                return newest;
+            }
+            end = start;
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    /**
+     * Builds a new graph holding every trace of this graph and every trace in the buffer,
+     * as a new layer after the existing layers of each partition traces are added to.
+     * Existing layers are shared with this graph, which is left unchanged.
+     *
+     * runtime: O(L log L + n log n) where L is the number of layers and n is the number
+     * of traces in the buffer
+     *
+     * @param staged traces to add, which are not already in this graph
+     * @param personCount number of persons in the new graph
+     * @param policy policy giving the partition of each trace
+     * @return the merged graph
+     * @require personCount >= personCount() and every id in staged is below personCount
+     */
+    public PartitionedGraph merge(TraceBuffer staged, int personCount, RetentionPolicy policy) {
+        // split the staged traces by partition.
+        TreeMap<Long, TraceBuffer> byPartition = new TreeMap<>();
+        for (int i = 0; i < staged.size(); i++) {
+            long key = policy.partitionKey(staged.time(i));
+            TraceBuffer buffer = byPartition.get(key);
+            if (buffer == null) {
+                buffer = new TraceBuffer();
+                byPartition.put(key, buffer);
+            }
+            buffer.add(staged.person1(i), staged.person2(i), staged.time(i), staged.version(i));
+        }
+
+        TreeMap<Long, List<ContactGraph>> merged = toMap();
+        for (Map.Entry<Long, TraceBuffer> entry : byPartition.entrySet()) {
+            List<ContactGraph> partition = merged.computeIfAbsent(entry.getKey(), (key) -> new ArrayList<>());
+            partition.add(ContactGraph.EMPTY.merge(entry.getValue(), personCount));
+        }
+
+        return fromMap(personCount, merged);
+    }
+
+    /**
+     * Finds two layers which compact would merge next: adjacent layers of the same
+     * partition where the older is at most COMPACTION_RATIO times the size of the newer,
+     * and whose versions together span no more than Integer.MAX_VALUE, so that the merged
+     * layer can hold them as int offsets.
+     *
+     * runtime: O(L) where L is the number of layers
+     *
+     * @return index of the older of the two layers, or -1 if no layers need merging
+     */
+    public int nextCompaction() {
+        for (int i = 0; i + 1 < layers.length; i++) {
+            if (keys[i] == keys[i + 1]
+                    && (long) layers[i].traceCount() <= (long) COMPACTION_RATIO * layers[i + 1].traceCount()
+                    && versionsFit(layers[i], layers[i + 1])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Merges a layer with the layer after it in the same partition. Neither is changed.
+     *
+     * runtime: O(E + n log n) where E is the number of contacts in the older layer and
+     * n is the number of traces in the newer layer
+     *
+     * @param older the older layer
+     * @param newer the next layer of the same partition
+     * @param personCount number of persons in the merged layer
+     * @return a layer holding the traces of both
+     */
+    public static ContactGraph mergeLayers(ContactGraph older, ContactGraph newer, int personCount) {
+        return older.merge(newer.traces(), personCount);
+    }
+
+    /**
+     * Builds a new graph with two adjacent layers replaced by a layer merging them. The
+     * layers are found by identity, so a merge computed from an earlier graph can be
+     * applied to a later graph which still holds both layers.
+     *
+     * runtime: O(L) where L is the number of layers
+     *
+     * @param older the older layer
+     * @param newer the layer after it in the same partition
+     * @param merged layer holding the traces of both
+     * @return the new graph, or this graph if it doesn't hold the two layers next to each other
+     */
+    public PartitionedGraph replaceLayers(ContactGraph older, ContactGraph newer, ContactGraph merged) {
+        for (int i = 0; i + 1 < layers.length; i++) {
+            if (layers[i] == older && layers[i + 1] == newer) {
+                long[] newKeys = new long[keys.length - 1];
+                ContactGraph[] newLayers = new ContactGraph[layers.length - 1];
+                System.arraycopy(keys, 0, newKeys, 0, i + 1);
+                System.arraycopy(keys, i + 2, newKeys, i + 1, keys.length - i - 2);
+                System.arraycopy(layers, 0, newLayers, 0, i);
+                newLayers[i] = merged;
+                System.arraycopy(layers, i + 2, newLayers, i + 1, layers.length - i - 2);
+                return new PartitionedGraph(personCount, newKeys, newLayers);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Builds a new graph merging layers until no partition has a layer at most
+     * COMPACTION_RATIO times the size of the layer after it. This graph is left unchanged.
+     *
+     * runtime: O(sum of E_i + n_i log n_i) over each pair of layers merged, which is
+     * O(log n) merges of each trace over the life of the graph
+     *
+     * @return the compacted graph, or this graph if no layers need merging
+     */
+    public PartitionedGraph compact() {
+        PartitionedGraph graph = this;
+        int i;
+        while ((i = graph.nextCompaction()) >= 0) {
+            ContactGraph older = graph.layers[i];
+            ContactGraph newer = graph.layers[i + 1];
+            graph = graph.replaceLayers(older, newer, mergeLayers(older, newer, personCount));
+        }
+        return graph;
+    }
+
+    /**
+     * Builds a new graph without the partitions whose keys are below oldestKey.
+     * The kept layers are shared with this graph, which is left unchanged.
+     *
+     * runtime: O(L) where L is the number of layers
+     *
+     * @param oldestKey key of the oldest partition to keep
+     * @return this graph if no partition is dropped, otherwise the graph without them
+     */
+    public PartitionedGraph dropBefore(long oldestKey) {
+        int first = 0;
+        while (first < keys.length && keys[first] < oldestKey) {
+            first++;
+        }
+        if (first == 0) {
+            return this;
+        }
+        return new PartitionedGraph(personCount, Arrays.copyOfRange(keys, first, keys.length),
+                Arrays.copyOfRange(layers, first, layers.length));
+    }
+
+    /**
+     * Writes the graph to a channel: the person count and layer count as big-endian ints, then for each
+     * layer its partition key as a big-endian long followed by a (@see ContactGraph) snapshot.
+     *
+     * @param channel channel to write to, from its current position
+     * @throws IOException if the channel can't be written
+     */
+    public void write(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + Integer.BYTES);
+        header.putInt(personCount).putInt(layers.length).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        for (int i = 0; i < layers.length; i++) {
+            ByteBuffer key = ByteBuffer.allocate(Long.BYTES);
+            key.putLong(keys[i]).flip();
+            while (key.hasRemaining()) {
+                channel.write(key);
+            }
+            layers[i].write(channel);
+        }
+    }
+
+    /**
+     * Reads a graph written by write.
+     *
+     * @param buffer buffer holding the graph, from its current position
+     * @return the graph
+     * @throws IOException if the buffer doesn't hold a graph
+     */
+    public static PartitionedGraph read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 2 * Integer.BYTES) {
+            throw new IOException("truncated partitioned graph");
+        }
+        int personCount = buffer.getInt();
+        int layerCount = buffer.getInt();
+        if (layerCount < 0) {
+            throw new IOException("not a partitioned graph");
+        }
+
+        long[] keys = new long[layerCount];
+        ContactGraph[] layers = new ContactGraph[layerCount];
+        for (int i = 0; i < layerCount; i++) {
+            if (buffer.remaining() < Long.BYTES) {
+                throw new IOException("truncated partitioned graph");
+            }
+            keys[i] = buffer.getLong();
+            layers[i] = ContactGraph.read(buffer);
+        }
+        return new PartitionedGraph(personCount, keys, layers);
+    }
+
+    /**
+     * @return true if the versions of two layers together span no more than Integer.MAX_VALUE
+     */
+    private static boolean versionsFit(ContactGraph older, ContactGraph newer) {
+        if (older.traceCount() == 0 || newer.traceCount() == 0) {
+            return true;
+        }
+        long min = Math.min(older.minVersion(), newer.minVersion());
+        long max = Math.max(older.maxVersion(), newer.maxVersion());
+        return max - min <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * group the layers by partition key, keeping their order within each partition.
+     */
+    private TreeMap<Long, List<ContactGraph>> toMap() {
+        TreeMap<Long, List<ContactGraph>> partitions = new TreeMap<>();
+        for (int i = 0; i < layers.length; i++) {
+            partitions.computeIfAbsent(keys[i], (key) -> new ArrayList<>()).add(layers[i]);
+        }
+        return partitions;
+    }
+
+    private static PartitionedGraph fromMap(int personCount, TreeMap<Long, List<ContactGraph>> partitions) {
+        int count = 0;
+        for (List<ContactGraph> partition : partitions.values()) {
+            count += partition.size();
+        }
+        long[] keys = new long[count];
+        ContactGraph[] layers = new ContactGraph[count];
+        int i = 0;
+        for (Map.Entry<Long, List<ContactGraph>> entry : partitions.entrySet()) {
+            for (ContactGraph layer : entry.getValue()) {
+                keys[i] = entry.getKey();
+                layers[i] = layer;
+                i++;
+            }
+        }
+        return new PartitionedGraph(personCount, keys, layers);
+    }
+}
@@ -0,0 +1,112 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interns person names to dense int ids, starting from 0 in the order persons are first seen.
+ *
+ * Any number of threads may intern and look up names at the same time. Names are
+ * kept in fixed size chunks which are never moved, so looking up the name of an id
+ * is two array reads and never locks. Only growing the directory of chunks, once
+ * every CHUNK_SIZE new persons, is synchronized.
+ */
+public class PersonDictionary {
+    private static final int CHUNK_BITS = 12; // each chunk holds 2^CHUNK_BITS names.
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final VarHandle NAMES = MethodHandles.arrayElementVarHandle(String[].class);
+
+    private final ConcurrentHashMap<String, Integer> ids; // a hashmap matches each person to their id.
+    private volatile String[][] chunks; // person names indexed by id, split into chunks.
+    private final AtomicInteger size; // the number of ids handed out.
+
+    /**
+     * Creates an empty dictionary.
+     */
+    public PersonDictionary() {
+        ids = new ConcurrentHashMap<>();
+        chunks = new String[1][CHUNK_SIZE];
+        size = new AtomicInteger();
+    }
+
+    /**
+     * Gets the id of a person, giving them the next free id if they haven't been seen before.
+     *
+     * expected runtime: O(1)
+     *
+     * @param person name of the person
+     * @return id of the person
+     * @require person != null
+     */
+    public int intern(String person) {
+        Integer id = ids.get(person);
+        if (id != null) {
+            return id;
+        }
+        return ids.computeIfAbsent(person, (k) -> {
+            int newId = size.getAndIncrement();
+            NAMES.setRelease(chunk(newId), newId & CHUNK_MASK, k);
+            return newId;
+        });
+    }
+
+    /**
+     * Gets the id of a person without interning them.
+     *
+     * @param person name of the person
+     * @return id of the person, or -1 if they haven't been interned
+     */
+    public int id(String person) {
+        Integer id = ids.get(person);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @param id id of a person returned by intern
+     * @return name of the person, or null if another thread is still interning them
+     */
+    public String name(int id) {
+        String[][] directory = chunks;
+        int index = id >>> CHUNK_BITS;
+        if (index >= directory.length || directory[index] == null) {
+            return null;
+        }
+        return (String) NAMES.getAcquire(directory[index], id & CHUNK_MASK);
+    }
+
+    /**
+     * @return the number of ids handed out, so every id is below size()
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * get the chunk holding the given id, creating it if needed.
+     *
+     * @param id id of a person
+     * @return chunk the person's name is stored in
+     */
+    private String[] chunk(int id) {
+        int index = id >>> CHUNK_BITS;
+        String[][] directory = chunks;
+        if (index < directory.length && directory[index] != null) {
+            return directory[index];
+        }
+
+        synchronized (this) {
+            directory = chunks;
+            if (index >= directory.length) {
+                directory = Arrays.copyOf(directory, Math.max(index + 1, directory.length * 2));
+            }
+            if (directory[index] == null) {
+                directory[index] = new String[CHUNK_SIZE];
+            }
+            // publish the directory again so readers see the new chunk.
+            chunks = directory;
+            return directory[index];
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Runs asynchronous queries of a (@see ContactTracer), sharing one computation between
+ * identical queries running at the same time.
+ *
+ * Each caller gets their own future. Cancelling it only detaches that caller, and once
+ * every caller sharing a computation has cancelled, the computation's flag is set so the
+ * query can stop early. A new caller never joins a computation which has been abandoned.
+ */
+class QueryCoalescer {
+    private final ConcurrentHashMap<Object, Shared<?>> running = new ConcurrentHashMap<>(); // computations by query.
+
+    /**
+     * run a query, or join an identical one already running.
+     *
+     * @param key identifies the query, including the snapshot it reads
+     * @param query computes the result, given a flag which is set once nobody wants it
+     * @param copy gives each caller their own copy of the shared result
+     * @param executor executor to run a new computation on
+     * @return a future of the caller's copy of the result
+     */
+    @SuppressWarnings("unchecked")
+    <T> CompletableFuture<T> submit(Object key, Function<AtomicBoolean, T> query, UnaryOperator<T> copy,
+                                    Executor executor) {
+        Shared<T> shared;
+        while (true) {
+            Shared<T> created = new Shared<>(key, query);
+            shared = (Shared<T>) running.putIfAbsent(key, created);
+            if (shared == null) {
+                shared = created;
+                try {
+                    executor.execute(created::run);
+                } catch (RejectedExecutionException e) {
+                    running.remove(key, created);
+                    created.result.completeExceptionally(e);
+                }
+                break;
+            }
+            if (shared.join()) {
+                break;
+            }
+            // every caller of the computation cancelled it while we were joining.
+            running.remove(key, shared);
+        }
+
+        Shared<T> joined = shared;
+        CompletableFuture<T> future = new CompletableFuture<>();
+        joined.result.whenComplete((result, error) -> {
+            if (error == null) {
+                future.complete(copy.apply(result));
+            } else {
+                future.completeExceptionally(error);
+            }
+        });
+        future.whenComplete((result, error) -> {
+            if (future.isCancelled()) {
+                joined.leave();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @return the number of computations running
+     */
+    int size() {
+        return running.size();
+    }
+
+    /**
+     * A computation shared by the callers of identical queries.
+     */
+    private class Shared<T> {
+        final Object key; // the query.
+        final Function<AtomicBoolean, T> query; // computes the result.
+        final CompletableFuture<T> result = new CompletableFuture<>(); // the shared result.
+        final AtomicBoolean cancelled = new AtomicBoolean(); // set once every caller has cancelled.
+        int callers = 1; // callers which haven't cancelled, starting with the one which created it.
+
+        Shared(Object key, Function<AtomicBoolean, T> query) {
+            this.key = key;
+            this.query = query;
+        }
+
+        /**
+         * add a caller, unless every caller has already cancelled.
+         *
+         * @return true if the caller joined
+         */
+        synchronized boolean join() {
+            if (callers == 0) {
+                return false;
+            }
+            callers++;
+            return true;
+        }
+
+        /**
+         * remove a caller which cancelled, and cancel the computation if it was the last.
+         */
+        void leave() {
+            synchronized (this) {
+                if (--callers > 0) {
+                    return;
+                }
+            }
+            cancelled.set(true);
+            running.remove(key, this);
+            result.cancel(false);
+        }
+
+        void run() {
+            try {
+                if (cancelled.get()) {
+                    throw new CancellationException();
+                }
+                result.complete(query.apply(cancelled));
+            } catch (CancellationException e) {
+                result.cancel(false);
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                running.remove(key, this);
+            }
+        }
+    }
+}
@@ -0,0 +1,307 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Estimates of how many people every person could reach with a contact trace starting
+ * from the same time, built from HyperLogLog sketches of each person's reach.
+ *
+ * The sketches are built in one backward pass over the traces in descending time order.
+ * A contact (u, v, t) adds v's reach from t + INCUBATION_PERIOD to u's reach, so each
+ * person keeps the versions of their sketch from the last INCUBATION_PERIOD minutes of
+ * the pass, and nothing older.
+ *
+ * HyperLogLog registers are independent of each other, so the registers are split into
+ * slices and each slice is built by its own task, without any locking.
+ */
+public class ReachSketches {
+    /**
+     * Default log2 of the number of registers per person: 256 bytes per person, with a
+     * standard error of about 6.5%.
+     */
+    public static final int DEFAULT_PRECISION = 8;
+
+    /**
+     * Smallest precision accepted.
+     */
+    public static final int MIN_PRECISION = 4;
+
+    /**
+     * Largest precision accepted.
+     */
+    public static final int MAX_PRECISION = 16;
+
+    private final PersonDictionary persons; // matches each person id to their name.
+    private final double[] estimates; // estimated reach of each person, indexed by id.
+
+    private ReachSketches(PersonDictionary persons, double[] estimates) {
+        this.persons = persons;
+        this.estimates = estimates;
+    }
+
+    /**
+     * build the sketches of every person in the graph.
+     *
+     * runtime: O((V + n) * 2^precision / c) where n is the number of traces at or after
+     * timeOfContagion and c is the number of threads in the pool
+     *
+     * @param graph frozen contact graph
+     * @param persons dictionary of the graph's person ids
+     * @param timeOfContagion the time every person is taken to become contagious
+     * @param precision log2 of the number of registers per person
+     * @param pool pool to build the slices of registers in
+     * @return the estimates
+     * @throws IllegalArgumentException if precision is outside MIN_PRECISION to MAX_PRECISION,
+     *         or the registers of every person don't fit in an array
+     */
+    static ReachSketches build(PartitionedGraph graph, PersonDictionary persons, int timeOfContagion,
+                               int precision, ForkJoinPool pool) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("precision must be between " + MIN_PRECISION + " and " + MAX_PRECISION);
+        }
+
+        int registerCount = 1 << precision;
+        int personCount = graph.personCount();
+        if ((long) personCount * registerCount > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("too many registers for " + personCount + " persons, lower the precision");
+        }
+        byte[] registers = new byte[personCount * registerCount];
+        int sliceWidth = Math.max(1, registerCount / pool.getParallelism());
+        pool.invoke(new SliceTask(graph, timeOfContagion, precision, registers, 0, registerCount, sliceWidth));
+
+        double[] estimates = new double[personCount];
+        for (int p = 0; p < personCount; p++) {
+            // every sketch holds its own person, who isn't part of their reach.
+            estimates[p] = Math.max(0, estimate(registers, p * registerCount, registerCount) - 1);
+        }
+        return new ReachSketches(persons, estimates);
+    }
+
+    /**
+     * @param person person to look up
+     * @return estimated number of people person could reach, or 0 if they have no contacts
+     */
+    public double estimate(String person) {
+        int id = persons.id(person);
+        return id < 0 || id >= estimates.length ? 0 : estimates[id];
+    }
+
+    /**
+     * Finds the persons with the largest estimated reach.
+     *
+     * runtime: O(V log k)
+     *
+     * @param k number of persons to return
+     * @return up to k persons, in descending order of estimated reach
+     */
+    public List<String> topK(int k) {
+        // a min heap of the k largest, ties broken so that lower ids rank higher.
+        PriorityQueue<Integer> top = new PriorityQueue<>((a, b) -> estimates[a] != estimates[b]
+                ? Double.compare(estimates[a], estimates[b]) : Integer.compare(b, a));
+
+        for (int p = 0; p < estimates.length && k > 0; p++) {
+            if (top.size() < k) {
+                top.add(p);
+            } else if (top.comparator().compare(p, top.peek()) > 0) {
+                top.poll();
+                top.add(p);
+            }
+        }
+
+        List<String> result = new ArrayList<>();
+        while (!top.isEmpty()) {
+            result.add(persons.name(top.poll()));
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * estimate the number of distinct elements added to a HyperLogLog sketch.
+     *
+     * @param registers array holding the sketch
+     * @param offset index of the sketch's first register
+     * @param registerCount number of registers in the sketch
+     * @return estimated number of distinct elements
+     */
+    private static double estimate(byte[] registers, int offset, int registerCount) {
+        double sum = 0;
+        int zeros = 0;
+        for (int j = offset; j < offset + registerCount; j++) {
+            sum += 1.0 / (1L << registers[j]);
+            if (registers[j] == 0) {
+                zeros++;
+            }
+        }
+
+        double alpha = registerCount == 16 ? 0.673 : registerCount == 32 ? 0.697
+                : registerCount == 64 ? 0.709 : 0.7213 / (1 + 1.079 / registerCount);
+        double estimate = alpha * registerCount * registerCount / sum;
+
+        // linear counting is more accurate while many registers are empty.
+        if (estimate <= 2.5 * registerCount && zeros > 0) {
+            estimate = registerCount * Math.log((double) registerCount / zeros);
+        }
+        return estimate;
+    }
+
+    /**
+     * @param person id of a person
+     * @return 64 bit hash of the person, spread by the splitmix64 finaliser
+     */
+    private static long hash(int person) {
+        long z = (person + 1L) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * A version of a slice of a person's sketch, from before the updates at a given time.
+     */
+    private static class Version {
+        final int time; // time of the first update made after this version.
+        final byte[] registers; // the slice's registers before that update.
+        Version next; // the version before the next later update, or null.
+
+        Version(int time, byte[] registers, Version next) {
+            this.time = time;
+            this.registers = registers;
+            this.next = next;
+        }
+    }
+
+    /**
+     * A task building a range of register indices of every sketch, split in half until
+     * each range is sliceWidth wide.
+     */
+    private static class SliceTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final PartitionedGraph graph;
+        private final int timeOfContagion;
+        private final int precision;
+        private final byte[] registers; // every person's registers, shared by every task.
+        private final int from; // first register index built by this task.
+        private final int to; // register index just past those built by this task.
+        private final int sliceWidth;
+
+        private Version[] history; // each person's versions, earliest update time first.
+        private int snapshotOffset; // index in the array returned by snapshot of its first register.
+
+        SliceTask(PartitionedGraph graph, int timeOfContagion, int precision, byte[] registers,
+                  int from, int to, int sliceWidth) {
+            this.graph = graph;
+            this.timeOfContagion = timeOfContagion;
+            this.precision = precision;
+            this.registers = registers;
+            this.from = from;
+            this.to = to;
+            this.sliceWidth = sliceWidth;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > sliceWidth) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new SliceTask(graph, timeOfContagion, precision, registers, from, mid, sliceWidth),
+                        new SliceTask(graph, timeOfContagion, precision, registers, mid, to, sliceWidth));
+                return;
+            }
+
+            int registerCount = 1 << precision;
+            history = new Version[graph.personCount()];
+
+            // start each sketch holding its own person.
+            for (int p = 0; p < graph.personCount(); p++) {
+                long hash = hash(p);
+                int index = (int) (hash >>> (64 - precision));
+                if (index >= from && index < to) {
+                    int rank = Math.min(Long.numberOfLeadingZeros(hash << precision) + 1, 64 - precision + 1);
+                    registers[p * registerCount + index] = (byte) rank;
+                }
+            }
+
+            int end = graph.layerCount();
+            while (end > 0) {
+                int first = graph.partitionStart(end - 1);
+                TraceCursor cursor = new TraceCursor(graph, first, end, timeOfContagion, Integer.MAX_VALUE,
+                        Long.MAX_VALUE, true);
+
+                while (cursor.next()) {
+                    int person1 = cursor.person1();
+                    int person2 = cursor.person2();
+                    if (person1 != person2) {
+                        int time = cursor.time();
+                        union(person1, person2, time);
+                        union(person2, person1, time);
+                    }
+                }
+                end = first;
+            }
+        }
+
+        /**
+         * add the reach of to from time + INCUBATION_PERIOD, and to themselves, to the
+         * reach of from, who is in contact with them at time.
+         */
+        private void union(int from, int to, int time) {
+            int registerCount = 1 << precision;
+            byte[] source = snapshot(to, time + ContactTracer.INCUBATION_PERIOD);
+            int sourceOffset = snapshotOffset;
+            int targetOffset = from * registerCount;
+
+            boolean changed = false;
+            for (int j = 0; j < this.to - this.from && !changed; j++) {
+                changed = source[sourceOffset + j] > registers[targetOffset + this.from + j];
+            }
+            if (!changed) {
+                return;
+            }
+
+            // keep the version from before this time's updates for contacts up to
+            // INCUBATION_PERIOD earlier.
+            Version head = history[from];
+            if (head == null || head.time != time) {
+                byte[] before = new byte[this.to - this.from];
+                System.arraycopy(registers, targetOffset + this.from, before, 0, before.length);
+                history[from] = new Version(time, before, head);
+            }
+
+            for (int j = 0; j < this.to - this.from; j++) {
+                if (source[sourceOffset + j] > registers[targetOffset + this.from + j]) {
+                    registers[targetOffset + this.from + j] = source[sourceOffset + j];
+                }
+            }
+        }
+
+        /**
+         * get the slice of a person's sketch as it was once every trace at or after the
+         * given time had been applied, dropping versions which are too late to be needed again.
+         *
+         * @param person id of the person
+         * @param time time to get the sketch at
+         * @return array holding the slice, starting at snapshotOffset
+         */
+        private byte[] snapshot(int person, int time) {
+            Version version = history[person];
+
+            // times only decrease during the pass, so versions at or after time are never needed again.
+            if (version == null || version.time >= time) {
+                history[person] = null;
+                snapshotOffset = person * (1 << precision) + from;
+                return registers;
+            }
+            while (version.next != null && version.next.time < time) {
+                version = version.next;
+            }
+            version.next = null;
+
+            snapshotOffset = 0;
+            return version.registers;
+        }
+    }
+}
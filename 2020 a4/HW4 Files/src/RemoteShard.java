@@ -0,0 +1,107 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A (@see TraceShard) served by a (@see ShardServer), reached over a single TCP connection.
+ *
+ * Requests on the connection are sent one at a time, so threads calling the shard
+ * at once wait for each other.
+ */
+public class RemoteShard implements TraceShard, Closeable {
+    private final Socket socket; // connection to the server.
+    private final DataInputStream in; // replies from the server.
+    private final DataOutputStream out; // requests to the server.
+
+    /**
+     * Connects to a shard served on a loopback port.
+     *
+     * @param port port the shard is served on
+     * @throws IOException if the shard can't be reached
+     */
+    public RemoteShard(int port) throws IOException {
+        this(InetAddress.getLoopbackAddress().getHostAddress(), port);
+    }
+
+    /**
+     * Connects to a shard.
+     *
+     * @param host host the shard is served on
+     * @param port port the shard is served on
+     * @throws IOException if the shard can't be reached
+     */
+    public RemoteShard(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    @Override
+    public synchronized void addTraces(List<Trace> traces) throws IOException {
+        out.writeByte(ShardServer.ADD_TRACES);
+        out.writeInt(traces.size());
+        for (Trace trace : traces) {
+            out.writeUTF(trace.getPerson1());
+            out.writeUTF(trace.getPerson2());
+            out.writeInt(trace.getTime());
+        }
+        send();
+    }
+
+    @Override
+    public synchronized void begin(long query, String person, int timeOfContagion) throws IOException {
+        out.writeByte(ShardServer.BEGIN);
+        out.writeLong(query);
+        out.writeUTF(person);
+        out.writeInt(timeOfContagion);
+        send();
+    }
+
+    @Override
+    public synchronized Map<String, Integer> round(long query, Map<String, Integer> arrivals) throws IOException {
+        out.writeByte(ShardServer.ROUND);
+        out.writeLong(query);
+        ShardServer.writeTimes(out, arrivals);
+        send();
+        return ShardServer.readTimes(in);
+    }
+
+    @Override
+    public synchronized Set<String> finish(long query) throws IOException {
+        out.writeByte(ShardServer.FINISH);
+        out.writeLong(query);
+        send();
+        return ShardServer.readNames(in);
+    }
+
+    /**
+     * Closes the connection.
+     *
+     * @throws IOException if the connection can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * send the request written, and read the status of the reply.
+     *
+     * @throws IOException if the server can't be reached or the request failed
+     */
+    private void send() throws IOException {
+        out.flush();
+        if (in.readByte() != ShardServer.OK) {
+            throw new IOException("shard request failed: " + in.readUTF());
+        }
+    }
+}
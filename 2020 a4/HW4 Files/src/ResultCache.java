@@ -0,0 +1,311 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * A bounded, least recently used cache of contactTrace results held by a (@see ContactTracer).
+ *
+ * Entries are weighed by the number of persons they hold, and the least recently used
+ * entries are evicted once the total weight is over capacity. Each entry keeps the
+ * contact time of every person it reached, so a new trace only invalidates the entries
+ * it could change: those where one of its persons was contagious by the time of the
+ * trace, and it reaches the other person earlier than before.
+ *
+ * Every method is synchronized, so the cache may be used by any number of threads.
+ */
+public class ResultCache {
+    private static final int RECENT_TRACES = 1024; // traces kept to check results computed while they were added.
+
+    private final long capacity; // largest total weight of the entries.
+    private final LinkedHashMap<Long, Entry> entries; // entries by source and time, least recently used first.
+    private final HashMap<Integer, HashSet<Entry>> byPerson; // entries that reached each person id, or started from them.
+    private long weight; // total weight of the entries.
+
+    private long epoch; // the number of traces offered, and of clears.
+    private long clearedAt; // epoch just after the last clear.
+    private final int[] recentPerson1 = new int[RECENT_TRACES]; // the last traces offered, indexed by epoch.
+    private final int[] recentPerson2 = new int[RECENT_TRACES];
+    private final int[] recentTime = new int[RECENT_TRACES];
+
+    private long hits; // lookups which found an entry.
+    private long misses; // lookups which didn't.
+    private long evictions; // entries removed to make room.
+    private long invalidations; // entries removed by traces which could change them.
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param capacity largest total number of persons held by the entries
+     * @require capacity > 0
+     */
+    ResultCache(long capacity) {
+        this.capacity = capacity;
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+        byPerson = new HashMap<>();
+    }
+
+    /**
+     * look up a cached contact trace.
+     *
+     * @param source id of the person the trace started from
+     * @param timeOfContagion the time they became contagious
+     * @return a copy of the cached result, or null if there is none
+     */
+    synchronized Set<String> get(int source, int timeOfContagion) {
+        Entry entry = entries.get(key(source, timeOfContagion));
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new HashSet<>(entry.result);
+    }
+
+    /**
+     * @return the epoch to pass to put for a contact trace about to read the graph
+     */
+    synchronized long epoch() {
+        return epoch;
+    }
+
+    /**
+     * cache the result of a contact trace, unless a trace or clear since startEpoch could
+     * have changed it.
+     *
+     * @param source id of the person the trace started from
+     * @param timeOfContagion the time they became contagious
+     * @param result persons reached
+     * @param reached ids of the persons reached
+     * @param times contact time of each person reached, indexed by id
+     * @param reachedCount number of ids in reached
+     * @param startEpoch epoch() before the trace read the graph
+     */
+    synchronized void put(int source, int timeOfContagion, Set<String> result, int[] reached, int[] times,
+                          int reachedCount, long startEpoch) {
+        if (startEpoch < clearedAt || epoch - startEpoch > RECENT_TRACES || reachedCount + 1 > capacity) {
+            return;
+        }
+
+        // ids are kept sorted, so a person's contact time can be found by binary search.
+        long[] packed = new long[reachedCount + 1];
+        for (int i = 0; i < reachedCount; i++) {
+            packed[i] = ((long) reached[i] << 32) | (times[reached[i]] & 0xFFFFFFFFL);
+        }
+        packed[reachedCount] = ((long) source << 32)
+                | ((timeOfContagion - ContactTracer.INCUBATION_PERIOD) & 0xFFFFFFFFL);
+        Arrays.sort(packed);
+
+        Entry entry = new Entry(key(source, timeOfContagion), source, new HashSet<>(result), packed);
+        for (long e = startEpoch; e < epoch; e++) {
+            int index = (int) (e % RECENT_TRACES);
+            if (entry.isAffectedBy(recentPerson1[index], recentPerson2[index], recentTime[index])) {
+                return;
+            }
+        }
+
+        Entry old = entries.get(entry.key);
+        if (old != null) {
+            remove(old);
+        }
+        entries.put(entry.key, entry);
+        weight += entry.weight();
+        for (long person : packed) {
+            byPerson.computeIfAbsent((int) (person >>> 32), (k) -> new HashSet<>()).add(entry);
+        }
+
+        Iterator<Entry> oldest = entries.values().iterator();
+        while (weight > capacity) {
+            Entry evicted = oldest.next();
+            oldest.remove();
+            unindex(evicted);
+            evictions++;
+        }
+    }
+
+    /**
+     * invalidate the entries a trace just added could change.
+     *
+     * expected runtime: O(e * (log k + k)) where e is the number of entries which reached
+     * either person and k is the number of persons in each of them
+     *
+     * @param person1 id of person one
+     * @param person2 id of person two
+     * @param time time of the contact
+     */
+    synchronized void offer(int person1, int person2, int time) {
+        int index = (int) (epoch % RECENT_TRACES);
+        recentPerson1[index] = person1;
+        recentPerson2[index] = person2;
+        recentTime[index] = time;
+        epoch++;
+
+        ArrayList<Entry> affected = new ArrayList<>();
+        collectAffected(person1, person1, person2, time, affected);
+        collectAffected(person2, person1, person2, time, affected);
+        for (Entry entry : affected) {
+            // an entry reaching both persons is collected twice. containsKey doesn't count as a use.
+            if (entries.containsKey(entry.key)) {
+                remove(entry);
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * remove every entry, and refuse results computed before now.
+     */
+    synchronized void clear() {
+        invalidations += entries.size();
+        entries.clear();
+        byPerson.clear();
+        weight = 0;
+        epoch++;
+        clearedAt = epoch;
+    }
+
+    /**
+     * @return the number of lookups which found a cached result
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups which didn't find a cached result
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of results removed to keep the cache within its capacity
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of results removed because a new trace could have changed them
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * @return the number of cached results
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total number of persons held by the cached results
+     */
+    public synchronized long weight() {
+        return weight;
+    }
+
+    /**
+     * @return the largest total number of persons the cached results may hold
+     */
+    public long capacity() {
+        return capacity;
+    }
+
+    private void collectAffected(int person, int person1, int person2, int time, ArrayList<Entry> affected) {
+        HashSet<Entry> candidates = byPerson.get(person);
+        if (candidates == null) {
+            return;
+        }
+        for (Entry entry : candidates) {
+            if (entry.isAffectedBy(person1, person2, time)) {
+                affected.add(entry);
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.key);
+        unindex(entry);
+    }
+
+    private void unindex(Entry entry) {
+        weight -= entry.weight();
+        for (long person : entry.persons) {
+            int id = (int) (person >>> 32);
+            HashSet<Entry> indexed = byPerson.get(id);
+            indexed.remove(entry);
+            if (indexed.isEmpty()) {
+                byPerson.remove(id);
+            }
+        }
+    }
+
+    private static long key(int source, int timeOfContagion) {
+        return ((long) source << 32) | (timeOfContagion & 0xFFFFFFFFL);
+    }
+
+    /**
+     * A cached contact trace.
+     */
+    private static class Entry {
+        final long key; // source and time of contagion.
+        final int source; // id of the person the trace started from.
+        final Set<String> result; // persons reached.
+        final long[] persons; // each person reached, and the source, as (id << 32 | contact time), sorted.
+
+        Entry(long key, int source, Set<String> result, long[] persons) {
+            this.key = key;
+            this.source = source;
+            this.result = result;
+            this.persons = persons;
+        }
+
+        long weight() {
+            return persons.length;
+        }
+
+        /**
+         * @return true if a contact between the persons at the given time could change the result
+         */
+        boolean isAffectedBy(int person1, int person2, int time) {
+            long time1 = contactTime(person1);
+            long time2 = contactTime(person2);
+            return improves(person2, time1, time2, time) || improves(person1, time2, time1, time);
+        }
+
+        /**
+         * @return true if a person contagious from fromTime + INCUBATION_PERIOD reaches to,
+         *         currently reached at toTime, earlier than before
+         */
+        private boolean improves(int to, long fromTime, long toTime, int time) {
+            return to != source && fromTime != Long.MAX_VALUE
+                    && fromTime + ContactTracer.INCUBATION_PERIOD <= time && time < toTime;
+        }
+
+        /**
+         * @return contact time of the person, or Long.MAX_VALUE if they weren't reached
+         */
+        private long contactTime(int person) {
+            int low = 0;
+            int high = persons.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int id = (int) (persons[mid] >>> 32);
+                if (id < person) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if (low < persons.length && (int) (persons[low] >>> 32) == person) {
+                return (int) persons[low];
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * How long a (@see ContactTracer) keeps traces for, and how its traces are split
+ * into time partitions so that expired traces can be dropped a partition at a time.
+ *
+ * Partition k holds the traces with times in [k * partitionWidth, (k + 1) * partitionWidth).
+ * A partition is dropped once all of its times are more than window minutes older than
+ * the newest trace, so up to window + partitionWidth minutes of traces are kept.
+ */
+public class RetentionPolicy {
+    /**
+     * Keep every trace forever, in a single partition.
+     */
+    public static final RetentionPolicy KEEP_ALL = new RetentionPolicy(0, 0);
+
+    private final int window; // minutes of traces to keep before the newest trace, or 0 to keep all.
+    private final int partitionWidth; // minutes covered by each partition, or 0 for a single partition.
+
+    private RetentionPolicy(int window, int partitionWidth) {
+        this.window = window;
+        this.partitionWidth = partitionWidth;
+    }
+
+    /**
+     * Creates a policy keeping the traces from the last window minutes, relative to the
+     * newest trace seen.
+     *
+     * Queries visit the layers of every partition, and a partition whose contacts involve
+     * many of the persons keeps a row offset for every person, so partitions should be
+     * wide enough that there are only a few of them within the window.
+     *
+     * @param window minutes of traces to keep
+     * @param partitionWidth minutes covered by each partition
+     * @return the policy
+     * @throws IllegalArgumentException if window <= 0 or partitionWidth <= 0
+     */
+    public static RetentionPolicy keepLast(int window, int partitionWidth) {
+        if (window <= 0 || partitionWidth <= 0) {
+            throw new IllegalArgumentException();
+        }
+        return new RetentionPolicy(window, partitionWidth);
+    }
+
+    /**
+     * @return true if traces are ever dropped
+     */
+    public boolean expires() {
+        return window > 0;
+    }
+
+    /**
+     * @return minutes of traces kept before the newest trace, or 0 if all traces are kept
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * @return minutes covered by each partition, or 0 if there is a single partition
+     */
+    public int getPartitionWidth() {
+        return partitionWidth;
+    }
+
+    /**
+     * @param time time of a trace
+     * @return key of the partition holding traces at that time
+     */
+    public long partitionKey(int time) {
+        return partitionWidth == 0 ? 0 : Math.floorDiv(time, partitionWidth);
+    }
+
+    /**
+     * @param newestTime time of the newest trace seen
+     * @return key of the oldest partition which is kept, or Long.MIN_VALUE if all are kept
+     */
+    public long oldestKeptKey(int newestTime) {
+        if (!expires()) {
+            return Long.MIN_VALUE;
+        }
+        return Math.floorDiv((long) newestTime - window, partitionWidth);
+    }
+}
@@ -0,0 +1,209 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Serves a (@see TraceShard) to (@see RemoteShard) clients over TCP, so a shard can run in
+ * its own process.
+ *
+ * Each request is an opcode followed by its arguments, and each reply is a status byte
+ * followed by the result, or by a message if the request failed. Names are written with
+ * writeUTF, and maps and sets as a count followed by their entries. Each connection is
+ * served by its own thread, one request at a time.
+ *
+ * Run on its own, the server holds an empty (@see ContactShard):
+ *   java ShardServer <shard index> <shard count> <port>
+ */
+public class ShardServer implements Closeable {
+    static final byte ADD_TRACES = 1;
+    static final byte BEGIN = 2;
+    static final byte ROUND = 3;
+    static final byte FINISH = 4;
+
+    static final byte OK = 0;
+    static final byte FAILED = 1;
+
+    private final TraceShard shard; // the shard being served.
+    private final ServerSocket server; // socket accepting connections.
+    private final List<Socket> connections = new CopyOnWriteArrayList<>(); // connections being served.
+    private final Thread acceptor; // thread accepting connections until the server is closed.
+
+    /**
+     * Starts serving a shard on a loopback port.
+     *
+     * @param shard shard to serve
+     * @param port port to listen on, or 0 for any free port
+     * @throws IOException if the port can't be bound
+     */
+    public ShardServer(TraceShard shard, int port) throws IOException {
+        this.shard = shard;
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(this::accept, "shard-server-" + server.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Serves a new shard until the process is stopped.
+     *
+     * @param args index of the shard, number of shards and port to listen on, or 0 for any
+     *             free port
+     * @throws IOException if the port can't be bound
+     * @throws InterruptedException if interrupted while serving
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 3) {
+            System.err.println("usage: java ShardServer <shard index> <shard count> <port>");
+            System.exit(2);
+        }
+        int index = Integer.parseInt(args[0]);
+        int shardCount = Integer.parseInt(args[1]);
+        int port = Integer.parseInt(args[2]);
+
+        ShardServer server = new ShardServer(new ContactShard(index, shardCount), port);
+        System.out.println("serving shard " + index + " of " + shardCount + " on port " + server.getPort());
+        server.acceptor.join();
+    }
+
+    /**
+     * @return the port the shard is served on
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections and closes those open.
+     *
+     * @throws IOException if the socket can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (Socket connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket connection = server.accept();
+                connection.setTcpNoDelay(true);
+                connections.add(connection);
+                Thread thread = new Thread(() -> serve(connection), "shard-connection-" + connection.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // the server was closed.
+                return;
+            }
+        }
+    }
+
+    /**
+     * answer requests on a connection until the client closes it.
+     */
+    private void serve(Socket connection) {
+        try (Socket socket = connection;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            while (true) {
+                byte opcode;
+                try {
+                    opcode = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+
+                try {
+                    switch (opcode) {
+                        case ADD_TRACES:
+                            int count = in.readInt();
+                            List<Trace> traces = new ArrayList<>(count);
+                            for (int i = 0; i < count; i++) {
+                                traces.add(new Trace(in.readUTF(), in.readUTF(), in.readInt()));
+                            }
+                            shard.addTraces(traces);
+                            out.writeByte(OK);
+                            break;
+                        case BEGIN:
+                            shard.begin(in.readLong(), in.readUTF(), in.readInt());
+                            out.writeByte(OK);
+                            break;
+                        case ROUND:
+                            long query = in.readLong();
+                            Map<String, Integer> sent = shard.round(query, readTimes(in));
+                            out.writeByte(OK);
+                            writeTimes(out, sent);
+                            break;
+                        case FINISH:
+                            Set<String> reached = shard.finish(in.readLong());
+                            out.writeByte(OK);
+                            writeNames(out, reached);
+                            break;
+                        default:
+                            throw new IOException("unknown opcode " + opcode);
+                    }
+                } catch (RuntimeException e) {
+                    // the request was read in full, so the connection can carry on.
+                    out.writeByte(FAILED);
+                    out.writeUTF(String.valueOf(e.getMessage()));
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the connection was lost or closed, which ends it.
+        } finally {
+            connections.remove(connection);
+        }
+    }
+
+    static Map<String, Integer> readTimes(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Map<String, Integer> times = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            times.put(in.readUTF(), in.readInt());
+        }
+        return times;
+    }
+
+    static void writeTimes(DataOutputStream out, Map<String, Integer> times) throws IOException {
+        out.writeInt(times.size());
+        for (Map.Entry<String, Integer> entry : times.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+    }
+
+    static Set<String> readNames(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            names.add(in.readUTF());
+        }
+        return names;
+    }
+
+    static void writeNames(DataOutputStream out, Collection<String> names) throws IOException {
+        out.writeInt(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+}
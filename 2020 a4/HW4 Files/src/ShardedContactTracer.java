@@ -0,0 +1,239 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A contact tracer whose persons are split between shards by the hash of their name,
+ * so no single shard has to hold every trace.
+ *
+ * Each trace is added to the shards of both its persons. A contact trace runs as rounds
+ * of frontier exchange: in each round, every shard with new arrivals spreads them through
+ * its own persons, and the contact times it finds for persons owned by other shards are
+ * batched by shard, keeping the earliest per person, and sent as the next round's
+ * arrivals. A person's contact time only ever decreases, so the rounds end once no
+ * shard finds an earlier time for anyone, with the same result as a single ContactTracer.
+ *
+ * Shards with arrivals run each round in parallel. Any number of threads may add
+ * traces and run contact traces at the same time.
+ */
+public class ShardedContactTracer implements Closeable {
+    private final List<TraceShard> shards; // shard owning each hash bucket.
+    private final ExecutorService executor; // runs the calls to each shard in a round.
+    private final AtomicLong nextQuery = new AtomicLong(); // id of the next query.
+
+    /**
+     * Creates a tracer over shards, each of which should have been created for its index
+     * in the list and the size of the list.
+     *
+     * @param shards the shards, in order of index
+     * @throws IllegalArgumentException if there are no shards
+     */
+    public ShardedContactTracer(List<? extends TraceShard> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("no shards");
+        }
+        this.shards = new ArrayList<>(shards);
+        executor = Executors.newCachedThreadPool((runnable) -> {
+            Thread thread = new Thread(runnable, "shard-coordinator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a tracer over empty shards in this process.
+     *
+     * @param shardCount number of shards
+     * @return the tracer
+     * @throws IllegalArgumentException if shardCount <= 0
+     */
+    public static ShardedContactTracer inProcess(int shardCount) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("no shards");
+        }
+        List<ContactShard> shards = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new ContactShard(i, shardCount));
+        }
+        return new ShardedContactTracer(shards);
+    }
+
+    /**
+     * Finds the shard owning a person.
+     *
+     * @param person name of the person
+     * @param shardCount number of shards
+     * @return index of the shard
+     */
+    public static int shardOf(String person, int shardCount) {
+        int hash = person.hashCode();
+        // spread the high bits, as names often differ only in their last characters.
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, shardCount);
+    }
+
+    /**
+     * @return number of shards
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Adds a trace to the shards of both its persons.
+     *
+     * @param trace trace to add
+     * @throws IOException if a shard can't be reached
+     */
+    public void addTrace(Trace trace) throws IOException {
+        addTraces(Collections.singletonList(trace));
+    }
+
+    /**
+     * Adds traces, sending each shard a single batch of the traces it holds.
+     *
+     * @param traces traces to add
+     * @throws IOException if a shard can't be reached
+     */
+    public void addTraces(List<Trace> traces) throws IOException {
+        Map<Integer, List<Trace>> batches = new HashMap<>();
+        for (Trace trace : traces) {
+            int shard1 = shardOf(trace.getPerson1(), shards.size());
+            int shard2 = shardOf(trace.getPerson2(), shards.size());
+            batches.computeIfAbsent(shard1, (k) -> new ArrayList<>()).add(trace);
+            if (shard2 != shard1) {
+                batches.computeIfAbsent(shard2, (k) -> new ArrayList<>()).add(trace);
+            }
+        }
+
+        List<Callable<Void>> calls = new ArrayList<>();
+        for (Map.Entry<Integer, List<Trace>> batch : batches.entrySet()) {
+            TraceShard shard = shards.get(batch.getKey());
+            calls.add(() -> {
+                shard.addTraces(batch.getValue());
+                return null;
+            });
+        }
+        invokeAll(calls);
+    }
+
+    /**
+     * Initiates a contact trace starting with the given person, who
+     * became contagious at timeOfContagion, against the traces added before the call.
+     *
+     * runtime: O(r) rounds, where r is the number of times the earliest path to a person
+     * crosses from one shard to another, plus the work of each shard
+     *
+     * @param person to start contact tracing from
+     * @param timeOfContagion the exact time person became contagious
+     * @return set of people who may have contracted the disease, originating from person
+     * @throws IOException if a shard can't be reached
+     */
+    public Set<String> contactTrace(String person, int timeOfContagion) throws IOException {
+        long query = nextQuery.getAndIncrement();
+
+        List<Callable<Void>> begins = new ArrayList<>();
+        for (TraceShard shard : shards) {
+            begins.add(() -> {
+                shard.begin(query, person, timeOfContagion);
+                return null;
+            });
+        }
+        invokeAll(begins);
+
+        Set<String> contactTrace = new HashSet<>();
+        try {
+            // the source is contagious from timeOfContagion, everyone else INCUBATION_PERIOD after their contact.
+            Map<Integer, Map<String, Integer>> arrivals = new HashMap<>();
+            arrivals.put(shardOf(person, shards.size()),
+                    Collections.singletonMap(person, timeOfContagion - ContactTracer.INCUBATION_PERIOD));
+
+            while (!arrivals.isEmpty()) {
+                List<Callable<Map<String, Integer>>> rounds = new ArrayList<>();
+                for (Map.Entry<Integer, Map<String, Integer>> batch : arrivals.entrySet()) {
+                    TraceShard shard = shards.get(batch.getKey());
+                    rounds.add(() -> shard.round(query, batch.getValue()));
+                }
+
+                arrivals = new HashMap<>();
+                for (Map<String, Integer> sent : invokeAll(rounds)) {
+                    for (Map.Entry<String, Integer> arrival : sent.entrySet()) {
+                        arrivals.computeIfAbsent(shardOf(arrival.getKey(), shards.size()), (k) -> new HashMap<>())
+                                .merge(arrival.getKey(), arrival.getValue(), Math::min);
+                    }
+                }
+            }
+        } finally {
+            List<Callable<Set<String>>> finishes = new ArrayList<>();
+            for (TraceShard shard : shards) {
+                finishes.add(() -> shard.finish(query));
+            }
+            for (Set<String> reached : invokeAll(finishes)) {
+                contactTrace.addAll(reached);
+            }
+        }
+        return contactTrace;
+    }
+
+    /**
+     * Stops the threads calling the shards. The shards themselves are left open.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * run calls to shards in parallel, waiting for all of them.
+     *
+     * @param calls calls to run
+     * @return result of each call, in order
+     * @throws IOException the first IOException thrown by a call
+     */
+    private <T> List<T> invokeAll(List<Callable<T>> calls) throws IOException {
+        if (calls.size() == 1) {
+            // a single call needs no other thread.
+            try {
+                return Collections.singletonList(calls.get(0).call());
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : executor.invokeAll(calls)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for shards", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+        return results;
+    }
+}
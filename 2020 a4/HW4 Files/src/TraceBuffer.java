@@ -0,0 +1,153 @@
+import java.util.Arrays;
+
+/**
+ * A growable buffer of contact traces over person ids, used to stage traces
+ * before they are frozen into a (@see ContactGraph).
+ *
+ * Each trace takes three ints and a long version, so staging a trace doesn't
+ * allocate an object.
+ */
+public class TraceBuffer {
+    private int[] person1; // id of the first person of each trace.
+    private int[] person2; // id of the second person of each trace.
+    private int[] time; // time of each trace.
+    private long[] version; // ingest sequence number of each trace, or 0 if it has none yet.
+    private int size; // the number of traces in the buffer.
+
+    /**
+     * Creates an empty buffer.
+     */
+    public TraceBuffer() {
+        this(16);
+    }
+
+    /**
+     * Creates an empty buffer with room for the given number of traces.
+     *
+     * @param capacity initial capacity
+     * @require capacity > 0
+     */
+    public TraceBuffer(int capacity) {
+        person1 = new int[capacity];
+        person2 = new int[capacity];
+        time = new int[capacity];
+        version = new long[capacity];
+        size = 0;
+    }
+
+    /**
+     * Appends a trace without a version to the buffer.
+     *
+     * runtime: amortised O(1)
+     *
+     * @param person1 id of the first person
+     * @param person2 id of the second person
+     * @param time time of the contact
+     */
+    public void add(int person1, int person2, int time) {
+        add(person1, person2, time, 0);
+    }
+
+    /**
+     * Appends a trace to the buffer.
+     *
+     * runtime: amortised O(1)
+     *
+     * @param person1 id of the first person
+     * @param person2 id of the second person
+     * @param time time of the contact
+     * @param version ingest sequence number of the trace
+     */
+    public void add(int person1, int person2, int time, long version) {
+        if (size == this.time.length) {
+            int capacity = size * 2;
+            this.person1 = Arrays.copyOf(this.person1, capacity);
+            this.person2 = Arrays.copyOf(this.person2, capacity);
+            this.time = Arrays.copyOf(this.time, capacity);
+            this.version = Arrays.copyOf(this.version, capacity);
+        }
+
+        this.person1[size] = person1;
+        this.person2[size] = person2;
+        this.time[size] = time;
+        this.version[size] = version;
+        size++;
+    }
+
+    /**
+     * Appends every trace of another buffer to this buffer.
+     *
+     * runtime: amortised O(n) where n is the number of traces in other
+     *
+     * @param other buffer to copy traces from, which is left unchanged
+     */
+    public void addAll(TraceBuffer other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.person1[i], other.person2[i], other.time[i], other.version[i]);
+        }
+    }
+
+    /**
+     * Numbers the traces in the buffer consecutively, in the order they were added.
+     *
+     * @param first version of the first trace
+     */
+    public void assignVersions(long first) {
+        for (int i = 0; i < size; i++) {
+            version[i] = first + i;
+        }
+    }
+
+    /**
+     * @return the number of traces in the buffer
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the buffer holds no traces
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes every trace from the buffer, keeping its capacity.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @param index index of the trace
+     * @return id of the first person of the trace
+     */
+    public int person1(int index) {
+        return person1[index];
+    }
+
+    /**
+     * @param index index of the trace
+     * @return id of the second person of the trace
+     */
+    public int person2(int index) {
+        return person2[index];
+    }
+
+    /**
+     * @param index index of the trace
+     * @return time of the trace
+     */
+    public int time(int index) {
+        return time[index];
+    }
+
+    /**
+     * @param index index of the trace
+     * @return ingest sequence number of the trace, or 0 if it has none
+     */
+    public long version(int index) {
+        return version[index];
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Walks the traces of a partition of a (@see PartitionedGraph) in time order, merging the
+ * time sorted trace columns of the partition's layers.
+ *
+ * A partition usually has one layer, which is walked directly. Otherwise each step takes
+ * the layer whose next trace is earliest (or latest, walking backwards), so a step takes
+ * O(l) for l layers, and a partition has O(log n) layers. Traces with equal times are
+ * returned in no particular order across layers.
+ *
+ * Layers holding only traces newer than the cursor's version are left out, and only
+ * layers holding both older and newer traces check the version of each trace.
+ */
+class TraceCursor {
+    private final boolean descending; // whether traces are walked latest first.
+    private final long version; // version of the newest trace to return.
+    private final ContactGraph[] layers; // layers with traces left, in no particular order.
+    private final int[] positions; // index of the next trace of each layer.
+    private final int[] ends; // index just past the last trace of each layer, or -1 walking backwards.
+    private final boolean[] filters; // whether each layer holds traces newer than version.
+    private int count; // the number of layers with traces left.
+    private ContactGraph layer; // layer of the current trace.
+    private int index; // index of the current trace in its layer.
+
+    /**
+     * @param graph graph holding the partition
+     * @param first index of the partition's first layer
+     * @param end index one past the partition's last layer
+     * @param from earliest time to walk
+     * @param to latest time to walk
+     * @param version version of the newest trace to return
+     * @param descending whether to walk latest first
+     */
+    TraceCursor(PartitionedGraph graph, int first, int end, int from, int to, long version, boolean descending) {
+        this.descending = descending;
+        this.version = version;
+        layers = new ContactGraph[end - first];
+        positions = new int[end - first];
+        ends = new int[end - first];
+        filters = new boolean[end - first];
+
+        for (int k = first; k < end && from <= to; k++) {
+            ContactGraph candidate = graph.layer(k);
+            if (candidate.minVersion() > version) {
+                continue;
+            }
+            int start = candidate.firstTraceAtOrAfter(from);
+            int stop = to == Integer.MAX_VALUE ? candidate.traceCount() : candidate.firstTraceAtOrAfter(to + 1);
+            layers[count] = candidate;
+            positions[count] = descending ? stop - 1 : start;
+            ends[count] = descending ? start - 1 : stop;
+            filters[count] = candidate.maxVersion() > version;
+            if (skipNewer(count)) {
+                count++;
+            }
+        }
+    }
+
+    /**
+     * move to the next trace.
+     *
+     * @return false if there are no traces left
+     */
+    boolean next() {
+        if (count == 0) {
+            return false;
+        }
+        int best = 0;
+        for (int j = 1; j < count; j++) {
+            int time = layers[j].traceTime(positions[j]);
+            int bestTime = layers[best].traceTime(positions[best]);
+            if (descending ? time > bestTime : time < bestTime) {
+                best = j;
+            }
+        }
+
+        layer = layers[best];
+        index = positions[best];
+        positions[best] += descending ? -1 : 1;
+        if (!skipNewer(best)) {
+            // the layer is done, so the last layer takes its place.
+            count--;
+            layers[best] = layers[count];
+            positions[best] = positions[count];
+            ends[best] = ends[count];
+            filters[best] = filters[count];
+        }
+        return true;
+    }
+
+    /**
+     * @return id of the first person of the current trace
+     */
+    int person1() {
+        return layer.tracePerson1(index);
+    }
+
+    /**
+     * @return id of the second person of the current trace
+     */
+    int person2() {
+        return layer.tracePerson2(index);
+    }
+
+    /**
+     * @return time of the current trace
+     */
+    int time() {
+        return layer.traceTime(index);
+    }
+
+    /**
+     * skip the traces of a layer newer than version.
+     *
+     * @param j index of the layer in layers
+     * @return true if the layer has traces left
+     */
+    private boolean skipNewer(int j) {
+        int step = descending ? -1 : 1;
+        if (filters[j]) {
+            while (positions[j] != ends[j] && layers[j].traceVersion(positions[j]) > version) {
+                positions[j] += step;
+            }
+        }
+        return positions[j] != ends[j];
+    }
+}
@@ -0,0 +1,192 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic contact traces which look like real tracing data, for benchmarks.
+ *
+ * - How often each person is in contact follows a Zipf distribution, so the number of
+ *   contacts per person follows a power law: a few people have very many contacts and
+ *   most have few.
+ * - Contacts happen on days spread evenly over the period, at times of day following
+ *   a diurnal curve which peaks in the early afternoon and is lowest at night.
+ *
+ * The same seed and parameters always give the same traces.
+ */
+public class TraceGenerator {
+    /**
+     * Minutes in a day.
+     */
+    public static final int MINUTES_PER_DAY = 60 * 24;
+
+    /**
+     * Zipf exponent used unless given otherwise.
+     */
+    public static final double DEFAULT_SKEW = 1.0;
+
+    private static final int PEAK_MINUTE = 14 * 60; // time of day with the most contacts.
+    private static final double NIGHT_LEVEL = 0.05; // chance of a contact at night, relative to the peak.
+
+    private final Random random; // source of every random choice.
+    private final String[] names; // name of each person, in decreasing order of activity.
+    private final double[] cumulative; // cumulative Zipf weight of the persons up to each rank.
+    private final int days; // the number of days contacts are spread over.
+
+    /**
+     * Creates a generator with DEFAULT_SKEW.
+     *
+     * @param seed seed of the random numbers
+     * @param personCount number of distinct persons
+     * @param days number of days contacts are spread over
+     * @require personCount >= 2 && days > 0
+     */
+    public TraceGenerator(long seed, int personCount, int days) {
+        this(seed, personCount, days, DEFAULT_SKEW);
+    }
+
+    /**
+     * Creates a generator.
+     *
+     * @param seed seed of the random numbers
+     * @param personCount number of distinct persons
+     * @param days number of days contacts are spread over
+     * @param skew Zipf exponent of how often each person is in contact, where 0 gives
+     *             every person the same chance and larger values favour the most active
+     * @require personCount >= 2 && days > 0 && skew >= 0
+     */
+    public TraceGenerator(long seed, int personCount, int days, double skew) {
+        this.random = new Random(seed);
+        this.days = days;
+
+        // activity ranks are given to names at random, so the busiest person isn't always P0.
+        names = new String[personCount];
+        for (int i = 0; i < personCount; i++) {
+            names[i] = "P" + i;
+        }
+        for (int i = personCount - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            String name = names[i];
+            names[i] = names[j];
+            names[j] = name;
+        }
+
+        cumulative = new double[personCount];
+        double total = 0;
+        for (int rank = 0; rank < personCount; rank++) {
+            total += 1 / Math.pow(rank + 1, skew);
+            cumulative[rank] = total;
+        }
+    }
+
+    /**
+     * Generates the next trace.
+     *
+     * runtime: O(log V) expected
+     *
+     * @return a trace between two different persons
+     */
+    public Trace next() {
+        int person1 = sampleRank();
+        int person2 = sampleRank();
+        while (person2 == person1) {
+            person2 = sampleRank();
+        }
+        return new Trace(names[person1], names[person2], sampleTime());
+    }
+
+    /**
+     * Generates a list of traces.
+     *
+     * @param count number of traces
+     * @return the traces
+     */
+    public List<Trace> generate(int count) {
+        List<Trace> traces = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            traces.add(next());
+        }
+        return traces;
+    }
+
+    /**
+     * Writes traces to a CSV file of person1,person2,time lines, without keeping them in memory.
+     *
+     * @param file file to write, which is replaced if it exists
+     * @param count number of traces
+     * @throws IOException if the file can't be written
+     */
+    public void writeCsv(Path file, int count) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (int i = 0; i < count; i++) {
+                Trace trace = next();
+                writer.write(trace.getPerson1());
+                writer.write(',');
+                writer.write(trace.getPerson2());
+                writer.write(',');
+                writer.write(Integer.toString(trace.getTime()));
+                writer.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Picks a person with the same chance of being picked as of being in a trace.
+     *
+     * @return name of the person
+     */
+    public String samplePerson() {
+        return names[sampleRank()];
+    }
+
+    /**
+     * @param rank rank of activity, from 0 for the most active person
+     * @return name of the person with that rank
+     */
+    public String person(int rank) {
+        return names[rank];
+    }
+
+    /**
+     * @return one past the latest time a trace can have
+     */
+    public int endTime() {
+        return days * MINUTES_PER_DAY;
+    }
+
+    /**
+     * @return rank of a person picked with probability proportional to their Zipf weight
+     */
+    private int sampleRank() {
+        double target = random.nextDouble() * cumulative[cumulative.length - 1];
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cumulative[mid] < target) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return a time on a random day, at a time of day picked from the diurnal curve by rejection
+     */
+    private int sampleTime() {
+        int minute;
+        double level;
+        do {
+            minute = random.nextInt(MINUTES_PER_DAY);
+            double phase = 2 * Math.PI * (minute - PEAK_MINUTE) / MINUTES_PER_DAY;
+            level = Math.max(NIGHT_LEVEL, (1 + Math.cos(phase)) / 2);
+        } while (random.nextDouble() >= level);
+
+        return random.nextInt(days) * MINUTES_PER_DAY + minute;
+    }
+}
@@ -0,0 +1,523 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Loads a (@see ContactTracer) from a file of traces, parsing chunks of the file in parallel.
+ *
+ * Two formats are read:
+ *
+ * - CSV: one trace per line as person1,person2,time. Lines may end in \n or \r\n,
+ *   whitespace around fields is ignored, and a first line whose time isn't a number
+ *   is taken to be a header.
+ * - BINARY: BINARY_MAGIC as a big-endian int, then blocks of a big-endian int payload
+ *   length, a big-endian int record count and that many records. Each record is two
+ *   names, each a big-endian int byte length followed by the name in UTF-8, and the
+ *   time as a big-endian int. Blocks let the file be split without reading every record.
+ *
+ * Each chunk is memory mapped and parsed byte by byte by its own task, which interns
+ * names into the tracer's shared dictionary and stages traces as person ids, so no
+ * Trace objects are made. The staged traces are then frozen into the graph in one merge.
+ */
+public class TraceLoader {
+    /**
+     * Formats of trace files.
+     */
+    public enum Format {
+        CSV,
+        BINARY
+    }
+
+    /**
+     * First four bytes of a binary trace file.
+     */
+    public static final int BINARY_MAGIC = 0x54524331;
+
+    /**
+     * Bytes of the file parsed by each task, unless given otherwise.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 22;
+
+    /**
+     * Payload bytes written to each binary block, unless given otherwise.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    private final ForkJoinPool pool; // pool chunks are parsed in.
+    private final int chunkSize; // bytes of the file parsed by each task.
+
+    /**
+     * Creates a loader parsing DEFAULT_CHUNK_SIZE chunks in the common ForkJoinPool.
+     */
+    public TraceLoader() {
+        this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a loader parsing chunks of the given size in the given pool.
+     *
+     * @param pool pool to parse chunks in
+     * @param chunkSize bytes of the file parsed by each task
+     * @require pool != null && chunkSize > 0
+     */
+    public TraceLoader(ForkJoinPool pool, int chunkSize) {
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Loads every trace in a file into a new ContactTracer which keeps all traces.
+     *
+     * @param file file to load
+     * @param format format of the file
+     * @return the loaded tracer and how fast it was loaded
+     * @throws IOException if the file can't be read or is malformed
+     */
+    public Result load(Path file, Format format) throws IOException {
+        return load(file, format, RetentionPolicy.KEEP_ALL);
+    }
+
+    /**
+     * Loads every trace in a file into a new ContactTracer with the given retention policy.
+     *
+     * @param file file to load
+     * @param format format of the file
+     * @param retention how long the tracer keeps traces for
+     * @return the loaded tracer and how fast it was loaded
+     * @throws IOException if the file can't be read or is malformed
+     */
+    public Result load(Path file, Format format, RetentionPolicy retention) throws IOException {
+        long startTime = System.nanoTime();
+        ContactTracer tracer = new ContactTracer(retention);
+        List<TraceBuffer> admitted = new ArrayList<>();
+        long traceCount = 0;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            List<Long> bounds = format == Format.CSV ? csvChunks(channel) : binaryChunks(channel);
+
+            List<Callable<TraceBuffer[]>> tasks = new ArrayList<>();
+            for (int i = 0; i + 1 < bounds.size(); i++) {
+                long from = bounds.get(i);
+                long to = bounds.get(i + 1);
+                tasks.add(() -> {
+                    // the pool wraps checked exceptions in a plain RuntimeException, so wrap them here instead.
+                    try {
+                        TraceBuffer parsed = format == Format.CSV
+                                ? parseCsv(channel, from, to, tracer) : parseBinary(channel, from, to, tracer);
+                        return new TraceBuffer[] {parsed, tracer.admitAll(parsed)};
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+
+            for (Future<TraceBuffer[]> future : pool.invokeAll(tasks)) {
+                TraceBuffer[] chunk = join(future);
+                traceCount += chunk[0].size();
+                admitted.add(chunk[1]);
+            }
+        }
+
+        tracer.mergeAdmitted(admitted);
+        return new Result(tracer, traceCount, System.nanoTime() - startTime);
+    }
+
+    /**
+     * Writes traces to a file in the binary format, in DEFAULT_BLOCK_SIZE blocks.
+     *
+     * @param traces traces to write
+     * @param file file to write, which is replaced if it exists
+     * @throws IOException if the file can't be written
+     */
+    public static void writeBinary(Iterable<Trace> traces, Path file) throws IOException {
+        writeBinary(traces, file, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Writes traces to a file in the binary format. A file is split between tasks at
+     * block boundaries, so blocks should be smaller than the loader's chunk size.
+     *
+     * @param traces traces to write
+     * @param file file to write, which is replaced if it exists
+     * @param blockSize payload bytes in each block, except where a single record is larger
+     * @throws IOException if the file can't be written
+     * @require blockSize > 0
+     */
+    public static void writeBinary(Iterable<Trace> traces, Path file, int blockSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+            magic.putInt(BINARY_MAGIC).flip();
+            writeFully(channel, magic);
+
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            int recordCount = 0;
+            for (Trace trace : traces) {
+                byte[] person1 = trace.getPerson1().getBytes(StandardCharsets.UTF_8);
+                byte[] person2 = trace.getPerson2().getBytes(StandardCharsets.UTF_8);
+                int recordSize = 3 * Integer.BYTES + person1.length + person2.length;
+
+                if (recordCount > 0 && block.remaining() < recordSize) {
+                    writeBlock(channel, block, recordCount);
+                    recordCount = 0;
+                }
+                if (block.capacity() < recordSize) {
+                    block = ByteBuffer.allocate(recordSize);
+                }
+                block.putInt(person1.length).put(person1).putInt(person2.length).put(person2).putInt(trace.getTime());
+                recordCount++;
+            }
+            if (recordCount > 0) {
+                writeBlock(channel, block, recordCount);
+            }
+        }
+    }
+
+    /**
+     * The result of loading a trace file.
+     */
+    public static class Result {
+        private final ContactTracer tracer;
+        private final long traceCount;
+        private final long elapsedNanos;
+
+        Result(ContactTracer tracer, long traceCount, long elapsedNanos) {
+            this.tracer = tracer;
+            this.traceCount = traceCount;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return the loaded tracer
+         */
+        public ContactTracer getTracer() {
+            return tracer;
+        }
+
+        /**
+         * @return the number of traces read from the file, including duplicates
+         */
+        public long getTraceCount() {
+            return traceCount;
+        }
+
+        /**
+         * @return nanoseconds taken to load the file
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return traces read from the file per second
+         */
+        public double getTracesPerSecond() {
+            return traceCount / (Math.max(elapsedNanos, 1) / 1e9);
+        }
+    }
+
+    /**
+     * split a CSV file into chunks of about chunkSize bytes, each ending just after a line break.
+     *
+     * @param channel file to split
+     * @return offsets of the start of each chunk, followed by the file size
+     * @throws IOException if the file can't be read
+     */
+    private List<Long> csvChunks(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long position = chunkSize;
+        while (position < size) {
+            // move forward to the start of the next line.
+            long lineStart = -1;
+            while (lineStart < 0 && position < size) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') {
+                        lineStart = position + i + 1;
+                        break;
+                    }
+                }
+                position += Math.max(read, 0);
+                if (read <= 0) {
+                    break;
+                }
+            }
+            if (lineStart < 0 || lineStart >= size) {
+                break;
+            }
+            bounds.add(lineStart);
+            position = lineStart + chunkSize;
+        }
+
+        bounds.add(size);
+        return bounds;
+    }
+
+    /**
+     * split a binary file into runs of whole blocks of at least chunkSize bytes.
+     *
+     * @param channel file to split
+     * @return offsets of the start of each chunk, followed by the file size
+     * @throws IOException if the file can't be read or isn't a binary trace file
+     */
+    private List<Long> binaryChunks(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES);
+        List<Long> bounds = new ArrayList<>();
+
+        header.limit(Integer.BYTES);
+        if (channel.read(header, 0) < Integer.BYTES || header.getInt(0) != BINARY_MAGIC) {
+            throw new IOException("not a binary trace file");
+        }
+
+        long position = Integer.BYTES;
+        long chunkStart = position;
+        bounds.add(chunkStart);
+        while (position < size) {
+            header.clear();
+            if (channel.read(header, position) < header.capacity()) {
+                throw new IOException("truncated block at byte " + position);
+            }
+            int payload = header.getInt(0);
+            if (payload < 0 || position + header.capacity() + payload > size) {
+                throw new IOException("truncated block at byte " + position);
+            }
+            position += header.capacity() + payload;
+            if (position - chunkStart >= chunkSize && position < size) {
+                chunkStart = position;
+                bounds.add(chunkStart);
+            }
+        }
+
+        bounds.add(size);
+        return bounds;
+    }
+
+    /**
+     * parse the lines of a chunk of a CSV file.
+     *
+     * runtime: O(b) where b is the number of bytes in the chunk
+     *
+     * @param channel file to parse
+     * @param from offset of the first byte of the chunk, which starts a line
+     * @param to offset just past the last byte of the chunk
+     * @param tracer tracer to intern names into
+     * @return traces in the chunk, over person ids
+     * @throws IOException if a line isn't a trace
+     */
+    private static TraceBuffer parseCsv(FileChannel channel, long from, long to, ContactTracer tracer)
+            throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        TraceBuffer traces = new TraceBuffer();
+        NameDecoder names = new NameDecoder();
+        int limit = buffer.limit();
+        int position = 0;
+
+        while (position < limit) {
+            int lineEnd = indexOf(buffer, position, limit, (byte) '\n');
+            if (isBlank(buffer, position, lineEnd)) {
+                position = lineEnd + 1;
+                continue;
+            }
+
+            int comma1 = indexOf(buffer, position, lineEnd, (byte) ',');
+            int comma2 = indexOf(buffer, comma1 + 1, lineEnd, (byte) ',');
+
+            long time = comma2 < lineEnd ? parseTime(buffer, comma2 + 1, lineEnd) : Long.MIN_VALUE;
+            if (time == Long.MIN_VALUE) {
+                // only the first line of the file may be a header.
+                if (from == 0 && position == 0) {
+                    position = lineEnd + 1;
+                    continue;
+                }
+                throw new IOException("malformed trace at byte " + (from + position));
+            }
+
+            int person1 = tracer.intern(names.decode(buffer, position, comma1));
+            int person2 = tracer.intern(names.decode(buffer, comma1 + 1, comma2));
+            traces.add(person1, person2, (int) time);
+            position = lineEnd + 1;
+        }
+        return traces;
+    }
+
+    /**
+     * parse the blocks of a chunk of a binary file.
+     *
+     * runtime: O(b) where b is the number of bytes in the chunk
+     *
+     * @param channel file to parse
+     * @param from offset of the first block of the chunk
+     * @param to offset just past the last block of the chunk
+     * @param tracer tracer to intern names into
+     * @return traces in the chunk, over person ids
+     * @throws IOException if a block is malformed
+     */
+    private static TraceBuffer parseBinary(FileChannel channel, long from, long to, ContactTracer tracer)
+            throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        TraceBuffer traces = new TraceBuffer();
+        NameDecoder names = new NameDecoder();
+
+        try {
+            while (buffer.hasRemaining()) {
+                int payload = buffer.getInt();
+                int recordCount = buffer.getInt();
+                int blockEnd = buffer.position() + payload;
+
+                for (int i = 0; i < recordCount; i++) {
+                    int length1 = buffer.getInt();
+                    int person1 = tracer.intern(names.decode(buffer, buffer.position(), buffer.position() + length1));
+                    buffer.position(buffer.position() + length1);
+                    int length2 = buffer.getInt();
+                    int person2 = tracer.intern(names.decode(buffer, buffer.position(), buffer.position() + length2));
+                    buffer.position(buffer.position() + length2);
+                    traces.add(person1, person2, buffer.getInt());
+                }
+                if (buffer.position() != blockEnd) {
+                    throw new IOException("malformed block ending at byte " + (from + blockEnd));
+                }
+            }
+        } catch (RuntimeException e) {
+            // a length running past the end of the chunk.
+            throw new IOException("malformed block in bytes " + from + " to " + to, e);
+        }
+        return traces;
+    }
+
+    /**
+     * @return index of the first b in buffer between from and to, or to if there is none
+     */
+    private static int indexOf(ByteBuffer buffer, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * @return true if the bytes between from and to are all whitespace
+     */
+    private static boolean isBlank(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!isSpace(buffer.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * parse a decimal int between from and to, ignoring surrounding whitespace.
+     *
+     * @return the int, or Long.MIN_VALUE if the bytes aren't an int
+     */
+    private static long parseTime(ByteBuffer buffer, int from, int to) {
+        while (from < to && isSpace(buffer.get(from))) {
+            from++;
+        }
+        while (to > from && isSpace(buffer.get(to - 1))) {
+            to--;
+        }
+
+        boolean negative = from < to && buffer.get(from) == '-';
+        int start = negative ? from + 1 : from;
+        if (start == to || to - start > 10) {
+            return Long.MIN_VALUE;
+        }
+
+        long value = 0;
+        for (int i = start; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? Long.MIN_VALUE : value;
+    }
+
+    /**
+     * Decodes names out of a mapped file, reusing one byte array for every name.
+     */
+    private static class NameDecoder {
+        private byte[] bytes = new byte[64];
+
+        /**
+         * @return the UTF-8 name between from and to, ignoring surrounding whitespace
+         */
+        String decode(ByteBuffer buffer, int from, int to) {
+            while (from < to && isSpace(buffer.get(from))) {
+                from++;
+            }
+            while (to > from && isSpace(buffer.get(to - 1))) {
+                to--;
+            }
+
+            int length = to - from;
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(from + i);
+            }
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static TraceBuffer[] join(Future<TraceBuffer[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while loading", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void writeBlock(FileChannel channel, ByteBuffer block, int recordCount) throws IOException {
+        block.flip();
+        ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES);
+        header.putInt(block.remaining()).putInt(recordCount).flip();
+        writeFully(channel, header);
+        writeFully(channel, block);
+        block.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The files a (@see ContactTracer) is persisted to, kept together in one directory:
+ *
+ * - traces.log: every trace, as records of three big-endian ints (person1 id,
+ *   person2 id, time), appended in the order they were merged into the graph. As
+ *   traces are numbered in that order, the version of each trace is its position in
+ *   the log, counting from 1.
+ * - persons.dict: every person name, in id order, as a big-endian int byte length
+ *   followed by the name in UTF-8.
+ * - graph.snapshot: a (@see PartitionedGraph) snapshot holding the unexpired traces
+ *   among the first n records of traces.log, preceded by n as a big-endian long and
+ *   the window and partition width of its (@see RetentionPolicy) as big-endian ints.
+ *
+ * Every file is read through a MappedByteBuffer, so restarting means copying the
+ * snapshot arrays out of the mapping and merging in only the log records written
+ * after the snapshot.
+ */
+public class TraceLog implements Closeable {
+    /**
+     * Bytes taken by each record of traces.log.
+     */
+    public static final int RECORD_SIZE = 3 * Integer.BYTES;
+
+    private static final String LOG_FILE = "traces.log";
+    private static final String NAMES_FILE = "persons.dict";
+    private static final String SNAPSHOT_FILE = "graph.snapshot";
+
+    private final Path directory; // directory holding the files.
+    private final FileChannel log; // traces.log, opened for appending.
+    private final FileChannel names; // persons.dict, opened for appending.
+    private long recordCount; // the number of records in traces.log.
+    private int nameCount; // the number of names in persons.dict.
+
+    private TraceLog(Path directory, FileChannel log, FileChannel names, long recordCount, int nameCount) {
+        this.directory = directory;
+        this.log = log;
+        this.names = names;
+        this.recordCount = recordCount;
+        this.nameCount = nameCount;
+    }
+
+    /**
+     * Opens the trace log in the given directory, creating the directory and an empty
+     * log if they don't exist.
+     *
+     * Any partly written record or name at the end of a file, left by a crash during
+     * an append, is cut off.
+     *
+     * @param directory directory holding the files
+     * @param dictionary empty dictionary to load the persons of persons.dict into
+     * @return the opened log
+     * @throws IOException if the files can't be opened or read
+     */
+    public static TraceLog open(Path directory, PersonDictionary dictionary) throws IOException {
+        Files.createDirectories(directory);
+
+        FileChannel names = FileChannel.open(directory.resolve(NAMES_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int nameCount = 0;
+        long nameBytes = 0;
+        if (names.size() > 0) {
+            MappedByteBuffer buffer = names.map(FileChannel.MapMode.READ_ONLY, 0, names.size());
+            while (buffer.remaining() >= Integer.BYTES) {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                dictionary.intern(new String(bytes, StandardCharsets.UTF_8));
+                nameCount++;
+                nameBytes = buffer.position();
+            }
+        }
+        names.truncate(nameBytes);
+        names.position(nameBytes);
+
+        FileChannel log = FileChannel.open(directory.resolve(LOG_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long recordCount = log.size() / RECORD_SIZE;
+        log.truncate(recordCount * RECORD_SIZE);
+        log.position(recordCount * RECORD_SIZE);
+
+        return new TraceLog(directory, log, names, recordCount, nameCount);
+    }
+
+    /**
+     * @return the number of trace records in the log
+     */
+    public long recordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return the number of names in the dictionary file
+     */
+    public int nameCount() {
+        return nameCount;
+    }
+
+    /**
+     * Appends the names of persons with ids from nameCount() up to, but not including,
+     * upTo to the dictionary file.
+     *
+     * @param dictionary dictionary to take names from
+     * @param upTo id to stop at
+     * @throws IOException if the file can't be written
+     */
+    public void appendNames(PersonDictionary dictionary, int upTo) throws IOException {
+        while (nameCount < upTo) {
+            String name = dictionary.name(nameCount);
+            // a person being interned by another thread has an id a moment before their name.
+            while (name == null) {
+                Thread.onSpinWait();
+                name = dictionary.name(nameCount);
+            }
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + bytes.length);
+            buffer.putInt(bytes.length).put(bytes).flip();
+            writeFully(names, buffer);
+            nameCount++;
+        }
+    }
+
+    /**
+     * Appends every trace in the buffer to the log.
+     *
+     * @param traces traces to append
+     * @throws IOException if the file can't be written
+     */
+    public void appendTraces(TraceBuffer traces) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * Math.min(traces.size(), 1 << 14));
+        for (int i = 0; i < traces.size(); i++) {
+            buffer.putInt(traces.person1(i)).putInt(traces.person2(i)).putInt(traces.time(i));
+            if (!buffer.hasRemaining()) {
+                buffer.flip();
+                writeFully(log, buffer);
+                buffer.clear();
+            }
+        }
+        buffer.flip();
+        writeFully(log, buffer);
+        recordCount += traces.size();
+    }
+
+    /**
+     * Forces appended traces and names to disk.
+     *
+     * @throws IOException if the files can't be forced
+     */
+    public void force() throws IOException {
+        names.force(false);
+        log.force(false);
+    }
+
+    /**
+     * Writes a snapshot of the graph, which must hold exactly the unexpired traces in
+     * the log. The snapshot is written to a temporary file and moved over the old one,
+     * so a crash leaves either the old or the new snapshot.
+     *
+     * @param graph graph holding the first recordCount() records of the log
+     * @param retention policy the graph was partitioned by
+     * @throws IOException if the snapshot can't be written
+     */
+    public void writeSnapshot(PartitionedGraph graph, RetentionPolicy retention) throws IOException {
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(Long.BYTES + 2 * Integer.BYTES);
+            header.putLong(recordCount).putInt(retention.getWindow()).putInt(retention.getPartitionWidth()).flip();
+            writeFully(channel, header);
+            graph.write(channel);
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT_FILE),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the graph held by the files: the snapshot, if there is one, merged with the
+     * log records written after it. Expired partitions are not dropped.
+     *
+     * @param personCount number of persons in the dictionary
+     * @param retention policy to partition the graph by
+     * @return graph holding every trace in the log which isn't left out of the snapshot
+     * @throws IOException if the files can't be read
+     */
+    public PartitionedGraph readGraph(int personCount, RetentionPolicy retention) throws IOException {
+        PartitionedGraph graph = PartitionedGraph.EMPTY;
+        long covered = 0;
+
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            boolean samePolicy;
+            try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                covered = buffer.getLong();
+                samePolicy = buffer.getInt() == retention.getWindow()
+                        && buffer.getInt() == retention.getPartitionWidth();
+                if (samePolicy) {
+                    try {
+                        graph = PartitionedGraph.read(buffer);
+                    } catch (IOException e) {
+                        // a snapshot written in an older format, without versions, is rebuilt from the log.
+                        samePolicy = false;
+                    }
+                }
+            }
+            // a snapshot newer than the log can't be trusted, and one taken under another
+            // policy may be missing traces or partitioned differently, so rebuild from the log alone.
+            if (covered > recordCount || !samePolicy) {
+                graph = PartitionedGraph.EMPTY;
+                covered = 0;
+            }
+        }
+
+        TraceBuffer tail = new TraceBuffer();
+        if (covered < recordCount) {
+            MappedByteBuffer buffer = log.map(FileChannel.MapMode.READ_ONLY, covered * RECORD_SIZE,
+                    (recordCount - covered) * RECORD_SIZE);
+            while (buffer.hasRemaining()) {
+                int person1 = buffer.getInt();
+                int person2 = buffer.getInt();
+                int time = buffer.getInt();
+                // a record naming a person missing from the dictionary was written after the
+                // last complete checkpoint, so it and everything after it is dropped.
+                if (person1 < 0 || person2 < 0 || person1 >= personCount || person2 >= personCount) {
+                    recordCount = covered + tail.size();
+                    log.truncate(recordCount * RECORD_SIZE);
+                    log.position(recordCount * RECORD_SIZE);
+                    break;
+                }
+                tail.add(person1, person2, time, covered + tail.size() + 1);
+            }
+        }
+
+        return graph.merge(tail, Math.max(graph.personCount(), personCount), retention);
+    }
+
+    /**
+     * Closes the files.
+     *
+     * @throws IOException if the files can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            log.close();
+        } finally {
+            names.close();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,375 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The traces of a (@see ContactTracer) with times in a range, in time order.
+ *
+ * A range is a view over the time sorted trace columns of each layer of a frozen graph,
+ * found by binary search, so it is made in O(L log n) and holds no copy of the traces.
+ * The layers of a partition may overlap in time, so within a partition traces are
+ * ordered by time, then by layer, then by their order in the layer. The graph is never
+ * modified, so a range never changes and can be read by any number of threads, and its
+ * spliterator splits evenly for parallel streams.
+ */
+public class TraceRange {
+    private final PersonDictionary persons; // matches each person id to their name.
+    private final ContactGraph[][] layers; // layers holding traces in the range of each partition, in time order.
+    private final int[][] starts; // index of the first trace in the range in each layer.
+    private final int[][] ends; // index just past the last trace in the range in each layer.
+    private final long[] offsets; // index in the range of each partition's first trace, with offsets[P] == size.
+
+    private TraceRange(PersonDictionary persons, ContactGraph[][] layers, int[][] starts, int[][] ends,
+                       long[] offsets) {
+        this.persons = persons;
+        this.layers = layers;
+        this.starts = starts;
+        this.ends = ends;
+        this.offsets = offsets;
+    }
+
+    /**
+     * find the traces of a graph in a range.
+     *
+     * runtime: O(L log n) where L is the number of layers and n the number of traces in each
+     *
+     * @param graph frozen contact graph
+     * @param persons dictionary of the graph's person ids
+     * @param from the earliest time in the range
+     * @param to the latest time in the range
+     * @return the traces with from <= time <= to
+     */
+    static TraceRange of(PartitionedGraph graph, PersonDictionary persons, int from, int to) {
+        List<ContactGraph[]> layers = new ArrayList<>();
+        List<int[]> starts = new ArrayList<>();
+        List<int[]> ends = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        long size = 0;
+
+        int first = 0;
+        while (first < graph.layerCount() && from <= to) {
+            int end = graph.partitionEnd(first);
+            ContactGraph[] partition = new ContactGraph[end - first];
+            int[] partitionStarts = new int[end - first];
+            int[] partitionEnds = new int[end - first];
+            int count = 0;
+            long partitionSize = 0;
+
+            for (int k = first; k < end; k++) {
+                ContactGraph layer = graph.layer(k);
+                int start = layer.firstTraceAtOrAfter(from);
+                int stop = to == Integer.MAX_VALUE ? layer.traceCount() : layer.firstTraceAtOrAfter(to + 1);
+                if (start < stop) {
+                    partition[count] = layer;
+                    partitionStarts[count] = start;
+                    partitionEnds[count] = stop;
+                    partitionSize += stop - start;
+                    count++;
+                }
+            }
+            if (count > 0) {
+                layers.add(Arrays.copyOf(partition, count));
+                starts.add(Arrays.copyOf(partitionStarts, count));
+                ends.add(Arrays.copyOf(partitionEnds, count));
+                offsets.add(size);
+                size += partitionSize;
+            }
+            first = end;
+        }
+
+        long[] keptOffsets = new long[offsets.size() + 1];
+        for (int k = 0; k < offsets.size(); k++) {
+            keptOffsets[k] = offsets.get(k);
+        }
+        keptOffsets[offsets.size()] = size;
+        return new TraceRange(persons, layers.toArray(new ContactGraph[0][]), starts.toArray(new int[0][]),
+                ends.toArray(new int[0][]), keptOffsets);
+    }
+
+    /**
+     * @return the number of traces in the range
+     */
+    public long size() {
+        return offsets[layers.length];
+    }
+
+    /**
+     * Gets a trace by its position in the range.
+     *
+     * runtime: O(log P), or O(l log n log T) if its partition has l > 1 layers, where T
+     * is the span of times in the partition
+     *
+     * @param index position of the trace, in time order
+     * @return the trace
+     * @throws IndexOutOfBoundsException if index isn't between 0 and size() - 1
+     */
+    public Trace get(long index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index " + index + " out of " + size());
+        }
+        int k = partitionOf(index);
+        int[] positions = positionsAt(k, index - offsets[k]);
+        int j = nextLayer(k, positions);
+        return trace(layers[k][j], positions[j]);
+    }
+
+    /**
+     * Counts the traces in each interval of the given width, where intervals start at
+     * multiples of the width. Traces are sorted by time, so the end of each interval is
+     * found by binary search rather than counting its traces one by one.
+     *
+     * runtime: O(L + b log n) where b is the number of intervals holding a trace in each layer
+     *
+     * @param width minutes in each interval
+     * @return number of traces in each interval holding any, by the start time of the interval
+     * @throws IllegalArgumentException if width <= 0
+     */
+    public SortedMap<Integer, Long> countByInterval(int width) {
+        if (width <= 0) {
+            throw new IllegalArgumentException("width must be positive");
+        }
+        TreeMap<Integer, Long> counts = new TreeMap<>();
+
+        for (int k = 0; k < layers.length; k++) {
+            for (int j = 0; j < layers[k].length; j++) {
+                ContactGraph layer = layers[k][j];
+                int end = ends[k][j];
+                int i = starts[k][j];
+                while (i < end) {
+                    long intervalStart = Math.floorDiv((long) layer.traceTime(i), width) * width;
+                    long intervalEnd = intervalStart + width;
+                    int next = intervalEnd > Integer.MAX_VALUE ? end
+                            : Math.min(end, layer.firstTraceAtOrAfter((int) intervalEnd));
+                    counts.merge((int) intervalStart, (long) (next - i), Long::sum);
+                    i = next;
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Counts the traces in each hour.
+     *
+     * @return number of traces in each hour holding any, by the start time of the hour
+     */
+    public SortedMap<Integer, Long> countPerHour() {
+        return countByInterval(60);
+    }
+
+    /**
+     * @return a spliterator over the traces in time order, which splits in half by position
+     */
+    public Spliterator<Trace> spliterator() {
+        return new TraceSpliterator(0, size());
+    }
+
+    /**
+     * @return a sequential stream of the traces in time order
+     */
+    public Stream<Trace> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * @return a parallel stream of the traces
+     */
+    public Stream<Trace> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    /**
+     * @return index of the partition holding the trace at the given position
+     */
+    private int partitionOf(long index) {
+        int low = 0;
+        int high = layers.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (offsets[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * find where each layer of a partition is once the given number of the partition's
+     * traces have been passed, in range order.
+     *
+     * the time of the next trace is found by binary search over times, counting the traces
+     * before each time in every layer, then the traces at that time are taken from the
+     * layers in order.
+     *
+     * @param k index of the partition
+     * @param rank number of the partition's traces passed
+     * @return index of the next trace in the range of each layer
+     */
+    private int[] positionsAt(int k, long rank) {
+        int[] positions = starts[k].clone();
+        if (layers[k].length == 1 || rank == 0) {
+            positions[0] += (int) rank;
+            return positions;
+        }
+
+        // the smallest time with more than rank traces at or before it.
+        long low = Integer.MIN_VALUE;
+        long high = Integer.MAX_VALUE;
+        while (low < high) {
+            long mid = Math.floorDiv(low + high, 2);
+            if (countBefore(k, mid + 1) > rank) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+
+        long remaining = rank;
+        for (int j = 0; j < positions.length; j++) {
+            positions[j] = bound(k, j, low);
+            remaining -= positions[j] - starts[k][j];
+        }
+        for (int j = 0; j < positions.length && remaining > 0; j++) {
+            int taken = (int) Math.min(remaining, bound(k, j, low + 1) - positions[j]);
+            positions[j] += taken;
+            remaining -= taken;
+        }
+        return positions;
+    }
+
+    /**
+     * @return the number of a partition's traces in the range with times before time
+     */
+    private long countBefore(int k, long time) {
+        long count = 0;
+        for (int j = 0; j < layers[k].length; j++) {
+            count += bound(k, j, time) - starts[k][j];
+        }
+        return count;
+    }
+
+    /**
+     * @return index of the first trace in the range of a layer at or after time
+     */
+    private int bound(int k, int j, long time) {
+        if (time > Integer.MAX_VALUE) {
+            return ends[k][j];
+        }
+        int i = time < Integer.MIN_VALUE ? 0 : layers[k][j].firstTraceAtOrAfter((int) time);
+        return Math.max(starts[k][j], Math.min(ends[k][j], i));
+    }
+
+    /**
+     * @return index of the layer of a partition holding the next trace, the earliest
+     *         and then the first layer holding it, or -1 if every layer is done
+     */
+    private int nextLayer(int k, int[] positions) {
+        int next = -1;
+        for (int j = 0; j < positions.length; j++) {
+            if (positions[j] < ends[k][j] && (next < 0
+                    || layers[k][j].traceTime(positions[j]) < layers[k][next].traceTime(positions[next]))) {
+                next = j;
+            }
+        }
+        return next;
+    }
+
+    private Trace trace(ContactGraph layer, int i) {
+        return new Trace(persons.name(layer.tracePerson1(i)), persons.name(layer.tracePerson2(i)),
+                layer.traceTime(i));
+    }
+
+    /**
+     * A spliterator over the traces at positions [index, end) of the range.
+     */
+    private class TraceSpliterator implements Spliterator<Trace> {
+        private long index; // position of the next trace.
+        private final long end; // position one past the last trace.
+        private int partition; // partition holding the next trace.
+        private int[] positions; // index of the next trace in each layer of the partition.
+
+        TraceSpliterator(long index, long end) {
+            this.index = index;
+            this.end = end;
+            seek(index);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Trace> action) {
+            if (index >= end) {
+                return false;
+            }
+            if (index >= offsets[partition + 1]) {
+                seek(index);
+            }
+            int j = nextLayer(partition, positions);
+            action.accept(trace(layers[partition][j], positions[j]++));
+            index++;
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Trace> action) {
+            while (index < end) {
+                if (index >= offsets[partition + 1]) {
+                    seek(index);
+                }
+                long stop = Math.min(end, offsets[partition + 1]);
+                if (layers[partition].length == 1) {
+                    // walk a single layer's columns directly, rather than choosing a layer for every trace.
+                    ContactGraph layer = layers[partition][0];
+                    int i = positions[0];
+                    for (; index < stop; index++, i++) {
+                        action.accept(trace(layer, i));
+                    }
+                    positions[0] = i;
+                } else {
+                    for (; index < stop; index++) {
+                        int j = nextLayer(partition, positions);
+                        action.accept(trace(layers[partition][j], positions[j]++));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public Spliterator<Trace> trySplit() {
+            long mid = (index + end) >>> 1;
+            if (mid <= index) {
+                return null;
+            }
+            Spliterator<Trace> prefix = new TraceSpliterator(index, mid);
+            index = mid;
+            seek(mid);
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - index;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | IMMUTABLE | NONNULL;
+        }
+
+        /**
+         * move to the trace at the given position, if it is in the range.
+         */
+        private void seek(long position) {
+            if (position < end) {
+                partition = partitionOf(position);
+                positions = positionsAt(partition, position - offsets[partition]);
+            }
+        }
+    }
+}
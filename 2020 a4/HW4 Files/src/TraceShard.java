@@ -0,0 +1,53 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One shard of a (@see ShardedContactTracer), holding the traces of the persons it owns.
+ *
+ * A contact trace runs on the shards as a query with an id chosen by the coordinator:
+ * begin it on every shard, exchange rounds of arrivals until no shard sends any more,
+ * then finish it on every shard to collect the persons reached. Shards may be in this
+ * process (@see ContactShard) or behind a socket (@see RemoteShard).
+ */
+public interface TraceShard {
+    /**
+     * Adds traces with at least one person owned by the shard.
+     *
+     * @param traces traces to add
+     * @throws IOException if the shard can't be reached
+     */
+    void addTraces(List<Trace> traces) throws IOException;
+
+    /**
+     * Starts a contact trace query against the traces added so far.
+     *
+     * @param query id of the query, unique among the queries running
+     * @param person the person the trace starts from
+     * @param timeOfContagion the exact time person became contagious
+     * @throws IOException if the shard can't be reached
+     */
+    void begin(long query, String person, int timeOfContagion) throws IOException;
+
+    /**
+     * Runs one round of a query: records the contact times of persons owned by the shard,
+     * spreads them through the shard's own persons, and returns the contacts made with
+     * persons owned by other shards.
+     *
+     * @param query id of a query begun on the shard
+     * @param arrivals contact time of persons owned by the shard, by name
+     * @return earliest new contact time of persons owned by other shards, by name
+     * @throws IOException if the shard can't be reached
+     */
+    Map<String, Integer> round(long query, Map<String, Integer> arrivals) throws IOException;
+
+    /**
+     * Ends a query, releasing its state.
+     *
+     * @param query id of a query begun on the shard
+     * @return persons owned by the shard which were reached, other than the one the trace started from
+     * @throws IOException if the shard can't be reached
+     */
+    Set<String> finish(long query) throws IOException;
+}
@@ -0,0 +1,214 @@
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the operations of a (@see ContactTracer), and
+ * totals of the work done by its contact trace queries.
+ *
+ * Every counter is a LongAdder, so threads recording at the same time don't contend
+ * on a single cache line. Latencies are counted in power of two buckets: bucket i
+ * holds the calls taking from 2^i up to 2^(i + 1) nanoseconds.
+ */
+public class TracerMetrics {
+    /**
+     * Operations of a ContactTracer which are timed.
+     */
+    public enum Operation {
+        ADD_TRACE,
+        GET_CONTACT_TIMES,
+        GET_CONTACTS,
+        GET_CONTACTS_AFTER,
+        CONTACT_TRACE
+    }
+
+    /**
+     * Number of latency buckets, enough for any long number of nanoseconds.
+     */
+    public static final int BUCKET_COUNT = 64;
+
+    private final EnumMap<Operation, LongAdder[]> histograms; // latency buckets of each operation.
+    private final EnumMap<Operation, LongAdder> totalNanos; // total latency of each operation.
+    private final LongAdder queries; // contact trace queries run against the graph.
+    private final LongAdder verticesVisited; // persons whose contacts were scanned by queries.
+    private final LongAdder edgesRelaxed; // contacts scanned by queries.
+    private final LongAccumulator peakFrontier; // largest frontier of any query.
+
+    /**
+     * Creates metrics with every counter at zero.
+     */
+    public TracerMetrics() {
+        histograms = new EnumMap<>(Operation.class);
+        totalNanos = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = new LongAdder();
+            }
+            histograms.put(operation, buckets);
+            totalNanos.put(operation, new LongAdder());
+        }
+        queries = new LongAdder();
+        verticesVisited = new LongAdder();
+        edgesRelaxed = new LongAdder();
+        peakFrontier = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * Records a call of an operation.
+     *
+     * @param operation operation called
+     * @param nanos nanoseconds the call took
+     */
+    public void record(Operation operation, long nanos) {
+        histograms.get(operation)[bucket(nanos)].increment();
+        totalNanos.get(operation).add(nanos);
+    }
+
+    /**
+     * Records the work done by a contact trace query.
+     *
+     * @param visited persons whose contacts were scanned
+     * @param relaxed contacts scanned
+     * @param frontier largest number of persons waiting to be scanned at once, which for an
+     *                 earliest arrival pass is the persons reached but not yet contagious
+     */
+    public void recordQuery(long visited, long relaxed, long frontier) {
+        queries.increment();
+        verticesVisited.add(visited);
+        edgesRelaxed.add(relaxed);
+        peakFrontier.accumulate(frontier);
+    }
+
+    /**
+     * Takes a snapshot of every counter. Counters recorded while the snapshot is taken
+     * may or may not be included.
+     *
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        EnumMap<Operation, long[]> histogramCopies = new EnumMap<>(Operation.class);
+        EnumMap<Operation, Long> totalCopies = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            LongAdder[] buckets = histograms.get(operation);
+            long[] counts = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            histogramCopies.put(operation, counts);
+            totalCopies.put(operation, totalNanos.get(operation).sum());
+        }
+        return new Snapshot(histogramCopies, totalCopies, queries.sum(), verticesVisited.sum(),
+                edgesRelaxed.sum(), peakFrontier.get());
+    }
+
+    /**
+     * @param nanos a latency
+     * @return the bucket counting the latency
+     */
+    static int bucket(long nanos) {
+        return nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    /**
+     * The values of a TracerMetrics' counters at one moment.
+     */
+    public static class Snapshot {
+        private final Map<Operation, long[]> histograms;
+        private final Map<Operation, Long> totalNanos;
+        private final long queries;
+        private final long verticesVisited;
+        private final long edgesRelaxed;
+        private final long peakFrontier;
+
+        Snapshot(Map<Operation, long[]> histograms, Map<Operation, Long> totalNanos, long queries,
+                 long verticesVisited, long edgesRelaxed, long peakFrontier) {
+            this.histograms = histograms;
+            this.totalNanos = totalNanos;
+            this.queries = queries;
+            this.verticesVisited = verticesVisited;
+            this.edgesRelaxed = edgesRelaxed;
+            this.peakFrontier = peakFrontier;
+        }
+
+        /**
+         * @param operation an operation
+         * @return the number of calls of the operation
+         */
+        public long count(Operation operation) {
+            long count = 0;
+            for (long bucket : histograms.get(operation)) {
+                count += bucket;
+            }
+            return count;
+        }
+
+        /**
+         * @param operation an operation
+         * @return total nanoseconds taken by calls of the operation
+         */
+        public long totalNanos(Operation operation) {
+            return totalNanos.get(operation);
+        }
+
+        /**
+         * @param operation an operation
+         * @return a copy of the operation's latency buckets, where bucket i counts the calls
+         *         taking from 2^i up to 2^(i + 1) nanoseconds
+         */
+        public long[] histogram(Operation operation) {
+            return histograms.get(operation).clone();
+        }
+
+        /**
+         * Finds an upper bound of a percentile of an operation's latency, to within a
+         * factor of two.
+         *
+         * @param operation an operation
+         * @param percentile percentile to find, from 0 to 100
+         * @return the upper end of the bucket holding the percentile, or 0 if there were no calls
+         */
+        public long percentileNanos(Operation operation, double percentile) {
+            long[] buckets = histograms.get(operation);
+            long count = count(operation);
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets[i];
+                if (seen >= Math.max(rank, 1) && buckets[i] > 0) {
+                    return i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return the number of contact trace queries run against the graph
+         */
+        public long queries() {
+            return queries;
+        }
+
+        /**
+         * @return the total number of persons whose contacts were scanned by queries
+         */
+        public long verticesVisited() {
+            return verticesVisited;
+        }
+
+        /**
+         * @return the total number of contacts scanned by queries
+         */
+        public long edgesRelaxed() {
+            return edgesRelaxed;
+        }
+
+        /**
+         * @return the largest number of persons waiting to be scanned at once by any query
+         */
+        public long peakFrontier() {
+            return peakFrontier;
+        }
+    }
+}
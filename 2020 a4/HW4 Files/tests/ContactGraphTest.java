@@ -0,0 +1,209 @@
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.Test;
+
+public class ContactGraphTest {
+
+    @Test
+    public void testMergeKeepsRowsSortedByTime() {
+        TraceBuffer staged = new TraceBuffer();
+        staged.add(0, 1, 300);
+        staged.add(0, 2, 100);
+        ContactGraph graph = ContactGraph.EMPTY.merge(staged, 3);
+
+        staged.clear();
+        staged.add(2, 0, 200);
+        staged.add(1, 2, 50);
+        graph = graph.merge(staged, 4);
+
+        assertEquals(4, graph.personCount());
+        assertEquals(8, graph.contactCount());
+
+        // person 0: 100 -> 2, 200 -> 2, 300 -> 1
+        assertEquals(3, graph.rowEnd(0) - graph.rowStart(0));
+        assertEquals(100, graph.time(graph.rowStart(0)));
+        assertEquals(200, graph.time(graph.rowStart(0) + 1));
+        assertEquals(300, graph.time(graph.rowStart(0) + 2));
+        assertEquals(1, graph.neighbour(graph.rowStart(0) + 2));
+
+        // person 1: 50 -> 2, 300 -> 0
+        assertEquals(2, graph.neighbour(graph.rowStart(1)));
+        assertEquals(0, graph.neighbour(graph.rowStart(1) + 1));
+
+        // person 3 has no contacts, and ids past the graph have empty rows.
+        assertEquals(graph.rowStart(3), graph.rowEnd(3));
+        assertEquals(graph.rowStart(10), graph.rowEnd(10));
+    }
+
+    @Test
+    public void testLowerBound() {
+        TraceBuffer staged = new TraceBuffer(1);
+        staged.add(0, 1, 100);
+        staged.add(0, 2, 200);
+        staged.add(0, 3, 200);
+        staged.add(0, 4, 300);
+        ContactGraph graph = ContactGraph.EMPTY.merge(staged, 5);
+
+        assertEquals(graph.rowStart(0), graph.lowerBound(0, 0));
+        assertEquals(graph.rowStart(0) + 1, graph.lowerBound(0, 101));
+        assertEquals(graph.rowStart(0) + 1, graph.lowerBound(0, 200));
+        assertEquals(graph.rowStart(0) + 3, graph.lowerBound(0, 300));
+        assertEquals(graph.rowEnd(0), graph.lowerBound(0, 301));
+    }
+
+    @Test
+    public void testPartitionedSnapshotRoundTrip() throws Exception {
+        RetentionPolicy policy = RetentionPolicy.keepLast(10000, 500);
+        TraceBuffer staged = new TraceBuffer();
+        staged.add(0, 1, 100);
+        staged.add(1, 2, 700);
+        staged.add(2, 3, 1300);
+        staged.add(3, 0, 1350);
+        // few of the persons have contacts, so each layer's rows are sparse.
+        PartitionedGraph graph = PartitionedGraph.EMPTY.merge(staged, 100, policy);
+        assertEquals(3, graph.layerCount());
+
+        Path file = Files.createTempFile("graph", ".snapshot");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            graph.write(channel);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        PartitionedGraph read = PartitionedGraph.read(buffer);
+        Files.delete(file);
+
+        // every partition is read from where the one before it ended, leaving nothing over.
+        assertFalse(buffer.hasRemaining());
+        assertEquals(graph.personCount(), read.personCount());
+        assertEquals(graph.layerCount(), read.layerCount());
+        for (int k = 0; k < graph.layerCount(); k++) {
+            assertEquals(graph.key(k), read.key(k));
+            ContactGraph expected = graph.layer(k);
+            ContactGraph actual = read.layer(k);
+            assertEquals(expected.rowCount(), actual.rowCount());
+            for (int p = 0; p < 4; p++) {
+                assertEquals(expected.rowEnd(p) - expected.rowStart(p), actual.rowEnd(p) - actual.rowStart(p));
+            }
+            assertEquals(expected.traceCount(), actual.traceCount());
+            for (int i = 0; i < expected.traceCount(); i++) {
+                assertEquals(expected.tracePerson1(i), actual.tracePerson1(i));
+                assertEquals(expected.tracePerson2(i), actual.tracePerson2(i));
+                assertEquals(expected.traceTime(i), actual.traceTime(i));
+            }
+        }
+    }
+
+    @Test
+    public void testSparseRows() {
+        TraceBuffer staged = new TraceBuffer();
+        staged.add(900, 5, 200);
+        staged.add(5, 900, 100);
+        staged.add(42, 42, 150);
+        ContactGraph graph = ContactGraph.EMPTY.merge(staged, 1000);
+
+        // only the persons with contacts have a row.
+        assertEquals(3, graph.rowCount());
+        assertEquals(5, graph.rowPerson(0));
+        assertEquals(42, graph.rowPerson(1));
+        assertEquals(900, graph.rowPerson(2));
+        assertEquals(2, graph.rowEnd(5) - graph.rowStart(5));
+        assertEquals(100, graph.time(graph.rowStart(5)));
+        assertEquals(200, graph.time(graph.rowStart(900) + 1));
+        // a trace of a person with themselves is a contact in their row twice.
+        assertEquals(2, graph.rowEnd(42) - graph.rowStart(42));
+        assertEquals(graph.rowStart(6), graph.rowEnd(6));
+        assertEquals(graph.rowStart(2000), graph.rowEnd(2000));
+
+        // once enough persons have contacts, every person has a row.
+        staged.clear();
+        for (int p = 0; p < 300; p++) {
+            staged.add(p, p + 1, 300);
+        }
+        graph = graph.merge(staged, 1000);
+        assertEquals(1000, graph.rowCount());
+        assertEquals(4, graph.rowEnd(5) - graph.rowStart(5));
+        assertEquals(100, graph.time(graph.rowStart(5)));
+        assertEquals(300, graph.time(graph.rowEnd(5) - 1));
+        assertEquals(graph.rowStart(999), graph.rowEnd(999));
+    }
+
+    @Test
+    public void testCompactionKeepsFewLayers() {
+        PartitionedGraph graph = PartitionedGraph.EMPTY;
+        TraceBuffer all = new TraceBuffer();
+        for (int i = 0; i < 1000; i++) {
+            TraceBuffer staged = new TraceBuffer(1);
+            staged.add(i % 37, (i * 7) % 41, (i * 13) % 500, i + 1);
+            all.add(i % 37, (i * 7) % 41, (i * 13) % 500, i + 1);
+            graph = graph.merge(staged, 41, RetentionPolicy.KEEP_ALL).compact();
+            // each layer is more than twice the size of the next, so there are O(log n) of them.
+            assertTrue(graph.layerCount() <= 11);
+        }
+        assertEquals(1000, graph.traceCount());
+
+        ContactGraph expected = ContactGraph.EMPTY.merge(all, 41);
+        for (int p = 0; p < 41; p++) {
+            int contacts = 0;
+            for (int k = 0; k < graph.layerCount(); k++) {
+                ContactGraph layer = graph.layer(k);
+                contacts += layer.rowEnd(p) - layer.rowStart(p);
+                for (int i = layer.rowStart(p) + 1; i < layer.rowEnd(p); i++) {
+                    assertTrue(layer.time(i - 1) <= layer.time(i));
+                }
+            }
+            assertEquals(expected.rowEnd(p) - expected.rowStart(p), contacts);
+        }
+
+        ContactGraph compacted = graph.layer(0);
+        for (int k = 1; k < graph.layerCount(); k++) {
+            compacted = PartitionedGraph.mergeLayers(compacted, graph.layer(k), 41);
+        }
+        for (int i = 0; i < expected.traceCount(); i++) {
+            assertEquals(expected.traceTime(i), compacted.traceTime(i));
+        }
+    }
+
+    @Test
+    public void testVersionsAreOffsetsFromBase() {
+        long base = 5L << 32;
+        TraceBuffer staged = new TraceBuffer();
+        staged.add(0, 1, 100, base + 7);
+        staged.add(1, 2, 50, base + 3);
+        ContactGraph graph = ContactGraph.EMPTY.merge(staged, 3);
+
+        assertEquals(base + 3, graph.minVersion());
+        assertEquals(base + 7, graph.maxVersion());
+        assertEquals(base + 3, graph.traceVersion(0));
+        assertEquals(base + 7, graph.version(graph.rowStart(0)));
+
+        // merging older traces moves the base down without changing any version.
+        staged.clear();
+        staged.add(0, 2, 75, base - 10);
+        graph = graph.merge(staged, 3);
+        assertEquals(base - 10, graph.minVersion());
+        assertEquals(base - 10, graph.traceVersion(1));
+        assertEquals(base + 7, graph.traceVersion(2));
+        assertEquals(base + 7, graph.version(graph.rowEnd(0) - 1));
+
+        // layers whose versions together don't fit in an int offset are never merged.
+        PartitionedGraph layers = PartitionedGraph.EMPTY;
+        staged.clear();
+        staged.add(0, 1, 100, 1);
+        layers = layers.merge(staged, 3, RetentionPolicy.KEEP_ALL);
+        staged.clear();
+        staged.add(1, 2, 200, 1L << 40);
+        layers = layers.merge(staged, 3, RetentionPolicy.KEEP_ALL);
+        assertEquals(-1, layers.nextCompaction());
+        assertEquals(2, layers.compact().layerCount());
+        try {
+            layers.layer(0).merge(layers.layer(1).traces(), 3);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected.
+        }
+    }
+}
@@ -1,11 +1,65 @@
 import static org.junit.Assert.*;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class ContactTracerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder(); // deleted after each test, with the files written in it.
+
+    private static ContactTracer specTracer() {
+        ContactTracer tracer = new ContactTracer();
+        for (Trace trace : TestTraces.specTraces()) {
+            tracer.addTrace(trace);
+        }
+        return tracer;
+    }
     
+    /**
+     * Contact trace by repeatedly applying every trace until nothing changes.
+     */
+    private static Set<String> bruteForceTrace(List<Trace> traces, String person, int timeOfContagion) {
+        Map<String, Integer> contagious = new HashMap<>();
+        contagious.put(person, timeOfContagion);
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Trace trace : traces) {
+                String[][] directions = {{trace.getPerson1(), trace.getPerson2()},
+                        {trace.getPerson2(), trace.getPerson1()}};
+                for (String[] direction : directions) {
+                    Integer from = contagious.get(direction[0]);
+                    Integer to = contagious.get(direction[1]);
+                    if (from != null && trace.getTime() >= from
+                            && (to == null || trace.getTime() + 60 < to) && !direction[1].equals(person)) {
+                        contagious.put(direction[1], trace.getTime() + 60);
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        Set<String> reached = new HashSet<>(contagious.keySet());
+        reached.remove(person);
+        return reached;
+    }
+
     @Test
     public void testSpecExample() {
         ContactTracer tracer = new ContactTracer();
@@ -21,6 +75,17 @@ public class ContactTracerTest {
         assertEquals(Set.of("Matt", "Kristian", "Kenton", "Max"), 
                 tracer.contactTrace("Anna", 130));
     }
+
+    @Test
+    public void testSpecExampleEarliestArrival() {
+        ContactTracer tracer = specTracer();
+
+        assertEquals(Set.of("Matt", "Kristian", "Kenton", "Max"),
+                tracer.contactTrace("Anna", 130, ContactTracer.TraceMode.EARLIEST_ARRIVAL));
+        assertEquals(Set.of("Kenton", "Max"),
+                tracer.contactTrace("Kristian", 3300, ContactTracer.TraceMode.EARLIEST_ARRIVAL));
+        assertEquals(Set.of(), tracer.contactTrace("Nobody", 0, ContactTracer.TraceMode.EARLIEST_ARRIVAL));
+    }
     
     @Test
     public void testGetContacts() {
@@ -81,4 +146,777 @@ public class ContactTracerTest {
         assertEquals(Set.of("Matt"), tracer.getContactsAfter("Anna", 101));
         assertEquals(Set.of(), tracer.getContactsAfter("Anna", 1741));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testDuplicateTraces() {
+        ContactTracer tracer = new ContactTracer();
+        tracer.addTrace(new Trace("Anna", "Sanni", 300));
+        tracer.addTrace(new Trace("Sanni", "Anna", 100));
+        tracer.addTrace(new Trace("Anna", "Sanni", 200));
+        // same pair at the same time, in either order, is only stored once.
+        tracer.addTrace(new Trace("Sanni", "Anna", 300));
+        tracer.addTrace(new Trace("Anna", "Sanni", 100));
+
+        assertEquals(List.of(100, 200, 300), tracer.getContactTimes("Anna", "Sanni"));
+        assertEquals(List.of(100, 200, 300), tracer.getContactTimes("Sanni", "Anna"));
+        assertEquals(List.of(), tracer.getContactTimes("Anna", "Nobody"));
+    }
+
+    @Test
+    public void testTracesAreBidirectional() {
+        ContactTracer tracer = new ContactTracer();
+        // each trace names the later person first, so the trace has to be followed backwards.
+        tracer.addTrace(new Trace("Matt", "Anna", 200));
+        tracer.addTrace(new Trace("Kristian", "Matt", 300));
+        tracer.addTrace(new Trace("Max", "Kristian", 310));
+
+        assertEquals(Set.of("Matt"), tracer.getContacts("Anna"));
+        assertEquals(Set.of("Kristian"), tracer.getContactsAfter("Matt", 201));
+        assertEquals(Set.of(), tracer.getContacts("Nobody"));
+        assertEquals(Set.of(), tracer.getContactsAfter("Nobody", 0));
+
+        // Kristian is only contagious from 360, so Max isn't reached.
+        assertEquals(Set.of("Matt", "Kristian"), tracer.contactTrace("Anna", 100));
+    }
+
+    @Test
+    public void testRepeatedContactTrace() {
+        ContactTracer tracer = specTracer();
+
+        assertEquals(Set.of("Matt", "Kristian", "Kenton", "Max"), tracer.contactTrace("Anna", 130));
+        // a later query mustn't see persons reached by an earlier one.
+        assertEquals(Set.of("Kenton", "Max"), tracer.contactTrace("Kristian", 3300));
+        assertEquals(Set.of(), tracer.contactTrace("Anna", 2000));
+        assertEquals(Set.of("Matt", "Kristian", "Kenton", "Max"), tracer.contactTrace("Anna", 130));
+    }
+
+    @Test
+    public void testConcurrentContactTrace() throws Exception {
+        ContactTracer tracer = specTracer();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+
+        try {
+            List<Future<Set<String>>> fromAnna = new ArrayList<>();
+            List<Future<Set<String>>> fromKristian = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                fromAnna.add(pool.submit(() -> tracer.contactTrace("Anna", 130)));
+                fromKristian.add(pool.submit(() -> tracer.contactTrace("Kristian", 3300)));
+            }
+
+            for (int i = 0; i < 200; i++) {
+                assertEquals(Set.of("Matt", "Kristian", "Kenton", "Max"), fromAnna.get(i).get());
+                assertEquals(Set.of("Kenton", "Max"), fromKristian.get(i).get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testMatchesBruteForce() {
+        List<Trace> traces = TestTraces.randomTraces(3506, 40, 300);
+        ContactTracer tracer = new ContactTracer();
+
+        // interleave adds and queries so that the graph is rebuilt several times.
+        for (int i = 0; i < traces.size(); i++) {
+            tracer.addTrace(traces.get(i));
+            if (i % 50 == 49) {
+                List<Trace> added = traces.subList(0, i + 1);
+                for (int p = 0; p < 40; p += 7) {
+                    assertEquals(bruteForceTrace(added, "P" + p, 1000), tracer.contactTrace("P" + p, 1000));
+                }
+            }
+        }
+
+        ContactTracer bulk = new ContactTracer(traces);
+        for (int p = 0; p < 40; p++) {
+            assertEquals(bruteForceTrace(traces, "P" + p, 0), bulk.contactTrace("P" + p, 0));
+            assertEquals(bruteForceTrace(traces, "P" + p, 2500),
+                    bulk.contactTrace("P" + p, 2500, ContactTracer.TraceMode.EARLIEST_ARRIVAL));
+            assertEquals(tracer.getContacts("P" + p), bulk.getContacts("P" + p));
+        }
+    }
+
+    @Test
+    public void testContactTraceAll() {
+        List<Trace> traces = TestTraces.randomTraces(1998, 60, 400);
+        ContactTracer tracer = new ContactTracer(traces);
+
+        List<ContactTracer.Seed> seeds = new ArrayList<>();
+        for (int p = 0; p < 60; p++) {
+            seeds.add(new ContactTracer.Seed("P" + p, p * 40));
+        }
+        seeds.add(new ContactTracer.Seed("Nobody", 0));
+
+        for (ContactTracer.TraceMode mode : ContactTracer.TraceMode.values()) {
+            List<Set<String>> results = tracer.contactTraceAll(seeds, mode);
+            assertEquals(seeds.size(), results.size());
+            for (int i = 0; i < seeds.size(); i++) {
+                ContactTracer.Seed seed = seeds.get(i);
+                assertEquals(tracer.contactTrace(seed.getPerson(), seed.getTimeOfContagion()), results.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentAddTrace() throws Exception {
+        List<Trace> traces = TestTraces.randomTraces(2020, 500, 3 * ContactTracer.SEGMENT_SIZE);
+        ContactTracer tracer = new ContactTracer();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            // every thread adds every trace, so each trace is offered four times.
+            for (int t = 0; t < 4; t++) {
+                tasks.add(pool.submit(() -> {
+                    for (Trace trace : traces) {
+                        tracer.addTrace(trace);
+                    }
+                }));
+                // queries run alongside the writers without failing.
+                tasks.add(pool.submit(() -> tracer.contactTrace("P0", 0)));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        ContactTracer expected = new ContactTracer(traces);
+        for (int p = 0; p < 500; p += 13) {
+            assertEquals(expected.getContacts("P" + p), tracer.getContacts("P" + p));
+            assertEquals(expected.getContactTimes("P" + p, "P" + (p + 1)), tracer.getContactTimes("P" + p, "P" + (p + 1)));
+            assertEquals(expected.contactTrace("P" + p, 2000), tracer.contactTrace("P" + p, 2000));
+        }
+    }
+
+    @Test
+    public void testReopenFromLog() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+        List<Trace> traces = TestTraces.randomTraces(4492, 80, 600);
+
+        ContactTracer tracer = ContactTracer.open(directory);
+        for (Trace trace : traces.subList(0, 300)) {
+            tracer.addTrace(trace);
+        }
+        tracer.writeSnapshot();
+        // these are only in the log, after the snapshot.
+        for (Trace trace : traces.subList(300, 600)) {
+            tracer.addTrace(trace);
+        }
+        tracer.flushLog();
+        tracer.addTrace(new Trace("Unlogged", "P0", 0));
+        tracer.close();
+
+        ContactTracer reopened = ContactTracer.open(directory);
+        ContactTracer expected = new ContactTracer(traces);
+        try {
+            for (int p = 0; p < 80; p += 3) {
+                assertEquals(expected.getContacts("P" + p), reopened.getContacts("P" + p));
+                assertEquals(expected.getContactTimes("P" + p, "P" + (p + 5)),
+                        reopened.getContactTimes("P" + p, "P" + (p + 5)));
+                assertEquals(expected.contactTrace("P" + p, 1000), reopened.contactTrace("P" + p, 1000));
+            }
+            assertEquals(Set.of(), reopened.getContacts("Unlogged"));
+
+            // traces loaded from the files are still deduplicated, and new ones are logged.
+            Trace first = traces.get(0);
+            reopened.addTrace(first);
+            assertEquals(expected.getContactTimes(first.getPerson1(), first.getPerson2()),
+                    reopened.getContactTimes(first.getPerson1(), first.getPerson2()));
+            reopened.addTrace(new Trace("Late", "P1", 6000));
+            reopened.flushLog();
+        } finally {
+            reopened.close();
+        }
+
+        ContactTracer again = ContactTracer.open(directory);
+        try {
+            assertEquals(Set.of("P1"), again.getContacts("Late"));
+        } finally {
+            again.close();
+        }
+    }
+
+    @Test
+    public void testRetentionDropsExpiredTraces() {
+        ContactTracer tracer = new ContactTracer(RetentionPolicy.keepLast(100, 50));
+        tracer.addTrace(new Trace("A", "B", 10));
+        tracer.addTrace(new Trace("B", "C", 120));
+        assertEquals(Set.of("B"), tracer.getContacts("A"));
+
+        // the newest trace moves the window past the partition holding A and B's contact.
+        tracer.addTrace(new Trace("C", "D", 200));
+        tracer.addTrace(new Trace("B", "C", 160));
+        assertEquals(Set.of(), tracer.getContacts("A"));
+        assertEquals(List.of(), tracer.getContactTimes("A", "B"));
+        assertEquals(List.of(120, 160), tracer.getContactTimes("C", "B"));
+        assertEquals(Set.of("C", "D"), tracer.contactTrace("B", 100));
+        assertEquals(Set.of(), tracer.contactTrace("A", 0, ContactTracer.TraceMode.EARLIEST_ARRIVAL));
+
+        // a trace arriving after its partition expired is ignored.
+        tracer.addTrace(new Trace("A", "B", 20));
+        assertEquals(List.of(), tracer.getContactTimes("A", "B"));
+        assertEquals(Set.of("C"), tracer.getContacts("B"));
+    }
+
+    @Test
+    public void testReopenPartitionedSnapshot() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+        RetentionPolicy policy = RetentionPolicy.keepLast(10000, 500);
+
+        ContactTracer tracer = ContactTracer.open(directory, policy);
+        tracer.addTrace(new Trace("A", "B", 100));
+        tracer.addTrace(new Trace("B", "C", 700));
+        tracer.addTrace(new Trace("C", "D", 1300));
+        tracer.writeSnapshot();
+        tracer.close();
+
+        ContactTracer reopened = ContactTracer.open(directory, policy);
+        try {
+            assertEquals(Set.of("B", "C", "D"), reopened.contactTrace("A", 100));
+            assertEquals(Set.of("B", "D"), reopened.getContacts("C"));
+            assertEquals(List.of(1300), reopened.getContactTimes("D", "C"));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testPartitionedMatchesUnpartitioned() {
+        List<Trace> traces = TestTraces.randomTraces(2718, 150, 1500);
+        ContactTracer expected = new ContactTracer(traces);
+        // the window is wider than every trace time, so nothing expires.
+        ContactTracer partitioned = new ContactTracer(RetentionPolicy.keepLast(10000, 500));
+        for (Trace trace : traces) {
+            partitioned.addTrace(trace);
+        }
+
+        for (int p = 0; p < 150; p += 7) {
+            String person = "P" + p;
+            assertEquals(expected.getContacts(person), partitioned.getContacts(person));
+            assertEquals(expected.getContactsAfter(person, 2500), partitioned.getContactsAfter(person, 2500));
+            assertEquals(expected.getContactTimes(person, "P" + (p + 1)),
+                    partitioned.getContactTimes(person, "P" + (p + 1)));
+            for (ContactTracer.TraceMode mode : ContactTracer.TraceMode.values()) {
+                assertEquals(expected.contactTrace(person, 1200, mode), partitioned.contactTrace(person, 1200, mode));
+            }
+        }
+    }
+
+    @Test
+    public void testLayeredMatchesSingleLayer() {
+        List<Trace> traces = TestTraces.randomTraces(8128, 100, 1200);
+        ContactTracer expected = new ContactTracer(traces);
+        // querying between adds freezes the traces into many small layers.
+        ContactTracer layered = new ContactTracer();
+        for (int i = 0; i < traces.size(); i++) {
+            layered.addTrace(traces.get(i));
+            if (i % 7 == 0) {
+                layered.getContacts(traces.get(i).getPerson1());
+            }
+        }
+
+        for (int p = 0; p < 100; p += 3) {
+            String person = "P" + p;
+            assertEquals(expected.getContacts(person), layered.getContacts(person));
+            assertEquals(expected.getContactsAfter(person, 2500), layered.getContactsAfter(person, 2500));
+            assertEquals(expected.sourceTrace(person, 4000), layered.sourceTrace(person, 4000));
+            for (ContactTracer.TraceMode mode : ContactTracer.TraceMode.values()) {
+                assertEquals(expected.contactTrace(person, 1200, mode), layered.contactTrace(person, 1200, mode));
+            }
+        }
+        assertEquals(expected.getTracesBetween(1000, 3000).countPerHour(),
+                layered.getTracesBetween(1000, 3000).countPerHour());
+    }
+
+    @Test
+    public void testIdleSegmentsAreRetired() throws Exception {
+        ContactTracer tracer = new ContactTracer();
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            writer.submit(() -> tracer.addTrace(new Trace("Anna", "Matt", 100))).get();
+            // the writer's segment is drained, then retired by the next two merges which find nothing new in it.
+            for (int i = 0; i < 3; i++) {
+                tracer.addTrace(new Trace("Sanni", "Max", 200 + i));
+                tracer.getContacts("Sanni");
+            }
+            assertEquals(1, tracer.segmentCount());
+
+            // a writer whose segment was retired starts a new one.
+            writer.submit(() -> tracer.addTrace(new Trace("Anna", "Kristian", 300))).get();
+            assertEquals(Set.of("Matt", "Kristian"), tracer.getContacts("Anna"));
+            assertEquals(2, tracer.segmentCount());
+        } finally {
+            writer.shutdown();
+        }
+    }
+
+    @Test
+    public void testBackgroundCompaction() throws Exception {
+        List<Trace> traces = TestTraces.randomTraces(6174, 80, 2000);
+        ContactTracer tracer = new ContactTracer();
+        for (Trace trace : traces) {
+            tracer.addTrace(trace);
+            tracer.getContacts(trace.getPerson1());
+        }
+
+        // every query froze a layer of its own, which the compactor merges in the background.
+        long deadline = System.currentTimeMillis() + 10000;
+        while (tracer.graph().nextCompaction() >= 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        PartitionedGraph graph = tracer.graph();
+        assertEquals(-1, graph.nextCompaction());
+        assertTrue(graph.layerCount() <= 12);
+        assertEquals(new ContactTracer(traces).graph().traceCount(), graph.traceCount());
+    }
+
+    @Test
+    public void testStandingQuerySpecExample() {
+        ContactTracer tracer = new ContactTracer();
+        tracer.addTrace(new Trace("Anna", "Sanni", 100));
+        List<Set<String>> deltas = new ArrayList<>();
+        ContactTracer.StandingQuery query = tracer.watch("Anna", 80, deltas::add);
+        assertEquals(Set.of("Sanni"), query.getReached());
+
+        tracer.addTrace(new Trace("Anna", "Matt", 1740));
+        tracer.addTrace(new Trace("Kristian", "Kenton", 3360));
+        // Matt is contagious from 1800, so this reaches Kristian and, through the earlier-added
+        // contact at 3360, Kenton.
+        tracer.addTrace(new Trace("Matt", "Kristian", 3240));
+        // too soon after Kristian was infected for him to pass it on.
+        tracer.addTrace(new Trace("Kristian", "Max", 3260));
+        assertEquals(List.of(Set.of("Matt"), Set.of("Kristian", "Kenton")), deltas);
+        assertEquals(Set.of("Sanni", "Matt", "Kristian", "Kenton"), query.getReached());
+
+        query.close();
+        tracer.addTrace(new Trace("Kenton", "Max", 4000));
+        assertEquals(2, deltas.size());
+    }
+
+    @Test
+    public void testStandingQueryOnUnknownPerson() {
+        ContactTracer tracer = specTracer();
+        int personCount = tracer.dictionary().size();
+        List<Set<String>> deltas = new ArrayList<>();
+        ContactTracer.StandingQuery query = tracer.watch("Zoe", 4000, deltas::add);
+        assertEquals(Set.of(), query.getReached());
+        // watching a person doesn't add them to the tracer.
+        assertEquals(personCount, tracer.dictionary().size());
+
+        tracer.addTrace(new Trace("Kenton", "Max", 4100));
+        tracer.addTrace(new Trace("Zoe", "Kenton", 4010));
+        assertEquals(List.of(Set.of("Kenton", "Max")), deltas);
+
+        // traces merged by a query are taken out of the query's pending traces, not relaxed again.
+        tracer.getContacts("Zoe");
+        tracer.addTrace(new Trace("Max", "Anna", 4200));
+        assertEquals(List.of(Set.of("Kenton", "Max"), Set.of("Anna")), deltas);
+        assertEquals(Set.of("Kenton", "Max", "Anna"), query.getReached());
+    }
+
+    @Test
+    public void testStandingQueryMatchesContactTrace() {
+        List<Trace> traces = TestTraces.randomTraces(1618, 120, 1200);
+        ContactTracer tracer = new ContactTracer();
+        Set<String> deltas = new HashSet<>();
+        ContactTracer.StandingQuery query = tracer.watch("P0", 1000, (reached) -> {
+            // each person is only ever reported once.
+            for (String person : reached) {
+                assertTrue(deltas.add(person));
+            }
+        });
+
+        for (int i = 0; i < traces.size(); i++) {
+            tracer.addTrace(traces.get(i));
+            // merges between adds hand the query traces it already holds as pending.
+            if (i % 50 == 0) {
+                tracer.getContacts("P0");
+            }
+        }
+        Set<String> expected = bruteForceTrace(traces, "P0", 1000);
+        assertEquals(expected, deltas);
+        assertEquals(expected, query.getReached());
+        assertEquals(expected, tracer.contactTrace("P0", 1000));
+    }
+
+    @Test
+    public void testStandingQueryPendingIsBounded() {
+        List<Trace> traces = TestTraces.randomTraces(2121, 300, 5 * ContactTracer.SEGMENT_SIZE);
+        ContactTracer tracer = new ContactTracer();
+        ContactTracer.StandingQuery query = tracer.watch("P0", 1000, (reached) -> { });
+
+        // nothing queries the tracer, so only the query's own limit merges its pending traces.
+        for (Trace trace : traces) {
+            tracer.addTrace(trace);
+            assertTrue(query.pendingCount() < 2 * ContactTracer.SEGMENT_SIZE);
+        }
+        assertEquals(new ContactTracer(traces).contactTrace("P0", 1000), query.getReached());
+    }
+
+    @Test
+    public void testSourceTraceSpecExample() {
+        ContactTracer tracer = specTracer();
+        assertEquals(Map.of("Kristian", 3360, "Matt", 3240, "Sanni", 3270, "Anna", 1740),
+                tracer.sourceTrace("Max", 3360));
+        // Max couldn't have been infected before their only contact.
+        assertEquals(Map.of(), tracer.sourceTrace("Max", 3359));
+        assertEquals(Map.of(), tracer.sourceTrace("Nobody", 3360));
+    }
+
+    @Test
+    public void testSourceTraceIsInverseOfContactTrace() {
+        List<Trace> traces = TestTraces.randomTraces(7337, 50, 400);
+        ContactTracer tracer = new ContactTracer(traces);
+        int timeOfInfection = 4000;
+        List<Trace> earlier = new ArrayList<>();
+        for (Trace trace : traces) {
+            if (trace.getTime() <= timeOfInfection) {
+                earlier.add(trace);
+            }
+        }
+
+        Map<String, Integer> sources = tracer.sourceTrace("P0", timeOfInfection);
+        for (int p = 1; p < 50; p++) {
+            String person = "P" + p;
+            Integer latest = sources.get(person);
+            if (latest == null) {
+                assertFalse(bruteForceTrace(earlier, person, -1000).contains("P0"));
+            } else {
+                assertTrue(bruteForceTrace(earlier, person, latest).contains("P0"));
+                assertFalse(bruteForceTrace(earlier, person, latest + 1).contains("P0"));
+            }
+        }
+    }
+
+    @Test
+    public void testResultCacheInvalidation() {
+        ContactTracer tracer = specTracer();
+        tracer.enableResultCache(100);
+        ResultCache cache = tracer.getResultCache();
+
+        Set<String> expected = Set.of("Matt", "Kristian", "Sanni", "Kenton", "Max");
+        assertEquals(expected, tracer.contactTrace("Anna", 80));
+        assertEquals(expected, tracer.contactTrace("Anna", 80));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        // Kenton was only reached at 3360, so they can't pass it on at 3400.
+        tracer.addTrace(new Trace("Kenton", "Bob", 3400));
+        // Kristian was reached at 3240, so this contact doesn't reach him any earlier.
+        tracer.addTrace(new Trace("Matt", "Kristian", 3600));
+        assertEquals(0, cache.getInvalidations());
+        assertEquals(expected, tracer.contactTrace("Anna", 80));
+        assertEquals(2, cache.getHits());
+
+        // Max is contagious from 3420.
+        tracer.addTrace(new Trace("Max", "Bob", 3500));
+        assertEquals(1, cache.getInvalidations());
+        assertEquals(Set.of("Matt", "Kristian", "Sanni", "Kenton", "Max", "Bob"), tracer.contactTrace("Anna", 80));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testResultCacheExpiry() {
+        ContactTracer tracer = new ContactTracer(RetentionPolicy.keepLast(100, 50));
+        tracer.enableResultCache(100);
+        tracer.addTrace(new Trace("A", "B", 10));
+        assertEquals(Set.of("B"), tracer.contactTrace("A", 0));
+        assertEquals(Set.of("B"), tracer.contactTrace("A", 0));
+
+        // a trace moving the retention window on expires the contact, and with it the cached result.
+        tracer.addTrace(new Trace("C", "D", 1000));
+        assertEquals(Set.of(), tracer.contactTrace("A", 0));
+        assertEquals(Set.of(), tracer.contactTrace("A", 0, ContactTracer.TraceMode.EARLIEST_ARRIVAL));
+        assertEquals(Set.of(), tracer.getContacts("A"));
+    }
+
+    @Test
+    public void testResultCacheEviction() {
+        List<Trace> traces = TestTraces.randomTraces(4242, 100, 800);
+        ContactTracer tracer = new ContactTracer(traces);
+        ContactTracer uncached = new ContactTracer(traces);
+        tracer.enableResultCache(200);
+        ResultCache cache = tracer.getResultCache();
+
+        for (int round = 0; round < 2; round++) {
+            for (int p = 0; p < 100; p += 9) {
+                assertEquals(uncached.contactTrace("P" + p, 2000), tracer.contactTrace("P" + p, 2000));
+            }
+            assertTrue(cache.weight() <= 200);
+        }
+        assertTrue(cache.getEvictions() > 0);
+
+        // results returned from the cache are copies.
+        Set<String> result = tracer.contactTrace("P0", 4900);
+        result.add("Someone");
+        assertEquals(uncached.contactTrace("P0", 4900), tracer.contactTrace("P0", 4900));
+        assertTrue(cache.getHits() > 0);
+    }
+
+    @Test
+    public void testMetrics() {
+        ContactTracer tracer = specTracer();
+        assertNull(tracer.getMetrics());
+        TracerMetrics metrics = tracer.enableMetrics();
+
+        tracer.addTrace(new Trace("Max", "Bob", 3500));
+        tracer.getContactTimes("Anna", "Matt");
+        tracer.getContacts("Anna");
+        tracer.getContactsAfter("Anna", 1000);
+        tracer.contactTrace("Anna", 80);
+        tracer.contactTrace("Anna", 80, ContactTracer.TraceMode.EARLIEST_ARRIVAL);
+
+        TracerMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.count(TracerMetrics.Operation.ADD_TRACE));
+        assertEquals(1, snapshot.count(TracerMetrics.Operation.GET_CONTACT_TIMES));
+        assertEquals(1, snapshot.count(TracerMetrics.Operation.GET_CONTACTS));
+        assertEquals(1, snapshot.count(TracerMetrics.Operation.GET_CONTACTS_AFTER));
+        assertEquals(2, snapshot.count(TracerMetrics.Operation.CONTACT_TRACE));
+        assertTrue(snapshot.percentileNanos(TracerMetrics.Operation.CONTACT_TRACE, 50) > 0);
+        assertEquals(2, snapshot.queries());
+        // dijkstra scans Anna and the 6 persons she reaches, and each of their later contacts.
+        assertTrue(snapshot.verticesVisited() >= 7 + 7);
+        assertTrue(snapshot.edgesRelaxed() > 0);
+        assertTrue(snapshot.peakFrontier() >= 2);
+
+        // earliest arrival scans the 8 traces from 80. Anna and the 6 persons she reaches are
+        // contagious by the last, and Kenton and Max wait out their incubation together.
+        metrics = tracer.enableMetrics();
+        tracer.contactTrace("Anna", 80, ContactTracer.TraceMode.EARLIEST_ARRIVAL);
+        snapshot = metrics.snapshot();
+        assertEquals(7, snapshot.verticesVisited());
+        assertEquals(8, snapshot.edgesRelaxed());
+        assertEquals(2, snapshot.peakFrontier());
+
+        tracer.disableMetrics();
+        tracer.getContacts("Anna");
+        assertEquals(0, metrics.snapshot().count(TracerMetrics.Operation.GET_CONTACTS));
+    }
+
+    @Test
+    public void testMetricsHistogramBuckets() {
+        TracerMetrics metrics = new TracerMetrics();
+        metrics.record(TracerMetrics.Operation.GET_CONTACTS, 1);
+        metrics.record(TracerMetrics.Operation.GET_CONTACTS, 1000);
+        metrics.record(TracerMetrics.Operation.GET_CONTACTS, 1023);
+        metrics.record(TracerMetrics.Operation.GET_CONTACTS, 1 << 20);
+
+        TracerMetrics.Snapshot snapshot = metrics.snapshot();
+        long[] histogram = snapshot.histogram(TracerMetrics.Operation.GET_CONTACTS);
+        assertEquals(1, histogram[0]);
+        assertEquals(2, histogram[9]);
+        assertEquals(1, histogram[20]);
+        assertEquals(1023, snapshot.percentileNanos(TracerMetrics.Operation.GET_CONTACTS, 75));
+        assertEquals((1 << 21) - 1, snapshot.percentileNanos(TracerMetrics.Operation.GET_CONTACTS, 100));
+        assertEquals(1 + 1000 + 1023 + (1 << 20), snapshot.totalNanos(TracerMetrics.Operation.GET_CONTACTS));
+    }
+
+    @Test
+    public void testAsyncMatchesSync() throws Exception {
+        List<Trace> traces = TestTraces.randomTraces(31, 100, 1000);
+        ContactTracer tracer = new ContactTracer(traces);
+        for (int i = 0; i < 20; i++) {
+            String person = "P" + i;
+            for (ContactTracer.TraceMode mode : ContactTracer.TraceMode.values()) {
+                assertEquals(tracer.contactTrace(person, i * 200, mode),
+                        tracer.contactTraceAsync(person, i * 200, mode).get());
+            }
+            assertEquals(tracer.getContacts(person), tracer.getContactsAsync(person).get());
+            assertEquals(tracer.getContactTimes(person, "P" + (i + 1)),
+                    tracer.getContactTimesAsync(person, "P" + (i + 1)).get());
+        }
+    }
+
+    @Test
+    public void testAsyncCoalescing() throws Exception {
+        ContactTracer tracer = specTracer();
+        List<Runnable> queued = new ArrayList<>();
+
+        CompletableFuture<Set<String>> first = tracer.contactTraceAsync("Anna", 80, ContactTracer.TraceMode.DIJKSTRA, queued::add);
+        CompletableFuture<Set<String>> second = tracer.contactTraceAsync("Anna", 80, ContactTracer.TraceMode.DIJKSTRA, queued::add);
+        tracer.contactTraceAsync("Anna", 81, ContactTracer.TraceMode.DIJKSTRA, queued::add);
+        assertEquals(2, queued.size());
+
+        queued.get(0).run();
+        assertEquals(tracer.contactTrace("Anna", 80), first.get());
+        assertEquals(first.get(), second.get());
+        // each caller gets their own copy.
+        first.get().clear();
+        assertFalse(second.get().isEmpty());
+
+        // a trace added since makes a new snapshot, which isn't shared with the old one.
+        tracer.getContactsAsync("Anna", queued::add);
+        tracer.addTrace(new Trace("Anna", "Bob", 4000));
+        tracer.getContactsAsync("Anna", queued::add);
+        assertEquals(4, queued.size());
+    }
+
+    @Test
+    public void testAsyncCancellation() throws Exception {
+        ContactTracer tracer = specTracer();
+        TracerMetrics metrics = tracer.enableMetrics();
+        List<Runnable> queued = new ArrayList<>();
+
+        // cancelling one of two callers leaves the trace running for the other.
+        CompletableFuture<Set<String>> first = tracer.contactTraceAsync("Anna", 80, ContactTracer.TraceMode.DIJKSTRA, queued::add);
+        CompletableFuture<Set<String>> second = tracer.contactTraceAsync("Anna", 80, ContactTracer.TraceMode.DIJKSTRA, queued::add);
+        assertTrue(first.cancel(true));
+        queued.get(0).run();
+        assertEquals(tracer.contactTrace("Anna", 80), second.get());
+        assertEquals(2, metrics.snapshot().queries());
+
+        // once every caller cancels, the trace stops without doing any work.
+        CompletableFuture<Set<String>> third = tracer.contactTraceAsync("Anna", 80, ContactTracer.TraceMode.EARLIEST_ARRIVAL, queued::add);
+        assertEquals(2, queued.size());
+        assertTrue(third.cancel(true));
+        queued.get(1).run();
+        assertEquals(2, metrics.snapshot().queries());
+        try {
+            third.get();
+            fail();
+        } catch (CancellationException e) {
+            // expected.
+        }
+
+        // an identical trace after that starts again.
+        CompletableFuture<Set<String>> fourth = tracer.contactTraceAsync("Anna", 80, ContactTracer.TraceMode.EARLIEST_ARRIVAL, queued::add);
+        assertEquals(3, queued.size());
+        queued.get(2).run();
+        assertEquals(tracer.contactTrace("Anna", 80), fourth.get());
+    }
+
+    @Test
+    public void testAsyncLookupAfterAddTrace() throws Exception {
+        ContactTracer tracer = specTracer();
+        List<Runnable> queued = new ArrayList<>();
+
+        // identical lookups share one computation until a trace is added.
+        CompletableFuture<List<Integer>> first = tracer.getContactTimesAsync("Anna", "Matt", queued::add);
+        CompletableFuture<List<Integer>> second = tracer.getContactTimesAsync("Anna", "Matt", queued::add);
+        assertEquals(1, queued.size());
+        tracer.addTrace(new Trace("Matt", "Anna", 2000));
+        CompletableFuture<List<Integer>> third = tracer.getContactTimesAsync("Anna", "Matt", queued::add);
+        assertEquals(2, queued.size());
+
+        for (Runnable task : queued) {
+            task.run();
+        }
+        assertEquals(first.get(), second.get());
+        assertEquals(List.of(1740, 2000), third.get());
+    }
+
+    @Test
+    public void testCancelRunningTrace() throws Exception {
+        // the traces are many enough that a trace is still running when it is cancelled.
+        ContactTracer tracer = new ContactTracer(TestTraces.randomTraces(2718, 20000, 300000));
+        TracerMetrics metrics = tracer.enableMetrics();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (ContactTracer.TraceMode mode : ContactTracer.TraceMode.values()) {
+                Set<String> expected = tracer.contactTrace("P0", 0, mode);
+                long queries = metrics.snapshot().queries();
+                assertEquals(1, tracer.pooledScratchCount());
+
+                CountDownLatch started = new CountDownLatch(1);
+                CompletableFuture<Set<String>> future = tracer.contactTraceAsync("P0", 0, mode, (task) ->
+                        executor.execute(() -> {
+                            started.countDown();
+                            task.run();
+                        }));
+                // once the trace has taken the pooled state, it is traversing the graph.
+                started.await();
+                while (tracer.pooledScratchCount() > 0 && !future.isDone()) {
+                    Thread.onSpinWait();
+                }
+                assertTrue(future.cancel(true));
+                // wait for the trace to stop.
+                executor.submit(() -> { }).get();
+
+                try {
+                    future.get();
+                    fail();
+                } catch (CancellationException e) {
+                    // expected.
+                }
+                // the trace stopped before recording its query, and gave back its state.
+                assertEquals(queries, metrics.snapshot().queries());
+                assertEquals(1, tracer.pooledScratchCount());
+                assertEquals(expected, tracer.contactTrace("P0", 0, mode));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testQueriesAsOfVersion() {
+        ContactTracer tracer = new ContactTracer(RetentionPolicy.keepLast(100000, 500));
+        assertEquals(0, tracer.getVersion());
+        List<Trace> traces = TestTraces.randomTraces(2020, 60, 900);
+        List<Long> versions = new ArrayList<>();
+        List<ContactTracer> expected = new ArrayList<>();
+
+        // after each batch, record the version and a tracer holding only the traces so far.
+        for (int batch = 0; batch < 3; batch++) {
+            for (Trace trace : traces.subList(batch * 300, batch * 300 + 300)) {
+                tracer.addTrace(trace);
+            }
+            versions.add(tracer.getVersion());
+            expected.add(new ContactTracer(traces.subList(0, batch * 300 + 300)));
+        }
+        // a trace already added isn't numbered again.
+        tracer.addTrace(traces.get(0));
+        assertEquals((long) versions.get(2), tracer.getVersion());
+
+        for (int batch = 0; batch < 3; batch++) {
+            long version = versions.get(batch);
+            for (int p = 0; p < 60; p += 4) {
+                String person = "P" + p;
+                assertEquals(expected.get(batch).getContacts(person), tracer.getContacts(person, version));
+                assertEquals(expected.get(batch).getContactsAfter(person, 2500),
+                        tracer.getContactsAfter(person, 2500, version));
+                for (ContactTracer.TraceMode mode : ContactTracer.TraceMode.values()) {
+                    assertEquals(expected.get(batch).contactTrace(person, 1000),
+                            tracer.contactTrace(person, 1000, mode, version));
+                }
+            }
+        }
+        assertEquals(Set.of(), tracer.getContacts("P0", 0));
+    }
+
+    @Test
+    public void testVersionsSurviveReopen() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+        RetentionPolicy policy = RetentionPolicy.keepLast(100000, 700);
+        List<Trace> traces = TestTraces.randomTraces(77, 50, 400);
+
+        ContactTracer tracer = ContactTracer.open(directory, policy);
+        for (Trace trace : traces.subList(0, 200)) {
+            tracer.addTrace(trace);
+        }
+        long version = tracer.getVersion();
+        tracer.writeSnapshot();
+        for (Trace trace : traces.subList(200, 400)) {
+            tracer.addTrace(trace);
+        }
+        tracer.flushLog();
+        long latest = tracer.getVersion();
+        tracer.close();
+
+        ContactTracer reopened = ContactTracer.open(directory, policy);
+        ContactTracer expected = new ContactTracer(traces.subList(0, 200));
+        try {
+            assertEquals(latest, reopened.getVersion());
+            for (int p = 0; p < 50; p += 3) {
+                assertEquals(expected.getContacts("P" + p), reopened.getContacts("P" + p, version));
+                assertEquals(expected.contactTrace("P" + p, 500),
+                        reopened.contactTrace("P" + p, 500, ContactTracer.TraceMode.DIJKSTRA, version));
+            }
+        } finally {
+            reopened.close();
+        }
+    }
+}
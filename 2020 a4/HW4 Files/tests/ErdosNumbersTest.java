@@ -2,6 +2,7 @@ import static org.junit.Assert.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 import org.junit.Test;
 
@@ -135,4 +136,120 @@ public class ErdosNumbersTest {
         assertTrue(nums.isErdosConnectedToAll());
     }
 
+    @Test
+    public void testLongChain() {
+        List<String> papers = new ArrayList<>();
+        papers.add("Paper 0:Paul Erdös|Author 1");
+        for (int i = 1; i < 200; i++) {
+            papers.add("Paper " + i + ":Author " + i + "|Author " + (i + 1));
+        }
+        papers.add("Paper 200:Author 1|Author 200");
+        papers.add("Alone:Author X|Author Y");
+
+        ErdosNumbers nums = new ErdosNumbers(papers);
+        assertEquals(0, nums.calculateErdosNumber(ErdosNumbers.ERDOS));
+        assertEquals(1, nums.calculateErdosNumber("Author 1"));
+        assertEquals(2, nums.calculateErdosNumber("Author 200"));
+        assertEquals(50, nums.calculateErdosNumber("Author 50"));
+        assertEquals(101, nums.calculateErdosNumber("Author 101"));
+        assertEquals(Integer.MAX_VALUE, nums.calculateErdosNumber("Author X"));
+        assertFalse(nums.isErdosConnectedToAll());
+    }
+
+    @Test
+    public void testRepeatedCollaborations() {
+        List<String> papers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            papers.add("Joint " + i + ":Paul Erdös|Often");
+        }
+        papers.add("Once:Paul Erdös|Rarely");
+        papers.add("Bridge:Often|Rarely|Later");
+
+        ErdosNumbers nums = new ErdosNumbers(papers);
+        assertEquals(0.25, nums.calculateWeightedErdosNumber("Often"), 0.001);
+        assertEquals(1.0, nums.calculateWeightedErdosNumber("Rarely"), 0.001);
+        assertEquals(1.25, nums.calculateWeightedErdosNumber("Later"), 0.001);
+        assertEquals(Set.of("Paul Erdös", "Rarely", "Later"), nums.getCollaborators("Often"));
+    }
+
+    @Test
+    public void testDistanceFrom() {
+        ErdosNumbers nums = new ErdosNumbers(SIMPLE_TEST_SET);
+        assertEquals(0, nums.cachedSources());
+        assertEquals(Set.of("Tight bounds on the chromatic sum of a connected graph"), nums.getPapers("Alavi, Y."));
+        assertEquals(0, nums.cachedSources());
+
+        ErdosNumbers.Distances distances = nums.distanceFrom("Burris, A. C.");
+        assertEquals("Burris, A. C.", distances.getSource());
+        assertEquals(0, distances.get("Burris, A. C."));
+        assertEquals(1, distances.get("Schelp, R. H."));
+        assertEquals(2, distances.get("Paul Erdös"));
+        assertEquals(3, distances.get("Tenenbaum, G."));
+        assertEquals(1.5, distances.getWeighted("Balister, P. N."), 0.001);
+        assertTrue(distances.isConnectedToAll());
+        assertSame(distances, nums.distanceFrom("Burris, A. C."));
+
+        ErdosNumbers.Distances nobody = nums.distanceFrom("Nobody");
+        assertEquals(Integer.MAX_VALUE, nobody.get("Schelp, R. H."));
+        assertEquals(Double.MAX_VALUE, nobody.getWeighted("Schelp, R. H."), 0.0);
+    }
+
+    @Test
+    public void testDistanceCacheIsBounded() {
+        // room for the distances from two sources, over the 16 authors.
+        ErdosNumbers nums = new ErdosNumbers(SIMPLE_TEST_SET, 2 * 16 * 12);
+        ErdosNumbers.Distances erdos = nums.distanceFrom(ErdosNumbers.ERDOS);
+        nums.distanceFrom("Burris, A. C.");
+        assertSame(erdos, nums.distanceFrom(ErdosNumbers.ERDOS));
+        nums.distanceFrom("Gyori, E.");
+        assertEquals(2, nums.cachedSources());
+        assertSame(erdos, nums.distanceFrom(ErdosNumbers.ERDOS));
+        assertEquals(2, nums.calculateErdosNumber("Burris, A. C."));
+
+        ErdosNumbers tiny = new ErdosNumbers(SIMPLE_TEST_SET, 0);
+        assertEquals(1, tiny.calculateErdosNumber("Schelp, R. H."));
+        assertEquals(1, tiny.cachedSources());
+        tiny.distanceFrom("Burris, A. C.");
+        assertEquals(1, tiny.cachedSources());
+    }
+
+    @Test
+    public void testDistanceBetween() {
+        ErdosNumbers nums = new ErdosNumbers(SIMPLE_TEST_SET);
+        assertEquals(0, nums.distanceBetween("Burris, A. C.", "Burris, A. C."));
+        assertEquals(1, nums.distanceBetween("Paul Erdös", "Schelp, R. H."));
+        assertEquals(3, nums.distanceBetween("Burris, A. C.", "Tenenbaum, G."));
+        assertEquals(4, nums.distanceBetween("Riordan, O. M.", "Hildebrand, A."));
+        assertEquals(Integer.MAX_VALUE, nums.distanceBetween("Burris, A. C.", "Nobody"));
+
+        List<String> unconnectedSet = new ArrayList<String>(SIMPLE_TEST_SET);
+        unconnectedSet.add("On Computable Numbers, with an Application to the Entscheidungsproblem:Turing A. M.");
+        assertEquals(Integer.MAX_VALUE, new ErdosNumbers(unconnectedSet).distanceBetween("Turing A. M.", "Paul Erdös"));
+    }
+
+    @Test
+    public void testDistanceBetweenMatchesDistanceFrom() {
+        Random random = new Random(29);
+        List<String> papers = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            StringBuilder paper = new StringBuilder("Paper " + i + ":A" + random.nextInt(400));
+            int authors = random.nextInt(3);
+            for (int j = 0; j < authors; j++) {
+                paper.append("|A").append(random.nextInt(400));
+            }
+            papers.add(paper.toString());
+        }
+        ErdosNumbers nums = new ErdosNumbers(papers);
+
+        for (int i = 0; i < 200; i++) {
+            String one = "A" + random.nextInt(400);
+            String two = "A" + random.nextInt(400);
+            if (nums.getPapers(one) == null || nums.getPapers(two) == null) {
+                continue;
+            }
+            assertEquals(nums.distanceFrom(one).get(two), nums.distanceBetween(one, two));
+            assertEquals(nums.distanceBetween(one, two), nums.distanceBetween(two, one));
+        }
+    }
+
 }
\ No newline at end of file
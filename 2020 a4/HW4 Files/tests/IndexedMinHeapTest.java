@@ -0,0 +1,58 @@
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import org.junit.Test;
+
+public class IndexedMinHeapTest {
+
+    @Test
+    public void testDecreaseKey() {
+        IndexedMinHeap heap = new IndexedMinHeap(5);
+        assertTrue(heap.insertOrDecrease(0, 5.0));
+        assertTrue(heap.insertOrDecrease(1, 3.0));
+        assertTrue(heap.insertOrDecrease(2, 4.0));
+        assertTrue(heap.insertOrDecrease(0, 1.0));
+        assertFalse(heap.insertOrDecrease(1, 3.5));
+
+        assertEquals(0, heap.poll());
+        // an id polled can be added again.
+        assertTrue(heap.insertOrDecrease(0, 6.0));
+        assertEquals(1, heap.poll());
+        assertEquals(2, heap.poll());
+        assertEquals(0, heap.poll());
+        assertTrue(heap.isEmpty());
+
+        try {
+            heap.poll();
+            fail();
+        } catch (NoSuchElementException e) {
+            // expected.
+        }
+    }
+
+    @Test
+    public void testRandomMatchesSort() {
+        Random random = new Random(11);
+        int capacity = 500;
+        IndexedMinHeap heap = new IndexedMinHeap(capacity);
+        double[] best = new double[capacity];
+        Arrays.fill(best, Double.MAX_VALUE);
+
+        for (int i = 0; i < 5000; i++) {
+            int id = random.nextInt(capacity);
+            double key = random.nextDouble();
+            assertEquals(key < best[id], heap.insertOrDecrease(id, key));
+            best[id] = Math.min(best[id], key);
+        }
+
+        // each id comes out once, in order of its smallest key.
+        double[] sorted = Arrays.stream(best).filter(key -> key != Double.MAX_VALUE).sorted().toArray();
+        for (double key : sorted) {
+            int id = heap.poll();
+            assertEquals(key, best[id], 0.0);
+        }
+        assertTrue(heap.isEmpty());
+    }
+}
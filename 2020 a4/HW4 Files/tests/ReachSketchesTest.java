@@ -0,0 +1,59 @@
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+public class ReachSketchesTest {
+
+    private static ContactTracer randomTracer(long seed, int personCount, int traceCount) {
+        return new ContactTracer(TestTraces.randomTraces(seed, personCount, traceCount));
+    }
+
+    @Test
+    public void testSpecExample() {
+        ContactTracer tracer = new ContactTracer(TestTraces.specTraces());
+
+        // small sets are counted almost exactly by the sketches.
+        ReachSketches sketches = tracer.estimateReach(0, 10, ForkJoinPool.commonPool());
+        assertEquals(tracer.contactTrace("Anna", 0).size(), sketches.estimate("Anna"), 0.5);
+        assertEquals(tracer.contactTrace("Max", 0).size(), sketches.estimate("Max"), 0.5);
+        assertEquals(tracer.contactTrace("Kenton", 0).size(), sketches.estimate("Kenton"), 0.5);
+        assertEquals(0, sketches.estimate("Nobody"), 0);
+    }
+
+    @Test
+    public void testEstimatesMatchContactTrace() {
+        ContactTracer tracer = randomTracer(8080, 400, 3000);
+        ReachSketches sketches = tracer.estimateReach(1000, 12, ForkJoinPool.commonPool());
+
+        int largest = 0;
+        for (int p = 0; p < 400; p++) {
+            int reach = tracer.contactTrace("P" + p, 1000).size();
+            largest = Math.max(largest, reach);
+            assertEquals(reach, sketches.estimate("P" + p), 3 + reach * 0.08);
+        }
+
+        // the top ranked person reaches about as many as anyone.
+        List<String> top = sketches.topK(5);
+        assertEquals(5, top.size());
+        assertTrue(tracer.contactTrace(top.get(0), 1000).size() >= largest * 0.9);
+        assertTrue(sketches.estimate(top.get(0)) >= sketches.estimate(top.get(4)));
+    }
+
+    @Test
+    public void testSlicesAreIndependentOfParallelism() {
+        ContactTracer tracer = randomTracer(9090, 200, 1500);
+        ReachSketches single = tracer.estimateReach(500, 8, new ForkJoinPool(1));
+        ReachSketches split = tracer.estimateReach(500, 8, new ForkJoinPool(8));
+        for (int p = 0; p < 200; p++) {
+            assertEquals(single.estimate("P" + p), split.estimate("P" + p), 0);
+        }
+        assertEquals(single.topK(10), split.topK(10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPrecisionOutOfRange() {
+        new ContactTracer().estimateReach(0, 20, ForkJoinPool.commonPool());
+    }
+}
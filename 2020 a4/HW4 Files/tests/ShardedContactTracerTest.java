@@ -0,0 +1,94 @@
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class ShardedContactTracerTest {
+
+    private static void assertSameTraces(ContactTracer expected, ShardedContactTracer actual, int personCount)
+            throws IOException {
+        Random random = new Random(1);
+        for (int i = 0; i < 50; i++) {
+            String person = "P" + random.nextInt(personCount);
+            int timeOfContagion = random.nextInt(5000);
+            assertEquals(expected.contactTrace(person, timeOfContagion), actual.contactTrace(person, timeOfContagion));
+        }
+    }
+
+    @Test
+    public void testSpecExample() throws IOException {
+        try (ShardedContactTracer tracer = ShardedContactTracer.inProcess(3)) {
+            tracer.addTrace(new Trace("Anna", "Sanni", 100));
+            tracer.addTrace(new Trace("Anna", "Matt", 1740));
+            tracer.addTrace(new Trace("Matt", "Kristian", 3240));
+            tracer.addTrace(new Trace("Kristian", "Sanni", 3270));
+            tracer.addTrace(new Trace("Kristian", "Kenton", 3360));
+            tracer.addTrace(new Trace("Kristian", "Max", 3360));
+            tracer.addTrace(new Trace("Kenton", "Kristian", 4020));
+
+            assertEquals(new HashSet<>(List.of("Matt", "Kristian", "Kenton", "Max")),
+                    tracer.contactTrace("Anna", 1740));
+            assertEquals(new HashSet<>(List.of("Kristian", "Kenton", "Max")), tracer.contactTrace("Matt", 3200));
+            assertEquals(new HashSet<>(), tracer.contactTrace("Nobody", 0));
+        }
+    }
+
+    @Test
+    public void testInProcessMatchesSingleNode() throws IOException {
+        List<Trace> traces = TestTraces.randomTraces(17, 300, 3000);
+        ContactTracer expected = new ContactTracer(traces);
+        try (ShardedContactTracer tracer = ShardedContactTracer.inProcess(4)) {
+            tracer.addTraces(traces);
+            assertSameTraces(expected, tracer, 300);
+        }
+    }
+
+    @Test
+    public void testLoopbackMatchesSingleNode() throws IOException {
+        List<Trace> traces = TestTraces.randomTraces(23, 200, 2000);
+        ContactTracer expected = new ContactTracer(traces);
+
+        int shardCount = 3;
+        List<ShardServer> servers = new ArrayList<>();
+        List<RemoteShard> shards = new ArrayList<>();
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                servers.add(new ShardServer(new ContactShard(i, shardCount), 0));
+                shards.add(new RemoteShard(servers.get(i).getPort()));
+            }
+            try (ShardedContactTracer tracer = new ShardedContactTracer(shards)) {
+                tracer.addTraces(traces);
+                assertSameTraces(expected, tracer, 200);
+            }
+        } finally {
+            for (RemoteShard shard : shards) {
+                shard.close();
+            }
+            for (ShardServer server : servers) {
+                server.close();
+            }
+        }
+    }
+
+    @Test
+    public void testEachTraceHeldByItsOwners() throws IOException {
+        List<ContactShard> shards = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            shards.add(new ContactShard(i, 4));
+        }
+        try (ShardedContactTracer tracer = new ShardedContactTracer(shards)) {
+            tracer.addTraces(TestTraces.randomTraces(5, 50, 500));
+        }
+        for (ContactShard shard : shards) {
+            for (String person : shard.getTracer().getContacts("P0")) {
+                int owner1 = ShardedContactTracer.shardOf("P0", 4);
+                int owner2 = ShardedContactTracer.shardOf(person, 4);
+                assertTrue(shard.getIndex() == owner1 || shard.getIndex() == owner2);
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Traces shared by the tests.
+ */
+class TestTraces {
+
+    /**
+     * @return the traces of the example in the assignment spec, in the order given
+     */
+    static List<Trace> specTraces() {
+        List<Trace> traces = new ArrayList<>();
+        traces.add(new Trace("Anna", "Sanni", 100));
+        traces.add(new Trace("Anna", "Matt", 1740));
+        traces.add(new Trace("Matt", "Kristian", 3240));
+        traces.add(new Trace("Kristian", "Sanni", 3270));
+        traces.add(new Trace("Kristian", "Kenton", 3360));
+        traces.add(new Trace("Kristian", "Max", 3360));
+        traces.add(new Trace("Kenton", "Kristian", 4020));
+        return traces;
+    }
+
+    /**
+     * @return random traces between persons named "P0" to "P" + (personCount - 1), at times
+     *         below 5000, possibly between a person and themselves
+     */
+    static List<Trace> randomTraces(long seed, int personCount, int traceCount) {
+        Random random = new Random(seed);
+        List<Trace> traces = new ArrayList<>();
+        for (int i = 0; i < traceCount; i++) {
+            traces.add(new Trace("P" + random.nextInt(personCount), "P" + random.nextInt(personCount),
+                    random.nextInt(5000)));
+        }
+        return traces;
+    }
+
+    /**
+     * @return random traces like randomTraces, but never between a person and themselves
+     */
+    static List<Trace> randomPairTraces(long seed, int personCount, int traceCount) {
+        Random random = new Random(seed);
+        List<Trace> traces = new ArrayList<>();
+        for (int i = 0; i < traceCount; i++) {
+            int person1 = random.nextInt(personCount);
+            int person2 = (person1 + 1 + random.nextInt(personCount - 1)) % personCount;
+            traces.add(new Trace("P" + person1, "P" + person2, random.nextInt(5000)));
+        }
+        return traces;
+    }
+}
@@ -0,0 +1,42 @@
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class TraceGeneratorTest {
+
+    @Test
+    public void testSameSeedSameTraces() {
+        List<Trace> first = new TraceGenerator(7, 100, 3).generate(1000);
+        List<Trace> second = new TraceGenerator(7, 100, 3).generate(1000);
+        for (int i = 0; i < first.size(); i++) {
+            assertEquals(first.get(i).getPerson1(), second.get(i).getPerson1());
+            assertEquals(first.get(i).getPerson2(), second.get(i).getPerson2());
+            assertEquals(first.get(i).getTime(), second.get(i).getTime());
+        }
+    }
+
+    @Test
+    public void testShape() {
+        TraceGenerator generator = new TraceGenerator(11, 1000, 7);
+        Map<String, Integer> degree = new HashMap<>();
+        int[] byHour = new int[24];
+        for (Trace trace : generator.generate(50000)) {
+            assertNotEquals(trace.getPerson1(), trace.getPerson2());
+            assertTrue(trace.getTime() >= 0 && trace.getTime() < generator.endTime());
+            degree.merge(trace.getPerson1(), 1, Integer::sum);
+            degree.merge(trace.getPerson2(), 1, Integer::sum);
+            byHour[trace.getTime() % TraceGenerator.MINUTES_PER_DAY / 60]++;
+        }
+
+        // the most active person is in far more traces than the median person.
+        int top = degree.getOrDefault(generator.person(0), 0);
+        int median = degree.getOrDefault(generator.person(500), 0);
+        assertTrue(top > 20 * Math.max(1, median));
+
+        // the afternoon is busier than the night.
+        assertTrue(byHour[14] > 5 * byHour[2]);
+    }
+}
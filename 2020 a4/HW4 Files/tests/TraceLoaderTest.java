@@ -0,0 +1,71 @@
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+public class TraceLoaderTest {
+
+    private static void assertSameTracer(ContactTracer expected, ContactTracer actual, int personCount) {
+        for (int p = 0; p < personCount; p += 3) {
+            String person = "P" + p;
+            assertEquals(expected.getContacts(person), actual.getContacts(person));
+            assertEquals(expected.getContactTimes(person, "P" + (p + 1)), actual.getContactTimes(person, "P" + (p + 1)));
+            assertEquals(expected.contactTrace(person, 1500), actual.contactTrace(person, 1500));
+        }
+    }
+
+    @Test
+    public void testLoadCsv() throws IOException {
+        List<Trace> traces = TestTraces.randomTraces(5151, 90, 900);
+        StringBuilder csv = new StringBuilder("person1,person2,time\n");
+        for (int i = 0; i < traces.size(); i++) {
+            Trace trace = traces.get(i);
+            // mix line endings, padding and blank lines.
+            csv.append(trace.getPerson1()).append(i % 3 == 0 ? " , " : ",").append(trace.getPerson2())
+                    .append(',').append(trace.getTime()).append(i % 2 == 0 ? "\r\n" : "\n");
+            if (i % 50 == 0) {
+                csv.append('\n');
+            }
+        }
+        Path file = Files.createTempFile("traces", ".csv");
+        Files.write(file, csv.toString().getBytes(StandardCharsets.UTF_8));
+
+        // small chunks so the file is split between many tasks.
+        TraceLoader.Result result = new TraceLoader(ForkJoinPool.commonPool(), 97)
+                .load(file, TraceLoader.Format.CSV);
+        assertEquals(traces.size(), result.getTraceCount());
+        assertTrue(result.getTracesPerSecond() > 0);
+        assertSameTracer(new ContactTracer(traces), result.getTracer(), 90);
+    }
+
+    @Test
+    public void testLoadBinary() throws IOException {
+        List<Trace> traces = TestTraces.randomTraces(6262, 90, 900);
+        traces.add(new Trace("Zoë", "P1", 2000));
+        Path file = Files.createTempFile("traces", ".bin");
+        TraceLoader.writeBinary(traces, file, 100);
+
+        TraceLoader.Result result = new TraceLoader(ForkJoinPool.commonPool(), 64)
+                .load(file, TraceLoader.Format.BINARY);
+        assertEquals(traces.size(), result.getTraceCount());
+        assertSameTracer(new ContactTracer(traces), result.getTracer(), 90);
+        assertEquals(Set.of("P1"), result.getTracer().getContacts("Zoë"));
+
+        // loaded traces are still deduplicated against traces added later.
+        result.getTracer().addTrace(new Trace("P1", "Zoë", 2000));
+        assertEquals(List.of(2000), result.getTracer().getContactTimes("Zoë", "P1"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedCsv() throws IOException {
+        Path file = Files.createTempFile("traces", ".csv");
+        Files.write(file, "A,B,10\nA,B,soon\n".getBytes(StandardCharsets.UTF_8));
+        new TraceLoader().load(file, TraceLoader.Format.CSV);
+    }
+}
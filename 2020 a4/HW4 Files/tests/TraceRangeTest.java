@@ -0,0 +1,134 @@
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import org.junit.Test;
+
+public class TraceRangeTest {
+
+    private static String key(Trace trace) {
+        String person1 = trace.getPerson1();
+        String person2 = trace.getPerson2();
+        if (person1.compareTo(person2) > 0) {
+            String swap = person1;
+            person1 = person2;
+            person2 = swap;
+        }
+        return person1 + "," + person2 + "," + trace.getTime();
+    }
+
+    private static List<String> expected(List<Trace> traces, int from, int to) {
+        Set<String> keys = new HashSet<>();
+        for (Trace trace : traces) {
+            if (trace.getTime() >= from && trace.getTime() <= to) {
+                keys.add(key(trace));
+            }
+        }
+        return keys.stream().sorted().collect(Collectors.toList());
+    }
+
+    private static ContactTracer partitionedTracer(List<Trace> traces) {
+        ContactTracer tracer = new ContactTracer(RetentionPolicy.keepLast(100000, 700));
+        for (Trace trace : traces) {
+            tracer.addTrace(trace);
+        }
+        return tracer;
+    }
+
+    @Test
+    public void testRangeMatchesFilter() {
+        List<Trace> traces = TestTraces.randomPairTraces(3, 50, 2000);
+        ContactTracer tracer = partitionedTracer(traces);
+
+        int[][] ranges = {{0, 4999}, {1000, 1000}, {650, 2150}, {4900, Integer.MAX_VALUE},
+                {Integer.MIN_VALUE, 10}, {3000, 2000}};
+        for (int[] range : ranges) {
+            TraceRange traceRange = tracer.getTracesBetween(range[0], range[1]);
+            List<Trace> scanned = traceRange.stream().collect(Collectors.toList());
+
+            assertEquals(expected(traces, range[0], range[1]),
+                    scanned.stream().map(TraceRangeTest::key).sorted().collect(Collectors.toList()));
+            assertEquals(scanned.size(), traceRange.size());
+            for (int i = 0; i < scanned.size(); i++) {
+                if (i > 0) {
+                    assertTrue(scanned.get(i - 1).getTime() <= scanned.get(i).getTime());
+                }
+                assertEquals(key(scanned.get(i)), key(traceRange.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testParallelStream() {
+        List<Trace> traces = TestTraces.randomPairTraces(5, 200, 20000);
+        TraceRange range = partitionedTracer(traces).getTracesBetween(100, 4500);
+
+        List<String> sequential = range.stream().map(TraceRangeTest::key).collect(Collectors.toList());
+        List<String> parallel = range.parallelStream().map(TraceRangeTest::key).collect(Collectors.toList());
+        assertEquals(sequential, parallel);
+        assertEquals(expected(traces, 100, 4500).size(), parallel.size());
+    }
+
+    @Test
+    public void testCountPerHour() {
+        List<Trace> traces = TestTraces.randomPairTraces(7, 50, 3000);
+        ContactTracer tracer = partitionedTracer(traces);
+
+        TreeMap<Integer, Long> expected = new TreeMap<>();
+        for (String key : expected(traces, 500, 3999)) {
+            int time = Integer.parseInt(key.substring(key.lastIndexOf(',') + 1));
+            expected.merge(time / 60 * 60, 1L, Long::sum);
+        }
+        SortedMap<Integer, Long> counts = tracer.getTracesBetween(500, 3999).countPerHour();
+        assertEquals(expected, counts);
+
+        try {
+            tracer.getTracesBetween(0, 10).countByInterval(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected.
+        }
+    }
+
+    @Test
+    public void testRangeIsSnapshot() {
+        ContactTracer tracer = new ContactTracer();
+        tracer.addTrace(new Trace("Anna", "Matt", 100));
+        TraceRange range = tracer.getTracesBetween(0, 1000);
+        tracer.addTrace(new Trace("Anna", "Sanni", 200));
+
+        assertEquals(1, range.size());
+        assertEquals(2, tracer.getTracesBetween(0, 1000).size());
+        assertEquals(0, tracer.getTracesBetween(300, 1000).size());
+    }
+
+    @Test
+    public void testLayeredRange() {
+        List<Trace> traces = TestTraces.randomPairTraces(13, 80, 3000);
+        ContactTracer tracer = new ContactTracer();
+        // taking a range between adds freezes the traces into several layers, which overlap in time.
+        for (int i = 0; i < traces.size(); i++) {
+            tracer.addTrace(traces.get(i));
+            if (i % 11 == 0) {
+                tracer.getTracesBetween(0, 0);
+            }
+        }
+
+        TraceRange range = tracer.getTracesBetween(250, 4750);
+        List<Trace> scanned = range.stream().collect(Collectors.toList());
+        assertEquals(expected(traces, 250, 4750),
+                scanned.stream().map(TraceRangeTest::key).sorted().collect(Collectors.toList()));
+        for (int i = 0; i < scanned.size(); i++) {
+            if (i > 0) {
+                assertTrue(scanned.get(i - 1).getTime() <= scanned.get(i).getTime());
+            }
+            assertEquals(key(scanned.get(i)), key(range.get(i)));
+        }
+        assertEquals(scanned.stream().map(TraceRangeTest::key).collect(Collectors.toList()),
+                range.parallelStream().map(TraceRangeTest::key).collect(Collectors.toList()));
+    }
+}